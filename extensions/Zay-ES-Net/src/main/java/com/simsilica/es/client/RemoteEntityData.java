@@ -49,11 +49,13 @@ import java.util.logging.Logger;
 
 import com.jme3.network.Client;
 import com.jme3.network.Message;
+import com.simsilica.es.ChangeBatch;
 import com.simsilica.es.ComponentFilter;
 import com.simsilica.es.Entity;
 import com.simsilica.es.EntityChange;
 import com.simsilica.es.EntityComponent;
 import com.simsilica.es.EntityData;
+import com.simsilica.es.EntityDataSnapshot;
 import com.simsilica.es.EntityId;
 import com.simsilica.es.EntitySet;
 import com.simsilica.es.StringIndex;
@@ -336,6 +338,14 @@ public class RemoteEntityData implements EntityData {
 		return result;
 	}
 
+	/**
+	 * Counts by fetching the matching IDs since the protocol has no dedicated count request. The server side still avoids building entities for them.
+	 */
+	@Override
+	public int count(ComponentFilter filter, Class... types) {
+		return findEntities(filter, types).size();
+	}
+
 	@Override
 	public EntitySet getEntities(Class... types) {
 		return getEntities(null, types);
@@ -459,6 +469,16 @@ public class RemoteEntityData implements EntityData {
 		throw new UnsupportedOperationException("RemoteEntityData is read-only.");
 	}
 
+	@Override
+	public void apply(ChangeBatch batch) {
+		throw new UnsupportedOperationException("RemoteEntityData is read-only.");
+	}
+
+	@Override
+	public EntityDataSnapshot snapshot() {
+		throw new UnsupportedOperationException("RemoteEntityData does not support snapshots.");
+	}
+
 	protected void entityChange(EntityChange change) {
 
 		for (RemoteEntitySet set : activeSets.values()) {
@@ -45,7 +45,9 @@ import com.simsilica.es.EntityId;
 import com.simsilica.es.Name;
 import com.simsilica.es.filter.AndFilter;
 import com.simsilica.es.filter.FieldFilter;
+import com.simsilica.es.filter.InFilter;
 import com.simsilica.es.filter.OrFilter;
+import com.simsilica.es.filter.RangeFilter;
 
 /**
  *
@@ -60,7 +62,7 @@ public class EntitySerializers {
 
 	private static final Class[] forced = {
 			// Some standard Zay-ES classes
-			EntityId.class, CreatedBy.class, Name.class, FieldFilter.class, OrFilter.class, AndFilter.class };
+			EntityId.class, CreatedBy.class, Name.class, FieldFilter.class, OrFilter.class, AndFilter.class, RangeFilter.class, InFilter.class };
 
 	public static void initialize() {
 		Serializer.registerClass(Class.class, new ClassSerializer());
@@ -36,23 +36,30 @@
 
 package com.simsilica.es.server;
 
+import com.simsilica.es.ChangeBatch;
+import com.simsilica.es.ChangePublisher;
 import com.simsilica.es.ComponentFilter;
 import com.simsilica.es.Entity;
 import com.simsilica.es.EntityChange;
 import com.simsilica.es.EntityComponent;
 import com.simsilica.es.EntityComponentListener;
 import com.simsilica.es.EntityData;
+import com.simsilica.es.EntityDataSnapshot;
 import com.simsilica.es.EntityId;
 import com.simsilica.es.EntitySet;
 import com.simsilica.es.ObservableEntityData;
+import com.simsilica.es.OverflowPolicy;
 import com.simsilica.es.StringIndex;
 import com.simsilica.es.WatchedEntity;
+import com.simsilica.es.base.ChangeRouter;
+import com.simsilica.es.base.DefaultChangePublisher;
 import com.simsilica.es.base.DefaultEntitySet;
 import com.simsilica.es.base.DefaultWatchedEntity;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -75,8 +82,7 @@ public class EntityDataWrapper implements ObservableEntityData {
     private final ObservableEntityData delegate;
     private final ChangeObserver listener = new ChangeObserver();
     
-    private final List<LocalEntitySet> entitySets = new CopyOnWriteArrayList<LocalEntitySet>();
-    private final List<EntityComponentListener> entityListeners = new CopyOnWriteArrayList<EntityComponentListener>();      
+    private final ChangeRouter changeRouter = new ChangeRouter();
 
     private final ConcurrentLinkedQueue<EntityChange> changes = new ConcurrentLinkedQueue<>();
     
@@ -118,6 +124,11 @@ public class EntityDataWrapper implements ObservableEntityData {
         return delegate.removeComponent(entityId, type);
     }
 
+    @Override
+    public void apply( ChangeBatch batch ) {
+        delegate.apply(batch);
+    }
+
     @Override
     public <T extends EntityComponent> T getComponent( EntityId entityId, Class<T> type ) {
         return delegate.getComponent(entityId, type);
@@ -139,6 +150,11 @@ public class EntityDataWrapper implements ObservableEntityData {
         return delegate.findEntities(filter, types);
     }
 
+    @Override
+    public int count(ComponentFilter filter, Class... types) {
+        return delegate.count(filter, types);
+    }
+
     @Override
     public EntitySet getEntities( Class... types ) {
         return getEntities(null, types);
@@ -148,13 +164,23 @@ public class EntityDataWrapper implements ObservableEntityData {
     public EntitySet getEntities( ComponentFilter filter, Class... types ) {
         LocalEntitySet result = new LocalEntitySet(this, filter, types);
         result.loadEntities(false);
-        entitySets.add(result);
+        changeRouter.addEntitySet(result);
         return result;   
     }
 
     @Override
     public WatchedEntity watchEntity( EntityId entityId, Class... types ) {
-        return new DefaultWatchedEntity(this, entityId, types);
+        return new LocalWatchedEntity(this, entityId, types);
+    }
+
+    /**
+     *  Returns a snapshot of the wrapped EntityData.  Note that this 
+     *  is the delegate's current state and not the state of this wrapper's 
+     *  not-yet-applied views.
+     */
+    @Override
+    public EntityDataSnapshot snapshot() {
+        return delegate.snapshot();
     }
 
     @Override
@@ -164,12 +190,27 @@ public class EntityDataWrapper implements ObservableEntityData {
 
     @Override
     public void addEntityComponentListener( EntityComponentListener l ) {
-        entityListeners.add(l);
+        changeRouter.addListener(l);
+    }
+    
+    @Override
+    public void addEntityComponentListener( EntityComponentListener l, Class... types ) {
+        changeRouter.addListener(l, types);
     }
     
     @Override
     public void removeEntityComponentListener( EntityComponentListener l ) {
-        entityListeners.remove(l);
+        changeRouter.removeListener(l);
+    }
+ 
+    /**
+     *  Publishes the changes as this wrapper's own listeners see them,
+     *  that is, as they are applied by the update thread.
+     */   
+    @Override
+    public ChangePublisher createChangePublisher( ComponentFilter filter, OverflowPolicy policy, 
+                                                  int bufferSize, Class... types ) {
+        return new DefaultChangePublisher(this, ForkJoinPool.commonPool(), filter, policy, bufferSize, types);
     }
     
     @Override
@@ -191,23 +232,30 @@ public class EntityDataWrapper implements ObservableEntityData {
         if( changes.isEmpty() )
             return false;
 
+        List<EntityChange> applied = new ArrayList<>();
         EntityChange change;
         while( (change = changes.poll()) != null ) {
-            updates.add(change);
-            entityChange(change);      
+            applied.add(change);
         }
+        updates.addAll(applied);
+        entityChanges(applied);
         return true;                
     }
 
     protected void entityChange( EntityChange change ) {
-    
-        for( EntityComponentListener l : entityListeners ) {
-            l.componentChange(change);
+        changeRouter.dispatch(change);
+    }
+ 
+    /**
+     *  Dispatches all of the drained changes in one pass so that each
+     *  local entity set queues them as a single unit.
+     */   
+    protected void entityChanges( List<EntityChange> applied ) {
+        if( applied.size() == 1 ) {
+            entityChange(applied.get(0));
+            return;
         }
-    
-        for( LocalEntitySet set : entitySets ) {
-            set.entityChange(change);
-        }       
+        changeRouter.dispatch(applied);
     }
 
     /**
@@ -247,11 +295,32 @@ public class EntityDataWrapper implements ObservableEntityData {
     
         @Override
         public void release() {
-            entitySets.remove(this);
+            changeRouter.removeEntitySet(this);
             super.release();
         }
     }
     
+    /**
+     *  A local DefaultWatchedEntity that registers with our router
+     *  so that it only receives changes for its own entity.
+     */
+    protected class LocalWatchedEntity extends DefaultWatchedEntity {
+    
+        public LocalWatchedEntity( EntityData ed, EntityId id, Class[] types ) {
+            super(ed, id, types);
+        }
+        
+        @Override
+        protected void startWatching() {
+            changeRouter.addWatchedEntity(this);
+        }
+        
+        @Override
+        protected void stopWatching() {
+            changeRouter.removeWatchedEntity(this);
+        }
+    }
+    
     private class ChangeObserver implements EntityComponentListener {
 
         @Override
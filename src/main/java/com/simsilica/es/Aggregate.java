@@ -0,0 +1,130 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+
+/**
+ *  An immutable count/sum/min/max summary over one numeric component
+ *  field, as returned by AggregateView and EntityData aggregate queries.
+ *  Like SQL aggregates, entities whose field value is null are included
+ *  in the count but not in the sum, min, or max.  Min and max are NaN
+ *  when there are no values.
+ *
+ *  @author    Paul Speed
+ */
+public final class Aggregate {
+
+    public static final Aggregate EMPTY = new Aggregate(0, 0, 0, Double.NaN, Double.NaN); 
+
+    private final long count;
+    private final long valueCount;
+    private final double sum;
+    private final double min;
+    private final double max;
+    
+    public Aggregate( long count, long valueCount, double sum, double min, double max ) {
+        this.count = count;
+        this.valueCount = valueCount;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+ 
+    /**
+     *  Returns the number of entities that matched.
+     */   
+    public long getCount() {
+        return count;
+    }
+ 
+    /**
+     *  Returns the number of matching entities that had a non-null
+     *  value for the aggregated field.
+     */   
+    public long getValueCount() {
+        return valueCount;
+    }
+    
+    public double getSum() {
+        return sum;
+    }
+    
+    public double getMin() {
+        return min;
+    }
+    
+    public double getMax() {
+        return max;
+    }
+ 
+    /**
+     *  Returns sum/valueCount or NaN if there were no values.
+     */   
+    public double getAverage() {
+        return valueCount == 0 ? Double.NaN : sum / valueCount;
+    }
+    
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
+            return true;
+        }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
+        }
+        Aggregate other = (Aggregate)o;
+        return count == other.count && valueCount == other.valueCount
+               && Double.compare(sum, other.sum) == 0
+               && Double.compare(min, other.min) == 0
+               && Double.compare(max, other.max) == 0;
+    }
+    
+    @Override
+    public int hashCode() {
+        long bits = count * 31 + valueCount;
+        bits = bits * 31 + Double.doubleToLongBits(sum);
+        bits = bits * 31 + Double.doubleToLongBits(min);
+        bits = bits * 31 + Double.doubleToLongBits(max);
+        return (int)(bits ^ (bits >>> 32));
+    }
+ 
+    @Override
+    public String toString() {
+        return "Aggregate[count=" + count + ", values=" + valueCount + ", sum=" + sum 
+                + ", min=" + min + ", max=" + max + "]";
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+import java.util.Map;
+
+
+/**
+ *  A live count/sum/min/max over one numeric field of the entities
+ *  matching a filter, optionally grouped by the value of another field.
+ *  The view is kept up to date from the EntityData's change stream
+ *  without holding any Entity objects or component values.  Like
+ *  EntitySet, pending changes are only folded in when applyChanges()
+ *  is called and the view must be released when no longer needed.
+ *
+ *  @author    Paul Speed
+ */
+public interface AggregateView {
+
+    /**
+     *  Applies any changes that have accumulated since the last call
+     *  and returns true if any aggregate value changed.
+     */
+    public boolean applyChanges();
+ 
+    /**
+     *  Returns the aggregate over all matching entities regardless
+     *  of group.
+     */   
+    public Aggregate getTotal();
+ 
+    /**
+     *  Returns the aggregate for the specified group value or 
+     *  Aggregate.EMPTY if there are no matching entities in that group.
+     *  For ungrouped views the only group is null.
+     */   
+    public Aggregate getAggregate( Object group );
+ 
+    /**
+     *  Returns an unmodifiable copy of the current aggregate values
+     *  keyed by group value.
+     */   
+    public Map<Object, Aggregate> getAggregates();
+    
+    public void release();
+}
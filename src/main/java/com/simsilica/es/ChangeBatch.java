@@ -0,0 +1,170 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ *  Collects a set of component writes that are applied to an EntityData 
+ *  together with EntityData.apply().  Implementations can then write the 
+ *  components in one pass and deliver the resulting changes to each 
+ *  interested EntitySet all at once instead of one change at a time.
+ *  For example, spawning many entities:
+ *  <pre>
+ *  ChangeBatch batch = new ChangeBatch();
+ *  for( ... ) {
+ *      EntityId id = ed.createEntity();
+ *      batch.setComponents(id, new Position(...), new ModelInfo(...));
+ *  }
+ *  ed.apply(batch);
+ *  </pre>
+ *
+ *  <p>Operations are applied in the order they were added.  A ChangeBatch
+ *  is not thread safe and is not cleared by apply() so it can be reused
+ *  after calling clear().</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ChangeBatch {
+
+    /**
+     *  Each operation is kept as the EntityChange it would produce.
+     *  A change with no component type is an entity removal.
+     */
+    private final List<EntityChange> changes;
+    
+    public ChangeBatch() {
+        this.changes = new ArrayList<EntityChange>();
+    }
+    
+    public ChangeBatch( int initialSize ) {
+        this.changes = new ArrayList<EntityChange>(initialSize);
+    }
+    
+    public ChangeBatch setComponent( EntityId entityId, EntityComponent component ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
+        }
+        if( component == null ) {
+            throw new IllegalArgumentException("Component cannot be null.");
+        }
+        changes.add(new EntityChange(entityId, component));
+        return this;
+    }
+    
+    public ChangeBatch setComponents( EntityId entityId, EntityComponent... components ) {
+        for( EntityComponent c : components ) {
+            setComponent(entityId, c);
+        }
+        return this;
+    }
+    
+    public ChangeBatch removeComponent( EntityId entityId, Class type ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
+        }
+        if( type == null ) {
+            throw new IllegalArgumentException("Type cannot be null.");
+        }
+        changes.add(new EntityChange(entityId, type));
+        return this;
+    }
+    
+    public ChangeBatch removeEntity( EntityId entityId ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
+        }
+        changes.add(new EntityChange(entityId, null, null));
+        return this;
+    }
+ 
+    /**
+     *  Returns true if the specified operation from getChanges() is 
+     *  an entity removal rather than a component set or remove.
+     */   
+    public static boolean isEntityRemoval( EntityChange change ) {
+        return change.getComponentType() == null;
+    }
+ 
+    /**
+     *  Returns the operations in this batch in the order that they were
+     *  added.  Component sets have a component, component removes have
+     *  only a type, and entity removals have neither.
+     *
+     *  @see #isEntityRemoval(EntityChange) 
+     */   
+    public List<EntityChange> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+ 
+    public int size() {
+        return changes.size();
+    }
+ 
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+    
+    public void clear() {
+        changes.clear();
+    }
+ 
+    /**
+     *  Applies the operations in this batch one at a time using
+     *  the regular EntityData methods.  This is for EntityData implementations
+     *  that have no better way to apply a batch.
+     */   
+    public void applyTo( EntityData ed ) {
+        for( EntityChange change : changes ) {
+            if( isEntityRemoval(change) ) {
+                ed.removeEntity(change.getEntityId());
+            } else if( change.getComponent() == null ) {
+                ed.removeComponent(change.getEntityId(), change.getComponentType());
+            } else {
+                ed.setComponent(change.getEntityId(), change.getComponent());
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ChangeBatch[" + changes.size() + " changes]";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+
+/**
+ *  Reactive-streams style interfaces for demand-driven change streams.
+ *  These mirror java.util.concurrent.Flow method for method so that a
+ *  Flow adapter is trivial, but they are declared here because Zay-ES
+ *  targets Java 8 and java.util.concurrent.Flow was only added in Java 9.
+ *
+ *  <p>The contract is the same as Flow's: a Subscriber receives exactly
+ *  one onSubscribe() followed by at most as many onNext() calls as it has
+ *  requested through its Subscription, and then at most one of onError()
+ *  or onComplete().  Signals to a given Subscriber are never concurrent.</p>
+ *
+ *  @author    Paul Speed
+ */
+public final class ChangeFlow {
+
+    private ChangeFlow() {
+    }
+
+    public interface Publisher<T> {
+        public void subscribe( Subscriber<? super T> subscriber );
+    }
+
+    public interface Subscriber<T> {
+        public void onSubscribe( Subscription subscription );
+        public void onNext( T item );
+        public void onError( Throwable error );
+        public void onComplete();
+    }
+    
+    public interface Subscription {
+        /**
+         *  Adds n to the number of items the Subscriber is ready to receive.
+         *  n must be positive.  Long.MAX_VALUE means unbounded.
+         */
+        public void request( long n );
+        
+        public void cancel();
+    }
+}
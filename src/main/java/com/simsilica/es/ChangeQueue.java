@@ -49,7 +49,7 @@ public class ChangeQueue extends ConcurrentLinkedQueue<EntityChange> {
     public ChangeQueue( ObservableEntityData parent, Class... types ) {
         this.parent = parent;
         this.listener = new QueueChangeListener(types);
-        parent.addEntityComponentListener(listener);
+        parent.addEntityComponentListener(listener, types);
     }
 
     protected EntityComponentListener getListener() {
@@ -0,0 +1,163 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *  Global registry that gives each component type a small dense
+ *  int ID the first time it is seen.  The IDs can be used as bit
+ *  indexes and array indexes in place of Class-keyed maps and scans.
+ *  The lookup from Class to ID goes through a ClassValue and so does not 
+ *  lock or hash after the first time.
+ *
+ *  <p>IDs are only valid for the life of the JVM and are handed out in
+ *  the order that types are first used.  They should never be persisted
+ *  or sent over the network.</p>
+ *
+ *  @author    Paul Speed
+ */
+public final class ComponentTypes {
+
+    /**
+     *  The ID returned for a null type, for example the type of an
+     *  entity removal in a ChangeBatch.
+     */
+    public static final int NO_TYPE = -1;
+
+    private static final Object lock = new Object();
+    private static final Map<Class, Integer> registered = new HashMap<Class, Integer>();
+    private static volatile Class[] types = new Class[32];
+    private static volatile int count;
+    
+    private static final ClassValue<Integer> ids = new ClassValue<Integer>() {
+            @Override
+            protected Integer computeValue( Class<?> type ) {
+                return register(type);
+            }
+        };
+
+    private ComponentTypes() {
+    }
+
+    private static Integer register( Class type ) {
+        // ClassValue may compute the same type more than once
+        // if threads race so the map makes sure it only gets one ID
+        synchronized( lock ) {
+            Integer result = registered.get(type);
+            if( result != null ) {
+                return result;
+            }
+            int id = count;
+            Class[] array = types;
+            if( id >= array.length ) {
+                Class[] grown = new Class[array.length * 2];
+                System.arraycopy(array, 0, grown, 0, array.length);
+                array = grown;
+            }
+            array[id] = type;
+            types = array;
+            count = id + 1;
+            result = id;
+            registered.put(type, result);
+            return result;
+        }
+    }
+
+    /**
+     *  Returns the ID of the specified type, assigning one if the type
+     *  has not been seen yet.  Returns NO_TYPE for a null type.
+     */
+    public static int getId( Class type ) {
+        if( type == null ) {
+            return NO_TYPE;
+        }
+        return ids.get(type);
+    }
+
+    /**
+     *  Returns the type with the specified ID or null if no type has 
+     *  been given that ID.
+     */
+    public static Class getType( int id ) {
+        if( id < 0 || id >= count ) {
+            return null;
+        }
+        return types[id];
+    }
+
+    /**
+     *  Returns the number of types that have been given IDs so far.  All
+     *  IDs are less than this value.
+     */
+    public static int getTypeCount() {
+        return count;
+    }
+
+    /**
+     *  Returns a bit mask with the bits for the specified types set.
+     */
+    public static long[] toMask( Class... types ) {
+        int max = -1;
+        int[] typeIds = new int[types.length];
+        for( int i = 0; i < types.length; i++ ) {
+            typeIds[i] = getId(types[i]);
+            max = Math.max(max, typeIds[i]);
+        }
+        long[] mask = new long[(max >>> 6) + 1];
+        for( int id : typeIds ) {
+            if( id >= 0 ) {
+                mask[id >>> 6] |= 1L << id;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     *  Returns true if the bit for the specified type ID is set 
+     *  in the mask.
+     */
+    public static boolean isSet( long[] mask, int id ) {
+        if( id < 0 ) {
+            return false;
+        }
+        int word = id >>> 6;
+        return mask != null && word < mask.length && (mask[word] & (1L << id)) != 0;
+    }
+}
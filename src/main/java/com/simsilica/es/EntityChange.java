@@ -50,10 +50,12 @@ public class EntityChange {
     private EntityId entityId;
     private EntityComponent component;
     private Class type;
+    private int typeId;
         
     public EntityChange( EntityId entityId, Class type, EntityComponent component ) {
         this.entityId = entityId;
         this.type = component == null ? type : component.getClass();
+        this.typeId = ComponentTypes.getId(this.type);
         this.component = component;
     }
         
@@ -72,6 +74,14 @@ public class EntityChange {
     public Class getComponentType() {
         return type;
     }
+ 
+    /**
+     *  Returns the ComponentTypes ID of the component type or 
+     *  ComponentTypes.NO_TYPE if there is no type.
+     */
+    public int getComponentTypeId() {
+        return typeId;
+    }
         
     public EntityComponent getComponent() {
         return component;
@@ -51,16 +51,46 @@ public interface EntityData {
     public void setComponents( EntityId entityId, EntityComponent... components );
     public boolean removeComponent( EntityId entityId, Class type );
     
+    /**
+     *  Applies all of the operations in the specified batch.  Implementations
+     *  may deliver the resulting changes to each interested EntitySet and
+     *  listener as one unit.  The default implementation applies the operations
+     *  one at a time in order.
+     */
+    public default void apply( ChangeBatch batch ) {
+        batch.applyTo(this);
+    }
+    
     public <T extends EntityComponent> T getComponent( EntityId entityId, Class<T> type );
     
     public Entity getEntity( EntityId entityId, Class... types );
     public EntityId findEntity( ComponentFilter filter, Class... types );
     public Set<EntityId> findEntities( ComponentFilter filter, Class... types );
+ 
+    /**
+     *  Returns the number of entities that have all of the specified
+     *  types and match the filter.  This is the same as findEntities(...).size()
+     *  but implementations can avoid building the result set.  The default
+     *  implementation returns findEntities(filter, types).size().
+     */   
+    public default int count( ComponentFilter filter, Class... types ) {
+        return findEntities(filter, types).size();
+    }
     
     public EntitySet getEntities( Class... types );
     public EntitySet getEntities( ComponentFilter filter, Class... types );
 
     public WatchedEntity watchEntity( EntityId entityId, Class... types );
+    
+    /**
+     *  Returns an immutable point-in-time view of this EntityData that
+     *  can be read from other threads while this EntityData continues
+     *  to change.  The returned snapshot must be released when no longer 
+     *  needed.  The default implementation throws UnsupportedOperationException.
+     */
+    public default EntityDataSnapshot snapshot() {
+        throw new UnsupportedOperationException("Snapshots are not supported by:" + getClass().getName());
+    }
 
     public StringIndex getStrings();
     
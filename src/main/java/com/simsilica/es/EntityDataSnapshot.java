@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+import java.util.Set;
+
+
+/**
+ *  An immutable, point-in-time, read-only view of an EntityData.
+ *  Component writes made after the snapshot was taken are not visible
+ *  through it.  A snapshot can be queried from any number of threads
+ *  at once without locking and without racing the threads that are
+ *  writing to the live EntityData.
+ *
+ *  <p>Snapshots must be released when no longer needed so that the
+ *  EntityData can stop keeping the old component values around for them.</p>
+ *
+ *  @author    Paul Speed
+ */
+public interface EntityDataSnapshot {
+
+    /**
+     *  Returns the version of the EntityData that this snapshot
+     *  represents.  Later snapshots have higher versions.
+     */
+    public long getVersion();
+    
+    public <T extends EntityComponent> T getComponent( EntityId entityId, Class<T> type );
+ 
+    /**
+     *  Returns the values of the specified component types for the
+     *  specified entity, in the same order as the types.  Missing components
+     *  are null.
+     */   
+    public EntityComponent[] getComponents( EntityId entityId, Class... types );
+    
+    public EntityId findEntity( ComponentFilter filter, Class... types );
+    public Set<EntityId> findEntities( ComponentFilter filter, Class... types );
+
+    /**
+     *  Releases this snapshot.  It should not be used after it
+     *  has been released.
+     */
+    public void release();
+    
+    public boolean isReleased();
+}
@@ -35,6 +35,8 @@
 package com.simsilica.es;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
 
 
 
@@ -132,5 +134,19 @@ public interface EntitySet extends Set<Entity> {
      *  that have the specified type of component.
      */ 
     public boolean hasType( Class type );
+ 
+    /**
+     *  Performs the specified action for each entity in this set,
+     *  splitting the work across the threads of a fork/join pool.  
+     *  Returns when every entity has been visited.  The set must not be
+     *  modified (by applyChanges() or otherwise) while the call is in
+     *  progress but the action can safely read the entities and the
+     *  entity data.  Writes to the entity data are allowed and will
+     *  show up on a later applyChanges() as usual.  The default 
+     *  implementation uses a parallel stream over this set's spliterator().
+     */
+    public default void parallelForEach( Consumer<? super Entity> action ) {
+        StreamSupport.stream(spliterator(), true).forEach(action);
+    }
 }
 
@@ -74,4 +74,60 @@ public class Filters {
     public static <T extends EntityComponent> ComponentFilter<T> and( Class<T> type, ComponentFilter<? extends T>... operands ) {
         return AndFilter.create( type, operands );    
     }    
+
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is equal to any of the 
+     *  specified values.  The value comparison is done with .equals().
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> fieldIn( Class<T> type, String field, Object... values ) {
+        return InFilter.create( type, field, values );
+    }
+
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is strictly less than the 
+     *  specified value.  Null field values never match.  Numbers of 
+     *  different types are compared by value.
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> lessThan( Class<T> type, String field, Object value ) {
+        return RangeFilter.create( type, field, null, false, value, false );
+    }
+    
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is less than or equal to the 
+     *  specified value.  Null field values never match.
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> lessThanOrEqual( Class<T> type, String field, Object value ) {
+        return RangeFilter.create( type, field, null, false, value, true );
+    }
+    
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is strictly greater than the 
+     *  specified value.  Null field values never match.
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> greaterThan( Class<T> type, String field, Object value ) {
+        return RangeFilter.create( type, field, value, false, null, false );
+    }
+    
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is greater than or equal to the 
+     *  specified value.  Null field values never match.
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> greaterThanOrEqual( Class<T> type, String field, Object value ) {
+        return RangeFilter.create( type, field, value, true, null, false );
+    }
+    
+    /**
+     *  Creates a ComponentFilter that returns true if the specified
+     *  field of the specified component type is within the specified range,
+     *  min inclusive and max exclusive: min &lt;= value &lt; max.  Null field 
+     *  values never match.
+     */
+    public static <T extends EntityComponent> ComponentFilter<T> between( Class<T> type, String field, Object min, Object max ) {
+        return RangeFilter.create( type, field, min, true, max, false );
+    }
 }
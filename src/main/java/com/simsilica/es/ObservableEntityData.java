@@ -45,5 +45,32 @@ package com.simsilica.es;
  */
 public interface ObservableEntityData extends EntityData {
     public void addEntityComponentListener( EntityComponentListener l );
+    
+    /**
+     *  Adds a listener that is only notified about changes to the
+     *  specified component types.  Implementations can use this to
+     *  avoid delivering irrelevant changes.  Calling this with no types 
+     *  is the same as calling addEntityComponentListener(l).  The default
+     *  implementation adds the listener for all changes.
+     */
+    public default void addEntityComponentListener( EntityComponentListener l, Class... types ) {
+        addEntityComponentListener(l);
+    }
+    
     public void removeEntityComponentListener( EntityComponentListener l );
+ 
+    /**
+     *  Creates a publisher of the changes to the specified component types.
+     *  If a filter is specified then only changes for entities matching it
+     *  are published, including the change that makes an entity stop matching.
+     *  Each subscriber gets its own buffer of bufferSize changes that is 
+     *  drained asynchronously as the subscriber requests them, and the policy 
+     *  determines what happens when a subscriber falls behind.  The publisher
+     *  must be closed when no longer needed.  The default implementation 
+     *  throws UnsupportedOperationException.
+     */   
+    public default ChangePublisher createChangePublisher( ComponentFilter filter, OverflowPolicy policy, 
+                                                          int bufferSize, Class... types ) {
+        throw new UnsupportedOperationException("Change publishers are not supported by:" + getClass().getName());
+    }
 }
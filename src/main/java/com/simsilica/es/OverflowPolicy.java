@@ -0,0 +1,70 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es;
+
+
+/**
+ *  Determines what a ChangePublisher does when a subscriber's buffer
+ *  is full because it is not requesting changes as fast as they are
+ *  produced.
+ *
+ *  @author    Paul Speed
+ */
+public enum OverflowPolicy {
+
+    /**
+     *  The oldest buffered change is discarded to make room.  Suitable
+     *  for subscribers that only care about recent activity.
+     */
+    DROP_OLDEST,
+    
+    /**
+     *  A newer change to the same entity and component type replaces the
+     *  buffered one in its place in the queue, so the subscriber only sees
+     *  the latest value.  This is done for every change, not just on overflow.
+     *  If the buffer is still full of changes to distinct components then 
+     *  the subscriber is resynced as with RESYNC.
+     */
+    COALESCE,
+    
+    /**
+     *  The buffer is discarded and the subscriber receives onError() with a
+     *  ChangeOverflowException.  The subscriber should subscribe again and
+     *  then reload its state from the EntityData.
+     */
+    RESYNC
+}
@@ -0,0 +1,155 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ *  Base class for hi/lo style entity ID generators that reserve
+ *  ranges of IDs from some shared or persistent source and then hand
+ *  them out without going back to the source for every ID.
+ *
+ *  <p>Reserved ranges are split into smaller blocks that are handed out
+ *  to each thread.  A thread hands out IDs from its own block without 
+ *  any contention and only touches the shared range when the block runs 
+ *  out.  The source is only asked for a new range when the shared range 
+ *  runs out.  If the reserve size is not larger than the block size then
+ *  blocks are reserved from the source directly.</p>
+ *
+ *  <p>IDs are unique but not strictly sequential across threads.  The 
+ *  unused part of a thread's block is lost when the thread goes away and 
+ *  the unused part of the shared range is lost on shutdown, so there 
+ *  will be gaps.  No monitors are held while handing out IDs.</p>
+ *
+ *  @author    Paul Speed
+ */
+public abstract class BlockEntityIdGenerator implements EntityIdGenerator {
+
+    private final int reserveSize;
+    private final int blockSize;
+    private final AtomicReference<Range> shared = new AtomicReference<Range>(new Range(0, 0));
+    private final ReentrantLock reserveLock = new ReentrantLock();
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+            @Override
+            protected Block initialValue() {
+                return new Block();
+            }
+        };
+
+    protected BlockEntityIdGenerator( int reserveSize, int blockSize ) {
+        if( blockSize < 1 ) {
+            throw new IllegalArgumentException("Block size must be at least 1:" + blockSize);
+        }
+        this.reserveSize = Math.max(reserveSize, blockSize);
+        this.blockSize = blockSize;
+    }
+
+    public int getReserveSize() {
+        return reserveSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     *  Reserves the specified number of IDs from the underlying source
+     *  and returns the first one.  The IDs from the returned value up to
+     *  but not including the returned value + size must never be handed
+     *  out again.  This may be called from multiple threads at once
+     *  unless the reserve size is larger than the block size.
+     */
+    protected abstract long reserve( int size );
+
+    @Override
+    public long nextEntityId() {
+        Block block = blocks.get();
+        if( block.next == block.end ) {
+            nextBlock(block);
+        }
+        return block.next++;
+    }
+
+    private void nextBlock( Block block ) {
+        if( reserveSize == blockSize ) {
+            block.next = reserve(blockSize);
+            block.end = block.next + blockSize;
+            return;
+        }
+        while( true ) {
+            Range range = shared.get();
+            if( range.next < range.end ) {
+                long end = Math.min(range.next + blockSize, range.end);
+                if( shared.compareAndSet(range, new Range(end, range.end)) ) {
+                    block.next = range.next;
+                    block.end = end;
+                    return;
+                }
+                continue;
+            }
+            
+            // Only one thread refills the shared range.  The others
+            // will wait here and then take from the new one.
+            reserveLock.lock();
+            try {
+                if( shared.get() == range ) {
+                    long first = reserve(reserveSize);
+                    shared.set(new Range(first, first + reserveSize));
+                }
+            } finally {
+                reserveLock.unlock();
+            }
+        }
+    }
+
+    private static class Range {
+        final long next;
+        final long end;
+        
+        public Range( long next, long end ) {
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    private static class Block {
+        long next;
+        long end;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A fixed size ring of pre-allocated change slots that any number of
+ *  writers can publish component changes to and any number of readers
+ *  can read in place, each at their own pace using their own Cursor.
+ *  Publishing a change does not allocate anything and readers never
+ *  hold up writers.
+ *
+ *  <p>Writers claim a sequence number and fill in the slot for it.
+ *  Each slot carries the sequence it currently holds and a marker while
+ *  it is being written so that a reader can tell if a slot has not been 
+ *  published yet or if it has already been overwritten by a writer that 
+ *  has lapped the reader.  A reader that has been lapped has lost changes 
+ *  and is told so, at which point it must recover some other way, for example
+ *  by requerying.</p> 
+ *
+ *  <p>A group of changes can be published as one batch of consecutive
+ *  sequences.  Every slot of a batch records where the batch ends and 
+ *  readers only read a batch once all of it has been published, so a 
+ *  reader never sees part of a batch.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ChangeRing {
+
+    private static final long WRITING = 1L << 62;
+    
+    /**
+     *  Returned by Cursor.read() when changes were overwritten before 
+     *  they could be read.
+     */
+    public static final int OVERRUN = -1;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    
+    public ChangeRing( int capacity ) {
+        if( capacity < 2 ) {
+            throw new IllegalArgumentException("Capacity must be at least 2:" + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for( int i = 0; i < size; i++ ) {
+            // Start each slot one lap behind so that it doesn't look 
+            // published.
+            slots[i] = new Slot(i - size);
+        }
+    }
+ 
+    public int getCapacity() {
+        return slots.length;
+    }
+    
+    /**
+     *  Returns the sequence that the next published change will get.
+     */
+    public long getNextSequence() {
+        return next.get();
+    }
+ 
+    /**
+     *  Publishes a change to the ring and returns its sequence.  A null
+     *  component means the component of the specified type was removed.
+     */   
+    public long publish( EntityId entityId, Class type, EntityComponent component ) {
+        long seq = next.getAndIncrement();
+        write(seq, entityId, type, component, seq + 1);
+        return seq;
+    }
+ 
+    /**
+     *  Publishes the changes as one batch that readers will either read
+     *  all of or none of, and returns the sequence of the first one.  A
+     *  batch larger than the capacity overruns every reader.
+     */   
+    public long publish( List<EntityChange> changes ) {
+        int size = changes.size();
+        long first = next.getAndAdd(size);
+        long end = first + size;
+        for( int i = 0; i < size; i++ ) {
+            EntityChange change = changes.get(i);
+            write(first + i, change.getEntityId(), change.getComponentType(), change.getComponent(), end);
+        }
+        return first;
+    }
+    
+    private void write( long seq, EntityId entityId, Class type, EntityComponent component, long batchEnd ) {
+        Slot slot = slots[(int)seq & mask];
+        
+        // A writer a whole lap behind us may not have filled in this 
+        // slot yet.  Very unlikely but we have to wait our turn.
+        long previous = seq - slots.length;
+        while( slot.sequence != previous ) {
+            Thread.yield();
+        }
+        
+        slot.sequence = seq | WRITING;
+        slot.entityId = entityId;
+        slot.type = type;
+        slot.component = component;
+        slot.batchEnd = batchEnd;
+        slot.sequence = seq;
+    }
+ 
+    /**
+     *  Creates a cursor that will read the changes published from
+     *  now on.
+     */   
+    public Cursor newCursor() {
+        return new Cursor(next.get());
+    }
+    
+    /**
+     *  Receives changes read from a ChangeRing.  The values are only valid
+     *  for the duration of the call.
+     */
+    public interface Reader {
+        public void read( EntityId entityId, Class type, EntityComponent component );
+    }
+ 
+    /**
+     *  One reader's position in the ring.  A cursor should only be
+     *  used from one thread at a time.
+     */   
+    public class Cursor {
+        private long sequence;
+        
+        protected Cursor( long sequence ) {
+            this.sequence = sequence;
+        }
+        
+        public long getSequence() {
+            return sequence;
+        }
+ 
+        /**
+         *  Returns the number of published changes that have not been
+         *  read yet, which may be more than the capacity if this cursor
+         *  has been lapped.
+         */       
+        public long getBacklog() {
+            return Math.max(0, next.get() - sequence);
+        }
+ 
+        /**
+         *  Moves this cursor to the newest change, skipping anything
+         *  that hasn't been read.
+         */       
+        public void skipToEnd() {
+            sequence = next.get();
+        }
+ 
+        /**
+         *  Delivers all of the changes published since the last read to the
+         *  specified reader, in order, and returns how many there were.  
+         *  A batch that is still being published is left for a later read.
+         *  Returns OVERRUN if changes have been overwritten before they could 
+         *  be read.  In that case, the cursor is moved to the newest change
+         *  and the caller must assume that it missed changes.   
+         */       
+        public int read( Reader reader ) {
+            int count = 0;
+            
+            // The end of the batch that is known to be fully published
+            long complete = sequence;
+            while( true ) {
+                Slot slot = slots[(int)sequence & mask];
+                long before = slot.sequence;
+                if( before != sequence ) {
+                    long held = before & ~WRITING;
+                    if( before >= 0 && held > sequence ) {
+                        // Lapped
+                        skipToEnd();
+                        return OVERRUN;
+                    }
+                    // Not published yet
+                    return count;
+                }
+                EntityId entityId = slot.entityId;
+                Class type = slot.type;
+                EntityComponent component = slot.component;
+                long batchEnd = slot.batchEnd;
+                if( slot.sequence != sequence ) {
+                    // Overwritten while we were reading it
+                    skipToEnd();
+                    return OVERRUN;
+                }
+                if( batchEnd > complete ) {
+                    // The start of a batch so make sure all of it is there
+                    // before delivering any of it
+                    int state = checkPublished(sequence + 1, batchEnd);
+                    if( state == OVERRUN ) {
+                        skipToEnd();
+                        return OVERRUN;
+                    }
+                    if( state != 0 ) {
+                        return count;
+                    }
+                    complete = batchEnd;
+                }
+                reader.read(entityId, type, component);
+                sequence++;
+                count++;
+            }
+        }
+ 
+        /**
+         *  Returns 0 if all of the sequences from start up to end are 
+         *  published, OVERRUN if any were already overwritten, and 1 if
+         *  some are not published yet.
+         */       
+        private int checkPublished( long start, long end ) {
+            for( long seq = start; seq < end; seq++ ) {
+                long held = slots[(int)seq & mask].sequence;
+                if( held == seq ) {
+                    continue;
+                }
+                if( held >= 0 && (held & ~WRITING) > seq ) {
+                    return OVERRUN;
+                }
+                return 1;
+            }
+            return 0;
+        }
+    }
+ 
+    /**
+     *  Everything is volatile so that reading the values between the
+     *  two sequence checks is ordered with respect to them.
+     */   
+    private static final class Slot {
+        volatile long sequence;
+        volatile EntityId entityId;
+        volatile Class type;
+        volatile EntityComponent component;
+        volatile long batchEnd;
+        
+        Slot( long sequence ) {
+            this.sequence = sequence;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ChangeRing[capacity=" + slots.length + ", next=" + next.get() + "]";
+    }
+}
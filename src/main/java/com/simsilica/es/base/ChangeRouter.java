@@ -0,0 +1,379 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentTypes;
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityComponentListener;
+import com.simsilica.es.EntityId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *  Keeps track of the entity sets and listeners that are interested
+ *  in particular component types so that an EntityChange is only delivered
+ *  to the sets and listeners that declared its type.  Registering and
+ *  releasing an entity set only touches the routes for that set's own
+ *  types.
+ *
+ *  <p>Listeners registered without types are global and will see every
+ *  change.  These are delivered first, in registration order.</p>
+ *
+ *  <p>Watched entities are kept by entity ID so that a change only 
+ *  reaches the watchers of the changed entity.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ChangeRouter {
+
+    private final ConcurrentMap<Class, Route> routes = new ConcurrentHashMap<Class, Route>();
+    
+    /**
+     *  The same routes indexed by ComponentTypes ID for dispatch.  Copied
+     *  on write since routes are only ever added.
+     */
+    private volatile Route[] routeTable = new Route[0];
+    private final List<EntityComponentListener> globalListeners = new CopyOnWriteArrayList<EntityComponentListener>();
+    private final AtomicInteger setCount = new AtomicInteger();
+    private volatile int ringCapacity;
+    
+    /**
+     *  Watched entities by the entity they watch.  Modified only while
+     *  synchronized on the map so that an emptied watcher set can be removed 
+     *  safely.
+     */
+    private final ConcurrentMap<EntityId, Set<DefaultWatchedEntity>> watchers 
+                = new ConcurrentHashMap<EntityId, Set<DefaultWatchedEntity>>();
+    private final AtomicInteger watcherCount = new AtomicInteger();
+    
+    public ChangeRouter() {
+    }
+
+    protected Route getRoute( Class type, boolean create ) {
+        Route result = routes.get(type);
+        if( result == null && create ) {
+            result = new Route();
+            Route existing = routes.putIfAbsent(type, result);
+            if( existing != null ) {
+                result = existing;
+            } else {
+                synchronized( routes ) {
+                    int id = ComponentTypes.getId(type);
+                    Route[] table = routeTable;
+                    Route[] copy = Arrays.copyOf(table, Math.max(table.length, id + 1));
+                    copy[id] = result;
+                    routeTable = copy;
+                }
+            }
+        }
+        return result;
+    }
+ 
+    protected Route getRoute( int typeId ) {
+        Route[] table = routeTable;
+        if( typeId < 0 || typeId >= table.length ) {
+            return null;
+        }
+        return table[typeId];
+    }
+ 
+    /**
+     *  Sets the capacity of the change rings used to deliver changes to
+     *  entity sets.  When this is greater than 0, a component type's
+     *  changes are published to a pre-allocated ChangeRing that the 
+     *  entity sets read in place instead of being queued on each set.  
+     *  This only affects component types that have no entity sets registered 
+     *  yet.  A set that falls more than a ring's capacity behind resyncs 
+     *  itself with a full requery.  Defaults to 0, no rings.
+     */   
+    public void setRingCapacity( int ringCapacity ) {
+        this.ringCapacity = ringCapacity;
+    }
+    
+    public int getRingCapacity() {
+        return ringCapacity;
+    }
+ 
+    public void addEntitySet( DefaultEntitySet set ) {
+        for( Class type : set.getTypes() ) {
+            Route route = getRoute(type, true);
+            synchronized( route ) {
+                // All of a route's sets must be read from the ring
+                // if it has one so it can only be added when there are
+                // no sets yet.
+                if( route.ring == null && ringCapacity > 0 && route.sets.isEmpty() ) {
+                    route.ring = new ChangeRing(ringCapacity);
+                }
+                if( route.ring != null ) {
+                    set.attachRing(route.ring);
+                }
+                route.sets.add(set);
+            }
+        }
+        setCount.incrementAndGet();
+    }
+    
+    public void removeEntitySet( DefaultEntitySet set ) {
+        boolean removed = false;
+        for( Class type : set.getTypes() ) {
+            Route route = getRoute(type, false);
+            if( route != null ) {
+                removed |= route.sets.remove(set);
+            }
+        }
+        if( removed ) {
+            setCount.decrementAndGet();
+        }
+    }
+ 
+    /**
+     *  Returns the number of entity sets currently registered.
+     */   
+    public int getEntitySetCount() {
+        return setCount.get();
+    }
+ 
+    /**
+     *  Adds a watched entity that will only be given the changes
+     *  for its own entity.
+     */   
+    public void addWatchedEntity( DefaultWatchedEntity watcher ) {
+        synchronized( watchers ) {
+            Set<DefaultWatchedEntity> set = watchers.get(watcher.getId());
+            if( set == null ) {
+                set = Collections.newSetFromMap(new ConcurrentHashMap<DefaultWatchedEntity, Boolean>(4));
+                watchers.put(watcher.getId(), set);
+            }
+            if( set.add(watcher) ) {
+                watcherCount.incrementAndGet();
+            }
+        }
+    }
+    
+    public void removeWatchedEntity( DefaultWatchedEntity watcher ) {
+        synchronized( watchers ) {
+            Set<DefaultWatchedEntity> set = watchers.get(watcher.getId());
+            if( set == null || !set.remove(watcher) ) {
+                return;
+            }
+            watcherCount.decrementAndGet();
+            if( set.isEmpty() ) {
+                watchers.remove(watcher.getId());
+            }
+        }
+    }
+ 
+    /**
+     *  Returns the number of watched entities currently registered.
+     */   
+    public int getWatchedEntityCount() {
+        return watcherCount.get();
+    }
+ 
+    private void dispatchToWatchers( EntityChange change ) {
+        if( watchers.isEmpty() ) {
+            return;
+        }
+        Set<DefaultWatchedEntity> set = watchers.get(change.getEntityId());
+        if( set == null ) {
+            return;
+        }
+        for( DefaultWatchedEntity watcher : set ) {
+            watcher.addChange(change);
+        }
+    }
+ 
+    /**
+     *  Adds a listener that will be notified about changes to the specified
+     *  component types.  If no types are specified then the listener will be
+     *  notified of all changes.
+     */   
+    public void addListener( EntityComponentListener l, Class... types ) {
+        if( types == null || types.length == 0 ) {
+            globalListeners.add(l);
+            return;
+        }
+        for( Class type : types ) {
+            getRoute(type, true).listeners.add(l);
+        }
+    }
+ 
+    /**
+     *  Removes the listener from all of the routes it was registered for.
+     */   
+    public void removeListener( EntityComponentListener l ) {
+        globalListeners.remove(l);
+        for( Route route : routes.values() ) {
+            route.listeners.remove(l);
+        }
+    }
+    
+    public void dispatch( EntityChange change ) {
+        dispatch(change, change.getEntityId(), change.getComponentType(), change.getComponent());
+    }
+ 
+    /**
+     *  Dispatches a change without creating an EntityChange unless some
+     *  listener, watched entity, or entity set without a change ring
+     *  needs one.  A null component means the component of the specified
+     *  type was removed.
+     */
+    public void dispatch( EntityId entityId, Class type, EntityComponent component ) {
+        dispatch(null, entityId, type, component);
+    }
+    
+    private void dispatch( EntityChange change, EntityId entityId, Class type, EntityComponent component ) {
+        if( !globalListeners.isEmpty() ) {
+            change = change != null ? change : new EntityChange(entityId, type, component);
+            for( EntityComponentListener l : globalListeners ) {
+                l.componentChange(change);
+            }
+        }
+        if( !watchers.isEmpty() && watchers.containsKey(entityId) ) {
+            change = change != null ? change : new EntityChange(entityId, type, component);
+            dispatchToWatchers(change);
+        }
+ 
+        Route route = getRoute(ComponentTypes.getId(type));
+        if( route == null ) {
+            return;
+        }
+        if( !route.listeners.isEmpty() ) {
+            change = change != null ? change : new EntityChange(entityId, type, component);
+            for( EntityComponentListener l : route.listeners ) {
+                l.componentChange(change);
+            }
+        }
+        if( route.sets.isEmpty() ) {
+            return;
+        }
+        ChangeRing ring = route.ring;
+        if( ring != null ) {
+            ring.publish(entityId, type, component);
+            return;
+        }
+        change = change != null ? change : new EntityChange(entityId, type, component);
+        for( DefaultEntitySet set : route.sets ) {
+            set.entityChange(change);
+        }
+    }
+ 
+    /**
+     *  Dispatches a group of changes in one pass.  Listeners are notified
+     *  of each change in order but each entity set is given all of its
+     *  relevant changes at once so that they can be queued as a single
+     *  unit.  Likewise, each change ring gets its changes published as one
+     *  batch that its readers read whole.  A set whose types are delivered
+     *  through more than one ring reads them one ring at a time, though, so
+     *  it may apply one ring's part of the group before the others.
+     */   
+    public void dispatch( List<EntityChange> changes ) {
+        Map<DefaultEntitySet, List<EntityChange>> perSet 
+                = new IdentityHashMap<DefaultEntitySet, List<EntityChange>>();
+        Map<ChangeRing, List<EntityChange>> perRing = null;
+        for( EntityChange change : changes ) {
+            for( EntityComponentListener l : globalListeners ) {
+                l.componentChange(change);
+            }
+            dispatchToWatchers(change);
+            
+            Route route = getRoute(change.getComponentTypeId());
+            if( route == null ) {
+                continue;
+            }
+            for( EntityComponentListener l : route.listeners ) {
+                l.componentChange(change);
+            }
+            ChangeRing ring = route.ring;
+            if( ring != null ) {
+                if( !route.sets.isEmpty() ) {
+                    if( perRing == null ) {
+                        perRing = new IdentityHashMap<ChangeRing, List<EntityChange>>();
+                    }
+                    List<EntityChange> list = perRing.get(ring);
+                    if( list == null ) {
+                        list = new ArrayList<EntityChange>();
+                        perRing.put(ring, list);
+                    }
+                    list.add(change);
+                }
+                continue;
+            }
+            for( DefaultEntitySet set : route.sets ) {
+                List<EntityChange> list = perSet.get(set);
+                if( list == null ) {
+                    list = new ArrayList<EntityChange>();
+                    perSet.put(set, list);
+                }
+                list.add(change);
+            }
+        }
+        
+        if( perRing != null ) {
+            for( Map.Entry<ChangeRing, List<EntityChange>> e : perRing.entrySet() ) {
+                e.getKey().publish(e.getValue());
+            }
+        }
+        for( Map.Entry<DefaultEntitySet, List<EntityChange>> e : perSet.entrySet() ) {
+            e.getKey().entityChanges(e.getValue());
+        }
+    }
+ 
+    /**
+     *  The sets and listeners for one component type.  Concurrent
+     *  hash-based sets so that add/remove is constant time and
+     *  iteration during dispatch never blocks or copies.
+     */   
+    protected static class Route {
+        volatile ChangeRing ring;
+        final Set<DefaultEntitySet> sets 
+                = Collections.newSetFromMap(new ConcurrentHashMap<DefaultEntitySet, Boolean>());
+        final Set<EntityComponentListener> listeners 
+                = Collections.newSetFromMap(new ConcurrentHashMap<EntityComponentListener, Boolean>());
+    }
+}
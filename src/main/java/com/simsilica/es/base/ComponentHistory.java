@@ -0,0 +1,381 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ *  Keeps the overwritten component values that open snapshots still
+ *  need so that the live component handlers can continue to be modified
+ *  in place.  Taking a snapshot only records the current version.  While
+ *  snapshots are open, each write first records the value it is about to 
+ *  replace along with the version of the write.  A snapshot at version v 
+ *  then sees the oldest recorded value written after v or the live value 
+ *  if there isn't one.  
+ *
+ *  <p>While snapshots are open, writers share a read lock that a new snapshot 
+ *  briefly takes exclusively so that a snapshot never sees half of a write, 
+ *  or half of a batch.  When no snapshots are open nothing is recorded and
+ *  writers do not touch the lock at all.  They only flag their own thread's
+ *  slot as writing so that a snapshot being opened can wait for the writes 
+ *  that were already in progress without being recorded.</p>
+ *
+ *  <p>Readers must read the live value first and then the history
+ *  because writers record the history first and then write the live 
+ *  value.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ComponentHistory {
+
+    private final AtomicLong version = new AtomicLong();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     *  Open snapshot versions mapped to the number of snapshots open
+     *  at that version.  Guarded by the write lock.
+     */
+    private final ConcurrentSkipListMap<Long, Integer> open = new ConcurrentSkipListMap<Long, Integer>();
+    private volatile boolean recording;
+    
+    private final ConcurrentMap<Class, ConcurrentMap<EntityId, Revision>> history 
+                = new ConcurrentHashMap<Class, ConcurrentMap<EntityId, Revision>>();
+ 
+    /**
+     *  The per-thread write state of every thread that has written
+     *  so that open() can find the writes in progress.
+     */               
+    private final ConcurrentLinkedQueue<Writer> writers = new ConcurrentLinkedQueue<Writer>();
+    private final ThreadLocal<Writer> writer = new ThreadLocal<Writer>() {
+            @Override
+            protected Writer initialValue() {
+                Writer result = new Writer(Thread.currentThread());
+                writers.add(result);
+                return result;
+            }
+        };
+    
+    public ComponentHistory() {
+    }
+ 
+    /**
+     *  Called before writing to any component handler.  Must be followed
+     *  by a call to endWrite().  Calls can be nested.
+     */   
+    public void beginWrite() {
+        Writer w = writer.get();
+        if( w.depth++ > 0 ) {
+            // The outermost call already decided for the whole write
+            return;
+        }
+        
+        // Flag the write before checking for snapshots.  open() sets
+        // recording before checking the flags so at least one of us 
+        // sees the other.        
+        w.active = true;
+        if( recording ) {
+            // Snapshots are open or opening so take the slow path
+            w.active = false;
+            lock.readLock().lock();
+            w.locked = true;
+        }
+    }
+    
+    public void endWrite() {
+        Writer w = writer.get();
+        if( --w.depth > 0 ) {
+            return;
+        }
+        if( w.locked ) {
+            w.locked = false;
+            lock.readLock().unlock();
+        } else {
+            w.active = false;
+        }
+    }
+ 
+    /**
+     *  Returns true if writers need to record the values they are
+     *  about to overwrite.
+     */   
+    public boolean isRecording() {
+        return recording;
+    }
+ 
+    /**
+     *  Records the value that the specified entity had for the specified
+     *  type before the write that is about to happen.  Must be called 
+     *  between beginWrite() and endWrite() and before the live value
+     *  is changed.
+     */   
+    public void record( EntityId entityId, Class type, EntityComponent previous ) {
+        long v = version.incrementAndGet();
+        ConcurrentMap<EntityId, Revision> revisions = getRevisions(type, true);
+        while( true ) {
+            Revision head = revisions.get(entityId);
+            Revision rev = new Revision(v, previous, head);
+            if( head == null ) {
+                if( revisions.putIfAbsent(entityId, rev) == null ) {
+                    return;
+                }
+            } else if( revisions.replace(entityId, head, rev) ) {
+                return;
+            }
+        }
+    }
+ 
+    /**
+     *  Opens a new snapshot and returns its version.
+     */   
+    public long open() {
+        lock.writeLock().lock();
+        try {
+            // New writes will now record and wait for the lock but writes 
+            // that started before can't see us, so wait for those.
+            recording = true;
+            awaitUnrecordedWrites();
+            
+            long v = version.get();
+            Integer count = open.get(v);
+            open.put(v, count == null ? 1 : count + 1);
+            return v;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+ 
+    /**
+     *  Closes a snapshot previously opened at the specified version
+     *  and drops any recorded values that no open snapshot can see 
+     *  anymore.
+     */   
+    public void close( long snapshotVersion ) {
+        lock.writeLock().lock();
+        try {
+            Integer count = open.get(snapshotVersion);
+            if( count == null ) {
+                return;
+            }
+            if( count > 1 ) {
+                open.put(snapshotVersion, count - 1);
+                return;
+            }
+            open.remove(snapshotVersion);
+            if( open.isEmpty() ) {
+                recording = false;
+                history.clear();
+                return;
+            }
+            prune(open.firstKey());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+ 
+    /**
+     *  Waits for the writes that started without recording to finish and
+     *  forgets the writers whose threads are gone.  Must be called with the
+     *  write lock held after setting recording.
+     */   
+    private void awaitUnrecordedWrites() {
+        for( Iterator<Writer> it = writers.iterator(); it.hasNext(); ) {
+            Writer w = it.next();
+            while( w.active ) {
+                Thread.yield();
+            }
+            if( w.thread.get() == null ) {
+                it.remove();
+            }
+        }
+    }
+ 
+    /**
+     *  Returns the number of snapshots currently open.
+     */   
+    public int getOpenCount() {
+        int result = 0;
+        for( Integer i : open.values() ) {
+            result += i;
+        }
+        return result;
+    }
+ 
+    /**
+     *  Drops all revisions that were written at or before the specified
+     *  version since no open snapshot can see them.
+     */   
+    private void prune( long oldestOpen ) {
+        for( ConcurrentMap<EntityId, Revision> revisions : history.values() ) {
+            for( Iterator<Map.Entry<EntityId, Revision>> it = revisions.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<EntityId, Revision> e = it.next();
+                Revision kept = e.getValue().newerThan(oldestOpen);
+                if( kept == null ) {
+                    it.remove();
+                } else if( kept != e.getValue() ) {
+                    e.setValue(kept);
+                }
+            }
+        }
+    }
+ 
+    protected ConcurrentMap<EntityId, Revision> getRevisions( Class type, boolean create ) {
+        ConcurrentMap<EntityId, Revision> result = history.get(type);
+        if( result == null && create ) {
+            result = new ConcurrentHashMap<EntityId, Revision>();
+            ConcurrentMap<EntityId, Revision> existing = history.putIfAbsent(type, result);
+            if( existing != null ) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+ 
+    /**
+     *  Returns the revision that the specified snapshot version should 
+     *  see for the specified entity and type or null if the live value
+     *  should be used.
+     */   
+    public Revision getRevision( long snapshotVersion, EntityId entityId, Class type ) {
+        ConcurrentMap<EntityId, Revision> revisions = getRevisions(type, false);
+        if( revisions == null ) {
+            return null;
+        }
+        Revision result = null;
+        for( Revision rev = revisions.get(entityId); rev != null && rev.version > snapshotVersion; rev = rev.older ) {
+            result = rev;
+        }
+        return result;
+    }
+    
+    /**
+     *  Returns the IDs of the entities that have recorded values for
+     *  the specified type.  The result is a live view. 
+     */
+    public Set<EntityId> getChangedIds( Class type ) {
+        ConcurrentMap<EntityId, Revision> revisions = getRevisions(type, false);
+        if( revisions == null ) {
+            return Collections.emptySet();
+        }
+        return revisions.keySet();
+    }
+ 
+    /**
+     *  The write state of one thread.  Only the owning thread writes
+     *  to it.
+     */
+    private static final class Writer {
+        final WeakReference<Thread> thread;
+        int depth;
+        boolean locked;
+        volatile boolean active;
+        
+        Writer( Thread thread ) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+    }
+ 
+    /**
+     *  An immutable record of the value a component had before the 
+     *  write at 'version'.  Revisions for the same entity and type are
+     *  chained newest first.
+     */   
+    public static final class Revision {
+        final long version;
+        final EntityComponent value;
+        final Revision older;
+        
+        Revision( long version, EntityComponent value, Revision older ) {
+            this.version = version;
+            this.value = value;
+            this.older = older;
+        }
+        
+        public EntityComponent getValue() {
+            return value;
+        }
+        
+        /**
+         *  Returns a chain with only the revisions newer than the specified 
+         *  version, sharing the original revisions when possible.
+         */
+        Revision newerThan( long v ) {
+            // Chains are newest first so find the last revision to keep.
+            // Done iteratively because chains can get long while a 
+            // snapshot is held open.
+            int count = 0;
+            Revision last = null;
+            for( Revision rev = this; rev != null && rev.version > v; rev = rev.older ) {
+                last = rev;
+                count++;
+            }
+            if( last == null ) {
+                return null;
+            }
+            if( last.older == null ) {
+                // Nothing to drop so the whole chain can be shared
+                return this;
+            }
+            
+            // Copy the kept revisions from oldest to newest
+            Revision[] kept = new Revision[count];
+            Revision rev = this;
+            for( int i = 0; i < count; i++ ) {
+                kept[i] = rev;
+                rev = rev.older;
+            }
+            Revision result = null;
+            for( int i = count - 1; i >= 0; i-- ) {
+                result = new Revision(kept[i].version, kept[i].value, result);
+            }
+            return result;
+        }
+    }
+}
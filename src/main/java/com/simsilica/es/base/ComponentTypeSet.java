@@ -0,0 +1,115 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentTypes;
+import java.util.Arrays;
+
+
+/**
+ *  An immutable set of component types that answers membership
+ *  with a bit mask test and position lookups with an array index
+ *  using the global IDs from ComponentTypes.  Entity sets, entities,
+ *  and watched entities use this instead of scanning their Class arrays.
+ *
+ *  @author    Paul Speed
+ */
+public class ComponentTypeSet {
+
+    private final Class[] types;
+    private final long[] mask;
+    private final int[] positions;
+    
+    public ComponentTypeSet( Class... types ) {
+        this.types = types;
+        this.mask = ComponentTypes.toMask(types);
+        
+        int max = -1;
+        for( Class type : types ) {
+            max = Math.max(max, ComponentTypes.getId(type));
+        }
+        this.positions = new int[max + 1];
+        Arrays.fill(positions, -1);
+        for( int i = types.length - 1; i >= 0; i-- ) {
+            // Backwards so that the first of any duplicates wins
+            int id = ComponentTypes.getId(types[i]);
+            if( id >= 0 ) {
+                positions[id] = i;
+            }
+        }
+    }
+ 
+    /**
+     *  Returns the types in their original order.  The array must not
+     *  be modified.
+     */
+    public Class[] getTypes() {
+        return types;
+    }
+    
+    public int size() {
+        return types.length;
+    }
+ 
+    public boolean contains( Class type ) {
+        return ComponentTypes.isSet(mask, ComponentTypes.getId(type));
+    }
+    
+    public boolean contains( int typeId ) {
+        return ComponentTypes.isSet(mask, typeId);
+    }
+ 
+    /**
+     *  Returns the position of the specified type in the original type
+     *  array or -1 if this set does not contain the type.
+     */
+    public int indexOf( Class type ) {
+        return indexOf(ComponentTypes.getId(type));
+    }
+    
+    public int indexOf( int typeId ) {
+        if( typeId < 0 || typeId >= positions.length ) {
+            return -1;
+        }
+        return positions[typeId];
+    }
+ 
+    @Override
+    public String toString() {
+        return "ComponentTypeSet" + Arrays.asList(types);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.simsilica.es.Aggregate;
+import com.simsilica.es.AggregateView;
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityComponentListener;
+import com.simsilica.es.EntityData;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.ObservableEntityData;
+
+
+/**
+ *  AggregateView implementation that keeps per-group running totals
+ *  up to date from an ObservableEntityData's change stream.  For each
+ *  matching entity only its group key and field value are kept, never 
+ *  the components themselves.  Changed entities are queued by the listener
+ *  and re-evaluated against the filter and required types during 
+ *  applyChanges().
+ *
+ *  <p>Sums over integral fields are kept as longs so that repeated adds
+ *  and removes do not drift.  Min and max are kept in a sorted multiset
+ *  of values so that they stay correct when the current extreme is 
+ *  removed.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class DefaultAggregateView implements AggregateView {
+
+    private final ObservableEntityData ed;
+    private final ComponentFilter filter;
+    private final Class type;
+    private final Class[] types;
+    private final Field field;
+    private final Field groupField;
+    private final boolean integral;
+    
+    private final ChangeProcessor listener = new ChangeProcessor();
+    private final ConcurrentLinkedQueue<EntityId> pending = new ConcurrentLinkedQueue<EntityId>();
+    
+    private final Map<EntityId, Entry> entries = new HashMap<EntityId, Entry>();
+    private final Map<Object, Accumulator> groups = new HashMap<Object, Accumulator>();
+    private final Accumulator total;
+    private volatile boolean released;
+
+    /**
+     *  Creates a view over the specified field of the specified type 
+     *  for all entities that have the type and all of the other types 
+     *  and match the filter.  The field may be null to only count entities.
+     *  The groupField, also a field of 'type', may be null to keep only 
+     *  a single ungrouped aggregate.
+     */
+    public DefaultAggregateView( ObservableEntityData ed, ComponentFilter filter, Class type, 
+                                 String field, String groupField, Class... types ) {
+        this.ed = ed;
+        this.filter = filter;
+        this.type = type;
+        this.types = collectTypes(filter, type, types);
+        this.field = field == null ? null : lookupField(type, field, true);
+        this.groupField = groupField == null ? null : lookupField(type, groupField, false);
+        this.integral = this.field != null && isIntegral(this.field.getType()); 
+        this.total = new Accumulator(integral);
+        
+        // Start listening before the initial load so that nothing
+        // that changes in between is missed.  Anything queued is simply
+        // re-evaluated on the first applyChanges().
+        ed.addEntityComponentListener(listener, this.types);
+        for( EntityId id : ed.findEntities(filter, this.types) ) {
+            EntityComponent c = ed.getComponent(id, type);
+            if( c == null ) {
+                continue;
+            }
+            Entry e = createEntry(c);
+            entries.put(id, e);
+            add(e);
+        }
+    }
+
+    /**
+     *  Returns the distinct set of types an entity must have to be included
+     *  in an aggregate: the aggregated type, the other types, and the filter's
+     *  type.
+     */
+    public static Class[] collectTypes( ComponentFilter filter, Class type, Class... types ) {
+        Set<Class> set = new LinkedHashSet<Class>();
+        set.add(type);
+        if( types != null ) {
+            Collections.addAll(set, types);
+        }
+        if( filter != null ) {
+            set.add(filter.getComponentType());
+        }
+        return set.toArray(new Class[set.size()]);
+    }
+
+    protected static Field lookupField( Class type, String name, boolean numeric ) {
+        Field f;
+        try {
+            f = type.getDeclaredField(name);
+        } catch( NoSuchFieldException e ) {
+            throw new IllegalArgumentException("Field not found:" + name + " on type:" + type, e);
+        }
+        if( numeric && !isNumeric(f.getType()) ) {
+            throw new IllegalArgumentException("Field is not numeric:" + f);
+        }
+        f.setAccessible(true);
+        return f;
+    }
+    
+    protected static boolean isNumeric( Class c ) {
+        if( c.isPrimitive() ) {
+            return c != Boolean.TYPE && c != Character.TYPE;
+        }
+        return Number.class.isAssignableFrom(c);
+    }
+    
+    protected static boolean isIntegral( Class c ) {
+        return c == Long.TYPE || c == Integer.TYPE || c == Short.TYPE || c == Byte.TYPE
+            || c == Long.class || c == Integer.class || c == Short.class || c == Byte.class;
+    }
+    
+    protected static Object readField( Field f, EntityComponent c ) {
+        try {
+            return f.get(c);
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException("Error retrieving field[" + f + "] of:" + c, e);
+        }
+    }
+ 
+    /**
+     *  Calculates the aggregates over the specified field for an already 
+     *  resolved set of entities without creating a live view.  Used by
+     *  EntityData implementations that cannot do better.
+     */   
+    public static Map<Object, Aggregate> aggregate( EntityData ed, Set<EntityId> ids, Class type,
+                                                    String field, String groupField ) {
+        Field f = field == null ? null : lookupField(type, field, true);
+        Field g = groupField == null ? null : lookupField(type, groupField, false);
+        boolean integral = f != null && isIntegral(f.getType());
+        
+        Map<Object, Accumulator> groups = new HashMap<Object, Accumulator>();
+        for( EntityId id : ids ) {
+            EntityComponent c = ed.getComponent(id, type);
+            if( c == null ) {
+                continue;
+            }
+            Object key = g == null ? null : readField(g, c);
+            Accumulator acc = groups.get(key);
+            if( acc == null ) {
+                acc = new Accumulator(integral);
+                groups.put(key, acc);
+            }
+            acc.add(f == null ? null : (Number)readField(f, c));
+        }
+        return toAggregates(groups);
+    }
+    
+    protected static Map<Object, Aggregate> toAggregates( Map<Object, Accumulator> groups ) {
+        Map<Object, Aggregate> result = new LinkedHashMap<Object, Aggregate>();
+        for( Map.Entry<Object, Accumulator> e : groups.entrySet() ) {
+            result.put(e.getKey(), e.getValue().toAggregate());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+    
+    protected Entry createEntry( EntityComponent c ) {
+        Object key = groupField == null ? null : readField(groupField, c);
+        Number value = field == null ? null : (Number)readField(field, c);
+        return new Entry(key, value);
+    }
+    
+    protected void add( Entry e ) {
+        total.add(e.value);
+        Accumulator acc = groups.get(e.group);
+        if( acc == null ) {
+            acc = new Accumulator(integral);
+            groups.put(e.group, acc);
+        }
+        acc.add(e.value);
+    }
+    
+    protected void remove( Entry e ) {
+        total.remove(e.value);
+        Accumulator acc = groups.get(e.group);
+        acc.remove(e.value);
+        if( acc.count == 0 ) {
+            groups.remove(e.group);
+        }
+    }
+ 
+    /**
+     *  Returns the component of the aggregated type if the entity
+     *  currently has all of the required types and passes the filter,
+     *  else null.
+     */   
+    protected EntityComponent match( EntityId id ) {
+        EntityComponent result = null;
+        Class filterType = filter == null ? null : filter.getComponentType();
+        for( Class t : types ) {
+            EntityComponent c = ed.getComponent(id, t);
+            if( c == null ) {
+                return null;
+            }
+            if( t == filterType && !filter.evaluate(c) ) {
+                return null;
+            }
+            if( t == type ) {
+                result = c;
+            }
+        }
+        return result;
+    } 
+ 
+    protected boolean update( EntityId id ) {
+        EntityComponent c = match(id);
+        Entry old = entries.get(id);
+        if( c == null ) {
+            if( old == null ) {
+                return false;
+            }
+            entries.remove(id);
+            remove(old);
+            return true;
+        }
+        
+        Entry e = createEntry(c);
+        if( old != null ) {
+            if( old.equals(e) ) {
+                return false;
+            }
+            remove(old);
+        }
+        entries.put(id, e);
+        add(e);
+        return true;
+    }
+
+    @Override
+    public boolean applyChanges() {
+        if( pending.isEmpty() ) {
+            return false;
+        }
+        
+        // An entity may have been queued once per changed component
+        // so only look at each one once.
+        Set<EntityId> changed = new LinkedHashSet<EntityId>();
+        EntityId id;
+        while( (id = pending.poll()) != null ) {
+            changed.add(id);
+        }
+        
+        boolean result = false;
+        for( EntityId e : changed ) {
+            result |= update(e);
+        }
+        return result;
+    }
+
+    @Override
+    public Aggregate getTotal() {
+        return total.toAggregate();
+    }
+
+    @Override
+    public Aggregate getAggregate( Object group ) {
+        Accumulator acc = groups.get(group);
+        return acc == null ? Aggregate.EMPTY : acc.toAggregate();
+    }
+
+    @Override
+    public Map<Object, Aggregate> getAggregates() {
+        return toAggregates(groups);
+    }
+    
+    /**
+     *  Returns the number of entities currently included in this view.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void release() {
+        if( released ) {
+            return;
+        }
+        released = true;
+        ed.removeEntityComponentListener(listener);
+        pending.clear();
+    }
+    
+    public boolean isReleased() {
+        return released;
+    }
+    
+    @Override
+    public String toString() {
+        return "DefaultAggregateView[type=" + type.getSimpleName() + ", field=" + field
+                + ", groupField=" + groupField + ", filter=" + filter + ", size=" + entries.size() + "]";
+    }
+
+    protected static class Entry {
+        final Object group;
+        final Number value;
+        
+        public Entry( Object group, Number value ) {
+            this.group = group;
+            this.value = value;
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( !(o instanceof Entry) ) {
+                return false;
+            }
+            Entry other = (Entry)o;
+            return (group == null ? other.group == null : group.equals(other.group))
+                && (value == null ? other.value == null : value.equals(other.value));
+        }
+        
+        @Override
+        public int hashCode() {
+            return (group == null ? 0 : group.hashCode()) * 31 + (value == null ? 0 : value.hashCode());
+        }
+    }
+
+    /**
+     *  Running count/sum/min/max that supports removal.
+     */
+    protected static class Accumulator {
+        private final boolean integral;
+        private long count;
+        private long valueCount;
+        private long longSum;
+        private double doubleSum;
+        private final TreeMap<Double, int[]> values = new TreeMap<Double, int[]>();
+        
+        public Accumulator( boolean integral ) {
+            this.integral = integral;
+        }
+        
+        public void add( Number value ) {
+            count++;
+            if( value == null ) {
+                return;
+            }
+            valueCount++;
+            if( integral ) {
+                longSum += value.longValue();
+            } else {
+                doubleSum += value.doubleValue();
+            }
+            Double key = value.doubleValue();
+            int[] refs = values.get(key);
+            if( refs == null ) {
+                values.put(key, new int[] { 1 });
+            } else {
+                refs[0]++;
+            }
+        }
+        
+        public void remove( Number value ) {
+            count--;
+            if( value == null ) {
+                return;
+            }
+            valueCount--;
+            if( integral ) {
+                longSum -= value.longValue();
+            } else {
+                doubleSum -= value.doubleValue();
+            }
+            Double key = value.doubleValue();
+            int[] refs = values.get(key);
+            if( refs != null && --refs[0] == 0 ) {
+                values.remove(key);
+            }
+            if( valueCount == 0 ) {
+                // Reset any accumulated rounding error
+                doubleSum = 0;
+            }
+        }
+        
+        public Aggregate toAggregate() {
+            if( count == 0 ) {
+                return Aggregate.EMPTY;
+            }
+            double sum = integral ? longSum : doubleSum;
+            if( values.isEmpty() ) {
+                return new Aggregate(count, valueCount, sum, Double.NaN, Double.NaN);
+            }
+            return new Aggregate(count, valueCount, sum, values.firstKey(), values.lastKey());
+        }
+    }
+    
+    private class ChangeProcessor implements EntityComponentListener {
+        @Override
+        public void componentChange( EntityChange change ) {
+            if( released ) {
+                return;
+            }
+            pending.add(change.getEntityId());
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.simsilica.es.ChangeFlow;
+import com.simsilica.es.ChangeOverflowException;
+import com.simsilica.es.ChangePublisher;
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityComponentListener;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.ObservableEntityData;
+import com.simsilica.es.OverflowPolicy;
+
+
+/**
+ *  ChangePublisher implementation that listens to an ObservableEntityData
+ *  and fans changes out to per-subscriber bounded buffers.  The listener
+ *  only ever appends to buffers, so writers are never blocked by a
+ *  subscriber.  Each subscription drains its buffer on the executor as
+ *  demand allows, with at most one drain running per subscription at a time.
+ *
+ *  <p>When a filter is specified, the publisher tracks which entities
+ *  currently match it.  Changes to the filtered type are delivered when the 
+ *  entity matches before or after the change, so subscribers also see the
+ *  change that makes an entity leave.  Changes to the other types are only
+ *  delivered for matching entities.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class DefaultChangePublisher implements ChangePublisher {
+
+    static Logger log = Logger.getLogger(DefaultChangePublisher.class.getName());
+
+    private final ObservableEntityData ed;
+    private final ComponentFilter filter;
+    private final Class[] types;
+    private final OverflowPolicy policy;
+    private final int bufferSize;
+    private final Executor executor;
+    private final ChangeProcessor listener = new ChangeProcessor();
+    private final Set<EntityId> matching;
+    private final CopyOnWriteArrayList<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<ChangeSubscription>();
+    private volatile boolean closed;
+    
+    public DefaultChangePublisher( ObservableEntityData ed, Executor executor, ComponentFilter filter,
+                                   OverflowPolicy policy, int bufferSize, Class... types ) {
+        if( bufferSize <= 0 ) {
+            throw new IllegalArgumentException("Buffer size must be positive:" + bufferSize);
+        }
+        if( policy == null ) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        this.ed = ed;
+        this.executor = executor;
+        this.filter = filter;
+        this.policy = policy;
+        this.bufferSize = bufferSize;
+        
+        Set<Class> set = new LinkedHashSet<Class>();
+        if( types != null ) {
+            Collections.addAll(set, types);
+        }
+        if( filter != null ) {
+            set.add(filter.getComponentType());
+        }
+        this.types = set.toArray(new Class[set.size()]);
+                
+        // Start listening before the initial query so that a change
+        // in between is not missed.
+        ed.addEntityComponentListener(listener, this.types);
+        if( filter != null ) {
+            this.matching = Collections.newSetFromMap(new ConcurrentHashMap<EntityId, Boolean>());
+            for( EntityId id : ed.findEntities(filter, filter.getComponentType()) ) {
+                matching.add(id);
+            }
+        } else {
+            this.matching = null;
+        }        
+    }
+
+    @Override
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+    
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+    
+    public ComponentFilter getFilter() {
+        return filter;
+    }
+    
+    public Class[] getTypes() {
+        return types.clone();
+    }
+    
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void subscribe( ChangeFlow.Subscriber<? super EntityChange> subscriber ) {
+        if( subscriber == null ) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+        ChangeSubscription sub = new ChangeSubscription(subscriber);
+        subscriber.onSubscribe(sub);
+        if( closed ) {
+            sub.terminate(new IllegalStateException("Publisher is closed"), false);
+            return;
+        }
+        subscriptions.add(sub);
+        if( closed ) {
+            // Lost a race with close()
+            sub.terminate(null, true);
+        }
+    }
+
+    @Override
+    public void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        ed.removeEntityComponentListener(listener);
+        for( ChangeSubscription sub : subscriptions ) {
+            sub.terminate(null, true);
+        }
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+ 
+    /**
+     *  Returns true if the change should be published and updates 
+     *  the matching set for changes to the filtered type.
+     */   
+    protected boolean accept( EntityChange change ) {
+        if( matching == null ) {
+            return true;
+        }
+        EntityId id = change.getEntityId();
+        if( change.getComponentType() != filter.getComponentType() ) {
+            return matching.contains(id);
+        }
+        EntityComponent c = change.getComponent();
+        if( c != null && filter.evaluate(c) ) {
+            matching.add(id);
+            return true;
+        }
+        return matching.remove(id);
+    }
+    
+    protected void publish( EntityChange change ) {
+        if( closed || !accept(change) ) {
+            return;
+        }
+        for( ChangeSubscription sub : subscriptions ) {
+            sub.offer(change);
+        }
+    }
+ 
+    @Override
+    public String toString() {
+        return "DefaultChangePublisher[filter=" + filter + ", policy=" + policy 
+                + ", bufferSize=" + bufferSize + ", subscribers=" + subscriptions.size() + "]";
+    }
+
+    private class ChangeProcessor implements EntityComponentListener {
+        @Override
+        public void componentChange( EntityChange change ) {
+            publish(change);
+        }
+    }
+
+    private static final class Key {
+        private final EntityId entityId;
+        private final Class type;
+        
+        public Key( EntityChange change ) {
+            this.entityId = change.getEntityId();
+            this.type = change.getComponentType();
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( !(o instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key)o;
+            return type == other.type && entityId.equals(other.entityId);
+        }
+        
+        @Override
+        public int hashCode() {
+            return entityId.hashCode() * 31 + type.hashCode();
+        }
+    }
+
+    /**
+     *  One subscriber's buffer and demand.  offer() is called on writer 
+     *  threads and only touches the buffer under this object's monitor.
+     *  Everything that calls the subscriber happens in run(), which the wip 
+     *  counter keeps to one executor thread at a time.
+     */
+    protected class ChangeSubscription implements ChangeFlow.Subscription, Runnable {
+        private final ChangeFlow.Subscriber<? super EntityChange> subscriber;
+        private final ArrayDeque<EntityChange> queue;
+        private final LinkedHashMap<Key, EntityChange> coalesced;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean cancelled;
+        
+        // Guarded by 'this'
+        private boolean done;
+        private Throwable error;
+        private boolean terminated;
+        
+        public ChangeSubscription( ChangeFlow.Subscriber<? super EntityChange> subscriber ) {
+            this.subscriber = subscriber;
+            if( policy == OverflowPolicy.COALESCE ) {
+                this.queue = null;
+                this.coalesced = new LinkedHashMap<Key, EntityChange>();
+            } else {
+                this.queue = new ArrayDeque<EntityChange>();
+                this.coalesced = null;
+            }
+        }
+ 
+        /**
+         *  Returns the number of changes that were discarded by the
+         *  DROP_OLDEST policy.
+         */   
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+        
+        protected void offer( EntityChange change ) {
+            synchronized( this ) {
+                if( done || cancelled ) {
+                    return;
+                }
+                if( coalesced != null ) {
+                    Key key = new Key(change);
+                    if( coalesced.size() < bufferSize || coalesced.containsKey(key) ) {
+                        coalesced.put(key, change);
+                    } else {
+                        overflow();
+                    }
+                } else if( queue.size() < bufferSize ) {
+                    queue.add(change);
+                } else if( policy == OverflowPolicy.DROP_OLDEST ) {
+                    queue.poll();
+                    queue.add(change);
+                    dropped.incrementAndGet();
+                } else {
+                    overflow();
+                }
+            }
+            schedule();
+        }
+        
+        private void overflow() {
+            clear();
+            done = true;
+            error = new ChangeOverflowException("Subscriber fell more than " + bufferSize 
+                                                + " changes behind and must resync");
+            subscriptions.remove(this);
+        }
+        
+        private void clear() {
+            if( coalesced != null ) {
+                coalesced.clear();
+            } else {
+                queue.clear();
+            }
+        }
+        
+        private synchronized EntityChange poll() {
+            if( coalesced != null ) {
+                Iterator<EntityChange> it = coalesced.values().iterator();
+                if( !it.hasNext() ) {
+                    return null;
+                }
+                EntityChange result = it.next();
+                it.remove();
+                return result;
+            }
+            return queue.poll();
+        }
+        
+        private synchronized boolean isEmpty() {
+            return coalesced != null ? coalesced.isEmpty() : queue.isEmpty();
+        }
+ 
+        /**
+         *  Ends the subscription with the specified error or, if it is null, 
+         *  with completion.  When drainFirst is true the changes already 
+         *  buffered are still delivered first.
+         */       
+        protected void terminate( Throwable t, boolean drainFirst ) {
+            synchronized( this ) {
+                if( done ) {
+                    return;
+                }
+                if( !drainFirst ) {
+                    clear();
+                }
+                done = true;
+                error = t;
+            }
+            subscriptions.remove(this);
+            schedule();
+        }
+        
+        @Override
+        public void request( long n ) {
+            if( n <= 0 ) {
+                terminate(new IllegalArgumentException("Request must be positive:" + n), false);
+                return;
+            }
+            for( ;; ) {
+                long current = requested.get();
+                long next = current + n;
+                if( next < 0 ) {
+                    next = Long.MAX_VALUE;
+                }
+                if( requested.compareAndSet(current, next) ) {
+                    break;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized( this ) {
+                clear();
+            }
+        }
+        
+        protected void schedule() {
+            if( wip.getAndIncrement() == 0 ) {
+                executor.execute(this);
+            }
+        }
+        
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while( missed != 0 );
+        }
+        
+        private void drain() {
+            if( terminated ) {
+                return;
+            }
+            long r = requested.get();
+            long sent = 0;
+            while( sent != r && !cancelled ) {
+                EntityChange change = poll();
+                if( change == null ) {
+                    break;
+                }
+                try {
+                    subscriber.onNext(change);
+                } catch( RuntimeException e ) {
+                    log.log(Level.WARNING, "Subscriber error, cancelling:" + subscriber, e);
+                    cancel();
+                    return;
+                }
+                sent++;
+            }
+            if( sent != 0 && r != Long.MAX_VALUE ) {
+                requested.addAndGet(-sent);
+            }
+            if( cancelled ) {
+                return;
+            }
+            
+            Throwable t;
+            synchronized( this ) {
+                // An error skips any remaining changes but completion
+                // waits for the buffer to drain.
+                if( !done || (error == null && !isEmpty()) ) {
+                    return;
+                }
+                t = error;
+            }
+            terminated = true;
+            if( t != null ) {
+                subscriber.onError(t);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
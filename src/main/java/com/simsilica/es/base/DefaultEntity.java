@@ -53,6 +53,7 @@ public class DefaultEntity implements Entity {
     private EntityComponent[] components;
 
     private Class[] types; // temporarily for validating component types
+    private ComponentTypeSet typeSet;
 
     public DefaultEntity( EntityData ed, EntityId id, 
                           EntityComponent[] components, Class[] types ) {
@@ -63,6 +64,17 @@ public class DefaultEntity implements Entity {
         
         validate();
     }
+ 
+    /**
+     *  Creates an entity that looks up its components by type ID
+     *  through the specified type set instead of scanning them.  The
+     *  type set is usually shared by all of the entities of an entity set.
+     */
+    public DefaultEntity( EntityData ed, EntityId id, 
+                          EntityComponent[] components, ComponentTypeSet typeSet ) {
+        this(ed, id, components, typeSet.getTypes());
+        this.typeSet = typeSet;
+    }
     
     protected void validate() {
         for( int i = 0; i < types.length; i++ ) {
@@ -105,6 +117,15 @@ public class DefaultEntity implements Entity {
     
     @Override
     public <T extends EntityComponent> T get( Class<T> type ) {
+        if( typeSet != null ) {
+            int i = typeSet.indexOf(type);
+            if( i < 0 ) {
+                return null;
+            }
+            // Could also be a transaction's removal marker
+            EntityComponent c = components[i];
+            return c != null && c.getClass() == type ? type.cast(c) : null;
+        }
         for( EntityComponent c : components ) {
             if( c != null && c.getClass() == type ) {
                 return type.cast(c);
@@ -115,7 +136,15 @@ public class DefaultEntity implements Entity {
      
     @Override
     public void set( EntityComponent c ) {
-    
+ 
+        if( typeSet != null ) {
+            int i = typeSet.indexOf(c.getClass());
+            if( i >= 0 ) {
+                ed.setComponent( getId(), c );
+                components[i] = c;
+                return;
+            }
+        }   
         for( int i = 0; i < components.length; i++ ) {        
             if( components[i].getClass().isInstance(c) ) {               
                 ed.setComponent( getId(), c );
@@ -34,14 +34,21 @@
 
 package com.simsilica.es.base;
 
+import com.simsilica.es.Aggregate;
+import com.simsilica.es.AggregateView;
+import com.simsilica.es.ChangeBatch;
+import com.simsilica.es.ChangePublisher;
 import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.ComponentTypes;
 import com.simsilica.es.Entity;
 import com.simsilica.es.EntityChange;
 import com.simsilica.es.EntityComponent;
 import com.simsilica.es.EntityComponentListener;
+import com.simsilica.es.EntityDataSnapshot;
 import com.simsilica.es.EntityId;
 import com.simsilica.es.EntitySet;
 import com.simsilica.es.ObservableEntityData;
+import com.simsilica.es.OverflowPolicy;
 import com.simsilica.es.StringIndex;
 import com.simsilica.es.WatchedEntity;
 import java.util.*;
@@ -57,15 +64,42 @@ import com.simsilica.util.Reporter;
 public class DefaultEntityData implements ObservableEntityData {
 
     private final Map<Class, ComponentHandler> handlers = new ConcurrentHashMap<Class, ComponentHandler>();    
+    
+    /**
+     *  The handlers indexed by ComponentTypes ID.  Copied on write
+     *  so that the lookup on every component access is just an array read.
+     */
+    private volatile ComponentHandler[] handlerTable = new ComponentHandler[0];
+    private final Map<Class, Map<String, Boolean>> indexedFields = new ConcurrentHashMap<Class, Map<String, Boolean>>();
     private EntityIdGenerator idGenerator;
+    private DenseEntityIdGenerator denseIds;
     private StringIndex stringIndex;
+    private boolean longKeyedHandlers;
+    private boolean coalescingEntitySets;
+    private volatile ForkJoinPool forkJoinPool;
+    private volatile SharedEntitySets sharedSets;
 
     /**
-     *  Keeps the unreleased entity sets so that we can give
-     *  them the change updates relevant to them.
+     *  Keeps the unreleased entity sets and the listeners organized
+     *  by component type so that we can give them only the change
+     *  updates relevant to them.
+     */
+    private final ChangeRouter changeRouter = new ChangeRouter();
+    
+    /**
+     *  Tracks which component types each entity has so that removeEntity()
+     *  only needs to visit those handlers.  Types whose handlers can hold
+     *  components we did not see being set (persistent or preregistered handlers) 
+     *  are kept in untrackedTypes and are always checked.
      */
-    private final List<DefaultEntitySet> entitySets = new CopyOnWriteArrayList<DefaultEntitySet>();         
-    private final List<EntityComponentListener> entityListeners = new CopyOnWriteArrayList<EntityComponentListener>();      
+    private final EntityTypeIndex typeIndex = new EntityTypeIndex();
+    private final Set<Class> untrackedTypes = new CopyOnWriteArraySet<Class>();
+    
+    /**
+     *  Keeps the overwritten component values that open snapshots
+     *  still need.
+     */
+    private final ComponentHistory history = new ComponentHistory();
     
     public DefaultEntityData() {
         this(new DefaultEntityIdGenerator());
@@ -73,7 +107,7 @@ public class DefaultEntityData implements ObservableEntityData {
     
     public DefaultEntityData( EntityIdGenerator idGenerator ) {    
         ReportSystem.registerCacheReporter(new EntitySetsReporter());
-        this.idGenerator = idGenerator;
+        setIdGenerator(idGenerator);
         
         // If we haven't been extended then go ahead and create a
         // default string index
@@ -84,6 +118,21 @@ public class DefaultEntityData implements ObservableEntityData {
     
     protected void setIdGenerator( EntityIdGenerator idGenerator ) {
         this.idGenerator = idGenerator;
+        if( idGenerator instanceof DenseEntityIdGenerator ) {
+            this.denseIds = (DenseEntityIdGenerator)idGenerator;
+        } else {
+            this.denseIds = null;
+        }
+    }
+ 
+    /**
+     *  Returns true if this entity data was created with a 
+     *  DenseEntityIdGenerator, in which case the IDs of removed entities
+     *  are recycled and new in-memory component types default to
+     *  DenseComponentHandlers.
+     */
+    public boolean isDenseEntityIds() {
+        return denseIds != null;
     }
 
     protected void setStringIndex( StringIndex stringIndex ) {
@@ -91,17 +140,214 @@ public class DefaultEntityData implements ObservableEntityData {
     }
 
     protected void registerComponentHandler( Class type, ComponentHandler handler ) {
-        handlers.put(type, handler);
+        // We can't know what the handler might already contain
+        untrackedTypes.add(type);
+        putHandler(type, handler);
+    }
+ 
+    private void putHandler( Class type, ComponentHandler handler ) {
+        synchronized( handlers ) {
+            handlers.put(type, handler);
+            int id = ComponentTypes.getId(type);
+            ComponentHandler[] table = handlerTable;
+            ComponentHandler[] copy = Arrays.copyOf(table, Math.max(table.length, id + 1));
+            copy[id] = handler;
+            handlerTable = copy;
+        }
+    }
+
+    /**
+     *  Registers a secondary hash index for the specified field of
+     *  the specified component type.  FieldFilters and InFilters on that field 
+     *  (and And/Or filters made of them) will then be resolved from the index 
+     *  instead of scanning every component.  Fields can also be indexed 
+     *  by annotating them with @Indexed.
+     *  If the type has already been used then the index is built from
+     *  the existing components but it is best to register indexes before
+     *  any components of that type have been set.
+     */
+    public void registerFieldIndex( Class<? extends EntityComponent> type, String field ) {
+        registerFieldIndex(type, field, false);
+    }
+    
+    /**
+     *  Registers a secondary index for the specified field of the specified
+     *  component type.  If ordered is true then the index is kept sorted
+     *  and can also resolve RangeFilters.  
+     *
+     *  @see #registerFieldIndex(Class, String)
+     */
+    public void registerFieldIndex( Class<? extends EntityComponent> type, String field, boolean ordered ) {
+        synchronized( this ) {
+            Map<String, Boolean> fields = indexedFields.get(type);
+            if( fields == null ) {
+                fields = new ConcurrentHashMap<String, Boolean>();
+                indexedFields.put(type, fields);
+            }
+            Boolean existing = fields.get(field);
+            fields.put(field, ordered || (existing != null && existing)); 
+        
+            ComponentHandler handler = handlers.get(type);
+            if( handler == null ) {
+                // The index will be created with the handler 
+                return;
+            }
+            if( !(handler instanceof IndexedComponentHandler) ) {
+                handler = new IndexedComponentHandler(handler, type);
+                putHandler(type, handler);
+            }
+            ((IndexedComponentHandler)handler).addIndex(field, ordered);
+        }
+    }
+ 
+    /**
+     *  Returns the fields that have been explicitly registered with
+     *  registerFieldIndex() for the specified type mapped to whether the 
+     *  index is ordered.
+     */   
+    protected Map<String, Boolean> getRegisteredFieldIndexes( Class type ) {
+        Map<String, Boolean> registered = indexedFields.get(type);
+        if( registered == null ) {
+            return Collections.emptyMap();
+        }
+        return registered;
+    }
+    
+    /**
+     *  Returns the fields of the specified type that should be indexed, either
+     *  because they were registered with registerFieldIndex() or because they
+     *  have the @Indexed annotation, mapped to whether the index should be 
+     *  ordered.
+     */
+    protected Map<String, Boolean> getIndexedFields( Class type ) {
+        Map<String, Boolean> results = IndexedComponentHandler.getIndexedFields(type);
+        for( Map.Entry<String, Boolean> e : getRegisteredFieldIndexes(type).entrySet() ) {
+            Boolean existing = results.get(e.getKey());
+            results.put(e.getKey(), e.getValue() || (existing != null && existing)); 
+        }
+        return results;
+    }
+
+    /**
+     *  Set to true to have lookupDefaultHandler() create LongMapComponentHandlers
+     *  instead of MapComponentHandlers for in-memory components.  These use
+     *  considerably less memory for component types with a large number of
+     *  entities.  This only affects handlers for component types that have
+     *  not been accessed yet.  Defaults to false.
+     */
+    public void setLongKeyedHandlers( boolean longKeyedHandlers ) {
+        this.longKeyedHandlers = longKeyedHandlers;
+    }
+    
+    public boolean isLongKeyedHandlers() {
+        return longKeyedHandlers;
+    }
+ 
+    /**
+     *  Sets the capacity of the pre-allocated change rings used to deliver
+     *  changes to entity sets.  When greater than 0, component changes
+     *  are published to a per-type ring that entity sets read in place during
+     *  applyChanges() instead of each set queuing its own EntityChange objects.  
+     *  An entity set that falls more than the ring's capacity behind will 
+     *  resync itself with a full requery on its next applyChanges().  This 
+     *  only affects component types that do not have entity sets yet so it 
+     *  should be set before any entity sets are created.  Defaults to 0, 
+     *  no rings.
+     */
+    public void setChangeRingCapacity( int capacity ) {
+        changeRouter.setRingCapacity(capacity);
+    }
+    
+    public int getChangeRingCapacity() {
+        return changeRouter.getRingCapacity();
+    }
+ 
+    /**
+     *  Set to true to have new entity sets keep only the latest pending
+     *  change per entity and component type.  This only affects entity
+     *  sets created after it is set.  Defaults to false.
+     *
+     *  @see DefaultEntitySet#setCoalescing(boolean)
+     */
+    public void setCoalescingEntitySets( boolean coalescingEntitySets ) {
+        this.coalescingEntitySets = coalescingEntitySets;
+    }
+    
+    public boolean isCoalescingEntitySets() {
+        return coalescingEntitySets;
+    }
+ 
+    /**
+     *  Sets the pool that new entity sets will use for parallelForEach().
+     *  If null then the common fork/join pool is used.  This only affects 
+     *  entity sets created after it is set.  Defaults to null.
+     *
+     *  @see DefaultEntitySet#setForkJoinPool(ForkJoinPool)
+     */
+    public void setForkJoinPool( ForkJoinPool pool ) {
+        this.forkJoinPool = pool;
+    }
+    
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+ 
+    /**
+     *  Set to true to have getEntities() return views of one shared
+     *  entity set for each distinct combination of types and filter instead
+     *  of a new entity set each time.  The shared set resolves changes once
+     *  for all of its views and is released when its last view is
+     *  released.  Filters are compared with equals().  Defaults to false.
+     *
+     *  @see SharedEntitySets
+     */
+    public void setSharedEntitySets( boolean shared ) {
+        synchronized( this ) {
+            if( shared && sharedSets == null ) {
+                sharedSets = new SharedEntitySets(this);
+            } else if( !shared ) {
+                // Existing views continue to work on their own
+                sharedSets = null;
+            }
+        }
+    }
+    
+    public boolean isSharedEntitySets() {
+        return sharedSets != null;
     }
  
     @Override
     public void addEntityComponentListener( EntityComponentListener l ) {
-        entityListeners.add(l);
+        changeRouter.addListener(l);
+    }
+    
+    @Override
+    public void addEntityComponentListener( EntityComponentListener l, Class... types ) {
+        changeRouter.addListener(l, types);
     }
     
     @Override
     public void removeEntityComponentListener( EntityComponentListener l ) {
-        entityListeners.remove(l);
+        changeRouter.removeListener(l);
+    }
+ 
+    /**
+     *  Creates a change publisher that delivers on this EntityData's 
+     *  ForkJoinPool if one was set, else the common pool.
+     */   
+    @Override
+    public ChangePublisher createChangePublisher( ComponentFilter filter, OverflowPolicy policy, 
+                                                  int bufferSize, Class... types ) {
+        ForkJoinPool pool = forkJoinPool;
+        if( pool == null ) {
+            pool = ForkJoinPool.commonPool();
+        }
+        return createChangePublisher(pool, filter, policy, bufferSize, types);
+    }
+    
+    public ChangePublisher createChangePublisher( Executor executor, ComponentFilter filter, 
+                                                  OverflowPolicy policy, int bufferSize, Class... types ) {
+        return new DefaultChangePublisher(this, executor, filter, policy, bufferSize, types);
     }
     
     @Override
@@ -115,34 +361,105 @@ public class DefaultEntityData implements ObservableEntityData {
 
     @Override
     public void removeEntity( EntityId entityId ) {
-        // Note: because we only add the ComponentHandlers when
-        // we encounter the component types... it's possible that
-        // the entity stays orphaned with a few components if we
-        // have never accessed any of them.  SqlEntityData should
-        // probably specifically be given types someday.  FIXME
-    
-        // Remove all of its components
-        for( Class c : handlers.keySet() ) {
-            removeComponent(entityId, c);
+        List<EntityChange> changes = new ArrayList<EntityChange>();
+        try {
+            history.beginWrite();
+            try {
+                removeEntity(entityId, changes);
+            } finally {
+                history.endWrite();
+            }
+        } finally {
+            entityChanges(changes);
+        }
+    }
+ 
+    /**
+     *  Removes all of the components of the specified entity and adds
+     *  a change to the list for each one that was actually removed.
+     */   
+    protected void removeEntity( EntityId entityId, List<EntityChange> changes ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
         }
+        // Remove only the components it actually has.  Since the type index
+        // is maintained by setComponent() itself, this also covers
+        // components of types whose handlers have only been touched by
+        // that entity.
+        for( Class c : typeIndex.getTypes(entityId) ) {
+            if( deleteComponent(entityId, c) ) {
+                changes.add(new EntityChange(entityId, c));
+            }
+        }
+        
+        // Handlers that might contain components we never saw being set have 
+        // to be asked directly.  Note: persistent component types that
+        // haven't been accessed at all since startup still have no handler
+        // and so an entity can be left with orphaned components of those
+        // types.  SqlEntityData should probably specifically be given 
+        // types someday.
+        for( Class c : untrackedTypes ) {
+            if( deleteComponent(entityId, c) ) {
+                changes.add(new EntityChange(entityId, c));
+            }
+        }
+        
+        if( denseIds != null ) {
+            // Everything is gone so the slot can be used again
+            denseIds.releaseEntityId(entityId.getId());
+        }
+    }
+ 
+    /**
+     *  Returns true if all components of the specified type will be set 
+     *  through this EntityData so that the per-entity type index can be 
+     *  relied upon for them.  Returns false for types whose handler
+     *  might already contain components when it is created, for example
+     *  because they are loaded from a database.  Default implementation 
+     *  returns true.
+     */
+    protected boolean isTypeTracked( Class type ) {
+        return true;
     }
 
     @Override
     public StringIndex getStrings() {
         return stringIndex;
     }
+ 
+    /**
+     *  Returns the component types that currently have a handler, whether
+     *  registered or created when the type was first used.
+     */   
+    public Set<Class> getComponentTypes() {
+        return Collections.unmodifiableSet(new HashSet<Class>(handlers.keySet()));
+    }
     
     /**
      *  When no specific type handler exists, this attempts to
      *  find an appropriate handler.  Default implementation returns
-     *  a new MapComponentHandler.
+     *  a new DenseComponentHandler if entity IDs are dense, else
+     *  a new MapComponentHandler or a new LongMapComponentHandler if
+     *  long keyed handlers have been enabled.
      */
     protected ComponentHandler lookupDefaultHandler( Class type ) {
+        if( denseIds != null ) {
+            return new DenseComponentHandler();
+        }
+        if( longKeyedHandlers ) {
+            return new LongMapComponentHandler();
+        }
         return new MapComponentHandler();
     }
  
     protected ComponentHandler getHandler( Class type ) {
-    
+ 
+        int id = ComponentTypes.getId(type);
+        ComponentHandler[] table = handlerTable;
+        if( id >= 0 && id < table.length && table[id] != null ) {
+            return table[id];
+        }
+        
         ComponentHandler result = handlers.get(type);
         if( result == null ) {
             // A little double checked locking to make sure we 
@@ -151,7 +468,14 @@ public class DefaultEntityData implements ObservableEntityData {
                 result = handlers.get(type);
                 if( result == null ) {
                     result = lookupDefaultHandler(type);
-                    handlers.put(type, result);
+                    Map<String, Boolean> fields = getIndexedFields(type);
+                    if( !fields.isEmpty() ) {
+                        result = new IndexedComponentHandler(result, type, fields);
+                    }
+                    if( !isTypeTracked(type) ) {
+                        untrackedTypes.add(type);
+                    }
+                    putHandler(type, result);
                 }
             }
         }
@@ -169,28 +493,129 @@ public class DefaultEntityData implements ObservableEntityData {
     
     @Override
     public void setComponent( EntityId entityId, EntityComponent component ) {
-        if( entityId == null ) {
-            throw new IllegalArgumentException("EntityId cannot be null.");
-        }
-        ComponentHandler handler = getHandler(component.getClass());
-        handler.setComponent(entityId, component);
+        writeComponent(entityId, component);
         
         // Can now update the entity sets that care
-        entityChange(new EntityChange(entityId, component)); 
+        entityChange(entityId, component.getClass(), component); 
     }
     
     @Override
     public boolean removeComponent( EntityId entityId, Class type ) {
+        if( !deleteComponent(entityId, type) ) {
+            // Nothing changed so there is nothing to tell anyone
+            return false;
+        }
+        
+        // Can now update the entity sets that care
+        entityChange(entityId, type, null);
+        
+        return true; 
+    }
+ 
+    /**
+     *  Applies the batch's operations to the component handlers in order and
+     *  then delivers all of the resulting changes together so that each
+     *  interested entity set receives them as a single unit.  If an operation
+     *  fails then the operations before it stay applied and their changes
+     *  are still delivered before the exception is thrown.
+     */   
+    @Override
+    public void apply( ChangeBatch batch ) {
+        List<EntityChange> changes = new ArrayList<EntityChange>(batch.size());
+        try {
+            // Snapshots will see all of the batch or none of it
+            history.beginWrite();
+            try {
+                for( EntityChange op : batch.getChanges() ) {
+                    if( ChangeBatch.isEntityRemoval(op) ) {
+                        removeEntity(op.getEntityId(), changes);
+                    } else if( op.getComponent() == null ) {
+                        if( deleteComponent(op.getEntityId(), op.getComponentType()) ) {
+                            changes.add(op);
+                        }
+                    } else {
+                        // The operation is already exactly the change we need
+                        writeComponent(op.getEntityId(), op.getComponent());
+                        changes.add(op);
+                    }
+                }
+            } finally {
+                history.endWrite();
+            }
+        } finally {
+            // Whatever made it into the handlers has to reach the listeners
+            entityChanges(changes);
+        }
+    }
+ 
+    /**
+     *  Sets the component in its handler without sending any change
+     *  notifications.
+     */   
+    private void writeComponent( EntityId entityId, EntityComponent component ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
+        }
+        if( denseIds != null && !denseIds.isCurrent(entityId.getId()) ) {
+            // Its slot may already belong to another entity
+            throw new IllegalArgumentException("Entity has been removed:" + entityId);
+        }
+        ComponentHandler handler = getHandler(component.getClass());
+        history.beginWrite();
+        try {
+            if( history.isRecording() ) {
+                history.record(entityId, component.getClass(), handler.getComponent(entityId));
+            }
+            handler.setComponent(entityId, component);
+        } finally {
+            history.endWrite();
+        }
+        if( denseIds != null && !denseIds.isCurrent(entityId.getId()) ) {
+            // Removed while we were writing so removeEntity() may have 
+            // missed our component.  Take it back out unless the slot's
+            // next owner has already replaced it.
+            handler.removeComponent(entityId);
+            throw new IllegalArgumentException("Entity has been removed:" + entityId);
+        }
+        if( !untrackedTypes.contains(component.getClass()) ) {
+            typeIndex.add(entityId, component.getClass());
+        }
+    }
+ 
+    /**
+     *  Removes the component from its handler without sending any change
+     *  notifications and returns true if there was a component to remove.
+     */   
+    private boolean deleteComponent( EntityId entityId, Class type ) {
         if( entityId == null ) {
             throw new IllegalArgumentException("EntityId cannot be null.");
         }
         ComponentHandler handler = getHandler(type);
-        boolean result = handler.removeComponent(entityId);
-        
-        // Can now update the entity sets that care
-        entityChange(new EntityChange(entityId, type));
+        history.beginWrite();
+        try {
+            if( history.isRecording() ) {
+                EntityComponent previous = handler.getComponent(entityId);
+                if( previous == null ) {
+                    return false;
+                }
+                history.record(entityId, type, previous);
+            }
+            if( !handler.removeComponent(entityId) ) {
+                return false;
+            }
+        } finally {
+            history.endWrite();
+        }
         
-        return result; 
+        if( !untrackedTypes.contains(type) ) {
+            typeIndex.remove(entityId, type);
+            if( handler.getComponent(entityId) != null ) {
+                // Someone set it again between our remove and the
+                // index update so put the type back.
+                typeIndex.add(entityId, type);
+            }
+        }
+        return true; 
     }
 
     protected EntityId findSingleEntity( ComponentFilter filter ) {
@@ -207,7 +632,9 @@ public class DefaultEntityData implements ObservableEntityData {
 
     protected DefaultEntitySet createSet( ComponentFilter filter, Class... types ) {
         DefaultEntitySet set = new DefaultEntitySet(this, filter, types);
-        entitySets.add(set);
+        set.setCoalescing(coalescingEntitySets);
+        set.setForkJoinPool(forkJoinPool);
+        changeRouter.addEntitySet(set);
         return set;
     }
 
@@ -217,8 +644,19 @@ public class DefaultEntityData implements ObservableEntityData {
   
     @Override
     public void setComponents( EntityId entityId, EntityComponent... components ) {
-        for( EntityComponent c : components ) {
-            setComponent(entityId, c);
+        List<EntityChange> changes = new ArrayList<EntityChange>(components.length);
+        try {
+            history.beginWrite();
+            try {
+                for( EntityComponent c : components ) {
+                    writeComponent(entityId, c);
+                    changes.add(new EntityChange(entityId, c));
+                }
+            } finally {
+                history.endWrite();
+            }
+        } finally {
+            entityChanges(changes);
         }
     }
  
@@ -233,6 +671,10 @@ public class DefaultEntityData implements ObservableEntityData {
  
     @Override
     public EntitySet getEntities( Class... types ) {
+        SharedEntitySets shared = sharedSets;
+        if( shared != null ) {
+            return shared.getEntitySet(null, types);
+        }
     
         DefaultEntitySet results = createSet((ComponentFilter)null, types);
         results.loadEntities(false);
@@ -265,36 +707,110 @@ public class DefaultEntityData implements ObservableEntityData {
         return results;
     }
 
+    /**
+     *  Collects the entities that the new filter matches but the old one
+     *  didn't into entering and the ones that the old filter matched but the
+     *  new one doesn't into leaving, considering only the filtered component
+     *  type.  Returns false if that can't be done more cheaply than
+     *  rerunning the query, ie: when the filtered field isn't indexed.
+     *  Used by entity sets to apply filter changes incrementally.
+     */
+    protected boolean diffFilter( ComponentFilter oldFilter, ComponentFilter newFilter, 
+                                  Set<EntityId> entering, Set<EntityId> leaving ) {
+        if( oldFilter == null || newFilter == null ) {
+            return false;
+        }
+        if( oldFilter.getComponentType() != newFilter.getComponentType() ) {
+            return false;
+        }
+        ComponentHandler handler = getHandler(newFilter.getComponentType());
+        if( !(handler instanceof IndexedComponentHandler) ) {
+            return false;
+        }
+        return ((IndexedComponentHandler)handler).diff(oldFilter, newFilter, entering, leaving);
+    }
+
     protected ComponentFilter forType( ComponentFilter filter, Class type ) {
         if( filter == null || filter.getComponentType() != type )
             return null;
         return filter; 
     }
 
+    /**
+     *  Plans an intersection query by collecting the candidate ID sets
+     *  for each type and ordering them by cardinality, smallest first.  
+     *  The filtered type is fetched first since it is the most likely to be 
+     *  small or empty.  Returns null as soon as any candidate set is empty 
+     *  because then the intersection is also empty.
+     *
+     *  <p>For the in-memory handlers the unfiltered sets are live views so
+     *  their sizes are the current per-type cardinalities and nothing is copied
+     *  here.</p>
+     */
+    protected Set<EntityId>[] planIntersection( ComponentFilter filter, Class... types ) {
+        Set<EntityId>[] sets = new Set[types.length];
+        int[] sizes = new int[types.length];
+        int count = 0;
+        
+        Class filterType = filter == null ? null : filter.getComponentType();
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( Class type : types ) {
+                // Filtered types on the first pass, everything else on the second
+                if( (type == filterType) != (pass == 0) ) {
+                    continue;
+                }
+                Set<EntityId> ids = getEntityIds(type, forType(filter, type));
+                int size = ids.size();
+                if( size == 0 ) {
+                    return null;
+                }
+                
+                // Insertion sort by the size we saw.  We do this ourselves
+                // because live views may change size while we sort and there
+                // are only ever a handful of types.
+                int i = count++;
+                for( ; i > 0 && sizes[i - 1] > size; i-- ) {
+                    sets[i] = sets[i - 1];
+                    sizes[i] = sizes[i - 1];
+                }
+                sets[i] = ids;
+                sizes[i] = size;
+            }
+        }
+        return sets;
+    }
+ 
+    /**
+     *  Returns true if all of the sets except the first one contain
+     *  the specified ID.
+     */   
+    private static boolean containedInRest( EntityId id, Set<EntityId>[] sets ) {
+        for( int i = 1; i < sets.length; i++ ) {
+            if( !sets[i].contains(id) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public EntityId findEntity( ComponentFilter filter, Class... types ) {
         if( types == null || types.length == 0 ) {
             return findSingleEntity(filter);
         }
-        
-        Set<EntityId> first = getEntityIds(types[0], forType(filter, types[0]));
-        if( first.isEmpty() )
-            return null; 
-        Set<EntityId> and = new HashSet<EntityId>();
-        and.addAll(first); 
-            
-        for( int i = 1; i < types.length; i++ ) {
-            Set<EntityId> sub = getEntityIds(types[i], forType(filter, types[i]));
-            if( sub.isEmpty() ) {
-                return null;
-            }  
-            and.retainAll(sub);
-        }
  
-        if( and.isEmpty() )
+        Set<EntityId>[] sets = planIntersection(filter, types);
+        if( sets == null ) {
             return null;
+        }
         
-        return and.iterator().next();        
+        // Walk the smallest set and probe the others
+        for( EntityId id : sets[0] ) {
+            if( containedInRest(id, sets) ) {
+                return id;
+            }
+        }
+        return null;        
     }
  
     @Override
@@ -303,26 +819,75 @@ public class DefaultEntityData implements ObservableEntityData {
             types = new Class[] { filter.getComponentType() };
         }
         
-        Set<EntityId> first = getEntityIds(types[0], forType(filter, types[0]));
-        if( first.isEmpty() ) {
+        Set<EntityId>[] sets = planIntersection(filter, types);
+        if( sets == null ) {
             return Collections.emptySet();
-        } 
-        Set<EntityId> and = new HashSet<EntityId>();
-        and.addAll(first); 
-            
-        for( int i = 1; i < types.length; i++ ) {
-            Set<EntityId> sub = getEntityIds(types[i], forType(filter, types[i]));
-            if( sub.isEmpty() ) {
-                return Collections.emptySet();
-            }  
-            and.retainAll(sub);
         }
         
-        return and;        
+        // Walk the smallest set and probe the others.  The result can be
+        // no larger than the smallest set and we never copy the bigger ones.
+        Set<EntityId> results = new HashSet<EntityId>(Math.max(16, (int)(sets[0].size() / 0.75f) + 1));
+        for( EntityId id : sets[0] ) {
+            if( containedInRest(id, sets) ) {
+                results.add(id);
+            }
+        }
+        return results;        
+    }
+ 
+    @Override
+    public int count( ComponentFilter filter, Class... types ) {
+        if( types == null || types.length == 0 ) {
+            types = new Class[] { filter.getComponentType() };
+        }
+        
+        Set<EntityId>[] sets = planIntersection(filter, types);
+        if( sets == null ) {
+            return 0;
+        }
+        if( sets.length == 1 ) {
+            return sets[0].size();
+        }
+        
+        int count = 0;
+        for( EntityId id : sets[0] ) {
+            if( containedInRest(id, sets) ) {
+                count++;
+            }
+        }
+        return count;
+    }
+ 
+    /**
+     *  Returns the one-time count/sum/min/max of the specified numeric field 
+     *  of 'type' over all entities that have 'type' and the other types and 
+     *  match the filter, keyed by the value of groupField.  The field may be
+     *  null to only count and groupField may be null to get a single aggregate
+     *  under the null key.
+     */
+    public Map<Object, Aggregate> aggregate( ComponentFilter filter, Class type, String field, 
+                                             String groupField, Class... types ) {
+        Class[] all = DefaultAggregateView.collectTypes(filter, type, types);                                              
+        return DefaultAggregateView.aggregate(this, findEntities(filter, all), type, field, groupField);
+    }
+ 
+    /**
+     *  Creates a live AggregateView over the specified numeric field of 'type'
+     *  for all entities that have 'type' and the other types and match the filter,
+     *  optionally grouped by the value of another field of 'type'.  The view 
+     *  must be released when no longer needed.
+     */
+    public AggregateView createAggregateView( ComponentFilter filter, Class type, String field, 
+                                              String groupField, Class... types ) {
+        return new DefaultAggregateView(this, filter, type, field, groupField, types);
     }
 
     @Override
     public EntitySet getEntities( ComponentFilter filter, Class... types ) {
+        SharedEntitySets shared = sharedSets;
+        if( shared != null ) {
+            return shared.getEntitySet(filter, types);
+        }
         DefaultEntitySet results = createSet(filter, types);
         results.loadEntities(false);
         return results;
@@ -343,26 +908,70 @@ public class DefaultEntityData implements ObservableEntityData {
         return new DefaultWatchedEntity(this, id, types);               
     }
 
+    /**
+     *  Returns a point-in-time view of this EntityData.  Taking a snapshot
+     *  does not copy anything.  While snapshots are open, writes keep the
+     *  values they replace so that the snapshots can still see them.  
+     *  This costs memory and a little time per write, so snapshots 
+     *  should be released promptly.
+     */
+    @Override
+    public EntityDataSnapshot snapshot() {
+        return new DefaultEntityDataSnapshot(this, history);
+    }
+
     protected void releaseEntitySet( EntitySet entities ) {
-        entitySets.remove((DefaultEntitySet)entities);
+        changeRouter.removeEntitySet((DefaultEntitySet)entities);
     }
  
-    protected void entityChange( EntityChange change ) {
+    protected void registerWatchedEntity( DefaultWatchedEntity watched ) {
+        changeRouter.addWatchedEntity(watched);
+    }
     
-        for( EntityComponentListener l : entityListeners ) {
-            l.componentChange(change);
+    protected void releaseWatchedEntity( DefaultWatchedEntity watched ) {
+        changeRouter.removeWatchedEntity(watched);
+    }
+ 
+    protected void entityChange( EntityChange change ) {
+        changeRouter.dispatch(change);
+    }
+ 
+    /**
+     *  Delivers a single change without creating an EntityChange object
+     *  unless some listener needs one.  A null component means that the
+     *  component of the specified type was removed.
+     */   
+    protected void entityChange( EntityId entityId, Class type, EntityComponent component ) {
+        changeRouter.dispatch(entityId, type, component);
+    }
+ 
+    /**
+     *  Delivers a group of changes with one dispatch pass.  Listeners
+     *  still see each change individually but each entity set receives
+     *  its relevant changes as one unit.
+     */   
+    protected void entityChanges( List<EntityChange> changes ) {
+        if( changes.isEmpty() ) {
+            return;
         }
-    
-        for( DefaultEntitySet set : entitySets ) {
-            set.entityChange(change);
-        }       
+        if( changes.size() == 1 ) {
+            entityChange(changes.get(0));
+            return;
+        }
+        changeRouter.dispatch(changes);
     }
  
     private class EntitySetsReporter implements Reporter {
     
         @Override
         public void printReport( String type, java.io.PrintWriter out ) {
-            out.println("EntityData->EntitySets:" + entitySets.size());
+            out.println("EntityData->EntitySets:" + changeRouter.getEntitySetCount());
+            SharedEntitySets shared = sharedSets;
+            if( shared != null ) {
+                out.println("EntityData->SharedEntitySets:" + shared.getSharedCount() + " views:" + shared.getViewCount());
+            }
+            out.println("EntityData->WatchedEntities:" + changeRouter.getWatchedEntityCount());
+            out.println("EntityData->Snapshots:" + history.getOpenCount());
         }
     }            
 }
@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityDataSnapshot;
+import com.simsilica.es.EntityId;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ *  The EntityDataSnapshot implementation for DefaultEntityData.  It reads
+ *  the live component handlers and uses the ComponentHistory to see past 
+ *  any writes made after the snapshot's version.  Queries resolve the live 
+ *  matches first and then correct them for the entities that have changed 
+ *  since the snapshot was taken, which is normally a small number. 
+ *
+ *  @author    Paul Speed
+ */
+public class DefaultEntityDataSnapshot implements EntityDataSnapshot {
+
+    private final DefaultEntityData ed;
+    private final ComponentHistory history;
+    private final long version;
+    private volatile boolean released;
+    
+    protected DefaultEntityDataSnapshot( DefaultEntityData ed, ComponentHistory history ) {
+        this.ed = ed;
+        this.history = history;
+        this.version = history.open();
+    }
+    
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public <T extends EntityComponent> T getComponent( EntityId entityId, Class<T> type ) {
+        if( entityId == null ) {
+            throw new IllegalArgumentException("EntityId cannot be null.");
+        }
+        if( released ) {
+            throw new IllegalStateException("Snapshot has been released.");
+        }
+        // Live first, then history... see ComponentHistory
+        EntityComponent live = ed.getHandler(type).getComponent(entityId);
+        ComponentHistory.Revision rev = history.getRevision(version, entityId, type);
+        return (T)(rev != null ? rev.getValue() : live);
+    }
+
+    @Override
+    public EntityComponent[] getComponents( EntityId entityId, Class... types ) {
+        EntityComponent[] results = new EntityComponent[types.length];
+        for( int i = 0; i < types.length; i++ ) {
+            results[i] = getComponent(entityId, types[i]);
+        }
+        return results;
+    }
+
+    @Override
+    public EntityId findEntity( ComponentFilter filter, Class... types ) {
+        Set<EntityId> results = findEntities(filter, types);
+        if( results.isEmpty() ) {
+            return null;
+        }
+        return results.iterator().next();
+    }
+
+    @Override
+    public Set<EntityId> findEntities( ComponentFilter filter, Class... types ) {
+        if( types == null || types.length == 0 ) {
+            types = new Class[] { filter.getComponentType() };
+        }
+        
+        Set<EntityId> results = null;
+        for( Class type : types ) {
+            Set<EntityId> ids = getEntityIds(type, ed.forType(filter, type));
+            if( ids.isEmpty() ) {
+                return Collections.emptySet();
+            }
+            if( results == null ) {
+                results = ids;
+            } else if( ids.size() < results.size() ) {
+                ids.retainAll(results);
+                results = ids;
+            } else {
+                results.retainAll(ids);
+            }
+            if( results.isEmpty() ) {
+                return Collections.emptySet();
+            }
+        }
+        return results;
+    }
+ 
+    /**
+     *  Returns a new set containing the IDs of the entities that had a 
+     *  matching component of the specified type as of this snapshot.
+     */   
+    protected Set<EntityId> getEntityIds( Class type, ComponentFilter filter ) {
+        if( released ) {
+            throw new IllegalStateException("Snapshot has been released.");
+        }
+        
+        // Live first, then history
+        Set<EntityId> live = ed.getEntityIds(type, filter);
+        Set<EntityId> changed = history.getChangedIds(type);
+        
+        Set<EntityId> results = new HashSet<EntityId>();
+        for( EntityId id : live ) {
+            // Anything not changed by the time we check was the same 
+            // at our version 
+            if( !changed.contains(id) ) {
+                results.add(id);
+            }
+        }
+        for( EntityId id : changed ) {
+            EntityComponent c = getComponent(id, type);
+            if( c != null && (filter == null || filter.evaluate(c)) ) {
+                results.add(id);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void release() {
+        if( released ) {
+            return;
+        }
+        released = true;
+        history.close(version);
+    }
+
+    @Override
+    public boolean isReleased() {
+        return released;
+    }
+    
+    @Override
+    public String toString() {
+        return "EntityDataSnapshot[version=" + version + "]";
+    }
+}
@@ -39,11 +39,16 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  *  Default implementation of the EntityIdGenerator interface
  *  that simply hands out entity IDs starting with 0 or other configured
- *  value and then incrementing.
+ *  value and then incrementing.  Each thread takes blocks of IDs from 
+ *  the shared counter so that threads creating entities at the same time 
+ *  don't all contend on it.  A single thread will still see consecutive
+ *  IDs.
  *
  *  @author    Paul Speed
  */
-public class DefaultEntityIdGenerator implements EntityIdGenerator {
+public class DefaultEntityIdGenerator extends BlockEntityIdGenerator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
 
     private AtomicLong entityId;
     
@@ -52,12 +57,17 @@ public class DefaultEntityIdGenerator implements EntityIdGenerator {
     }
     
     public DefaultEntityIdGenerator( long initialValue ) {
+        this(initialValue, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DefaultEntityIdGenerator( long initialValue, int blockSize ) {
+        super(blockSize, blockSize);
         this.entityId = new AtomicLong(initialValue);
     }
 
     @Override
-    public long nextEntityId() {
-        return entityId.getAndIncrement();
+    protected long reserve( int size ) {
+        return entityId.getAndAdd(size);
     } 
 }
 
@@ -34,13 +34,25 @@
 
 package com.simsilica.es.base;
 
+import java.util.AbstractCollection;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -70,10 +82,27 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 	// checks the map for entity ID existence.
 	private final Map<EntityId, Entity> entities = new HashMap<>();
 
-	private final ConcurrentLinkedQueue<EntityChange> changes = new ConcurrentLinkedQueue<>();
+	// Either single EntityChanges or EntityChange[] groups of changes that
+	// were delivered together
+	private final ConcurrentLinkedQueue<Object> changes = new ConcurrentLinkedQueue<>();
+	private final PendingChanges pendingChanges = new PendingChanges();
+
+	// Only the latest change for each entity and type when coalescing.
+	private final ConcurrentHashMap<ChangeKey, EntityChange> latestChanges = new ConcurrentHashMap<>();
+	// Groups of changes are coalesced under the read lock and the changes
+	// are drained under the write lock so that a drain never splits a group.
+	private final ReadWriteLock latestLock = new ReentrantReadWriteLock();
+	private volatile boolean coalescing = false;
+
+	// Our read positions in the change rings of our types, if the
+	// types are delivered through change rings.
+	private volatile ChangeRing.Cursor[] cursors;
+	private final RingReader ringReader = new RingReader();
+	private boolean resyncNeeded = false;
 
 	private final EntityData ed;
 	private ComponentFilter mainFilter; // for now anyway
+	private ComponentFilter appliedFilter; // the filter our contents match
 	private ComponentFilter[] filters;
 	private final Class[] types;
 	private boolean filtersChanged = false;
@@ -85,10 +114,20 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 
 	private boolean released = false;
 
+	private ForkJoinPool pool;
+	private EntityArray dense;
+
+	/**
+	 * The types as a bit mask and ID-indexed positions so that type checks on the change path don't scan the types array.
+	 */
+	private final ComponentTypeSet typeSet;
+
 	public DefaultEntitySet(EntityData ed, ComponentFilter filter, Class[] types) {
 		this.ed = ed;
 		this.types = types;
+		this.typeSet = new ComponentTypeSet(types);
 		setMainFilter(filter);
+		this.appliedFilter = filter;
 	}
 
 	protected Class[] getTypes() {
@@ -118,6 +157,43 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		return mainFilter;
 	}
 
+	/**
+	 * Set to true to have this set keep only the latest pending change for each entity and component type instead of queuing every change. Changes to the same component between applyChanges() calls then collapse into one, which bounds the pending changes to the number of entity components that changed and makes applyChanges() cheaper for sets that are updated less often than their components change. A removal is a change like any other so the last of a set or a remove is what gets applied. Intermediate values will not be reported in the applyChanges() updates set. A group of changes, such as an applied ChangeBatch, is still applied in the same applyChanges() call even though its changes may be merged with other pending changes. Defaults to false.
+	 */
+	public void setCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	/**
+	 * Sets the pool used by parallelForEach(). If null then the common fork/join pool is used. Defaults to null.
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ForkJoinPool getForkJoinPool() {
+		return pool;
+	}
+
+	/**
+	 * Called when one of this set's types will have its changes delivered through the specified change ring instead of entityChange(). This set will read the changes published from this point on the next time changes are applied. Changes read from a ring are not coalesced since the ring already bounds the pending changes.
+	 */
+	protected void attachRing(ChangeRing ring) {
+		ChangeRing.Cursor cursor = ring.newCursor();
+		ChangeRing.Cursor[] current = cursors;
+		if (current == null) {
+			cursors = new ChangeRing.Cursor[] { cursor };
+		} else {
+			ChangeRing.Cursor[] array = Arrays.copyOf(current, current.length + 1);
+			array[current.length] = cursor;
+			cursors = array;
+		}
+	}
+
 	/**
 	 * Called to have the entity set load its initial set of data. This is called during creation (but not construction) and when the filter is reset.
 	 */
@@ -148,7 +224,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 			}
 
 			// Now create the entity
-			DefaultEntity e = new DefaultEntity(ed, id, buffer.clone(), types);
+			DefaultEntity e = new DefaultEntity(ed, id, buffer.clone(), typeSet);
 			if (add(e) && reload) {
 				addedEntities.add(e);
 			}
@@ -175,6 +251,63 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		}
 	}
 
+	/**
+	 * Moves the set from the old filter's results to the new filter's results by only looking at the entities that enter or leave, as provided by the entity data's indexes. Components are only retrieved for the entities that are actually new to the set. Returns false if the difference could not be determined, in which case the caller must do a full purge and reload.
+	 */
+	protected boolean applyFilterDelta(ComponentFilter oldFilter, ComponentFilter newFilter) {
+		if (Objects.equals(oldFilter, newFilter)) {
+			// Any changes since have already been checked against it
+			return true;
+		}
+		if (!(ed instanceof DefaultEntityData)) {
+			return false;
+		}
+
+		Set<EntityId> entering = new HashSet<>();
+		Set<EntityId> leaving = new HashSet<>();
+		if (!((DefaultEntityData) ed).diffFilter(oldFilter, newFilter, entering, leaving)) {
+			return false;
+		}
+
+		for (EntityId id : leaving) {
+			Entity e = remove(id);
+			if (e == null) {
+				continue;
+			}
+			// Something added or changed in this same pass only needs
+			// to show up as a remove if we had it before
+			changedEntities.remove(e);
+			if (!addedEntities.remove(e)) {
+				removedEntities.add(e);
+			}
+		}
+
+		EntityComponent[] buffer = new EntityComponent[types.length];
+		for (EntityId id : entering) {
+			if (containsId(id)) {
+				continue;
+			}
+			for (int i = 0; i < buffer.length; i++) {
+				buffer[i] = ed.getComponent(id, types[i]);
+			}
+			DefaultEntity e = new DefaultEntity(ed, id, buffer.clone(), typeSet);
+			if (!entityMatches(e)) {
+				// Missing some of our other types or has already
+				// changed again
+				continue;
+			}
+			if (add(e)) {
+				if (removedEntities.remove(e)) {
+					// Left and came back in the same pass
+					changedEntities.add(e);
+				} else {
+					addedEntities.add(e);
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Swaps out the current main filter for a new one. Returns true if the entity set was changed during this process. This is similar to applyChanges() and any current pending changes will be applied during the filter transition.
 	 */
@@ -250,6 +383,14 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		return o == this;
 	}
 
+	/**
+	 * Identity-based to match equals(). The AbstractSet version would hash every entity and change as the set changes which would break the hash-based change routing in DefaultEntityData.
+	 */
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this);
+	}
+
 	@Override
 	public int size() {
 		return entities.size();
@@ -260,8 +401,31 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		return new EntityIterator();
 	}
 
+	/**
+	 * Returns a sized, splittable spliterator over a dense snapshot of this set's current entities. The snapshot is shared until the set's membership next changes so repeated traversals between applyChanges() calls do not copy the entities again.
+	 */
+	@Override
+	public Spliterator<Entity> spliterator() {
+		return getEntityArray().spliterator();
+	}
+
+	@Override
+	public void parallelForEach(Consumer<? super Entity> action) {
+		getEntityArray().parallelForEach(action, pool);
+	}
+
+	protected EntityArray getEntityArray() {
+		EntityArray result = dense;
+		if (result == null) {
+			result = new EntityArray(entities.values());
+			dense = result;
+		}
+		return result;
+	}
+
 	@Override
 	public void clear() {
+		dense = null;
 		entities.clear();
 	}
 
@@ -270,10 +434,12 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		// Note: this may come back to bite me later but we
 		// return that we don't add it but we actually do replace
 		// the old value.
+		dense = null;
 		return entities.put(e.getId(), e) == null;
 	}
 
 	protected Entity remove(EntityId id) {
+		dense = null;
 		return entities.remove(id);
 	}
 
@@ -281,6 +447,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 	public boolean remove(Object e) {
 		if (!(e instanceof Entity))
 			return false;
+		dense = null;
 		return entities.remove(((Entity) e).getId()) != null;
 	}
 
@@ -347,16 +514,99 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 
 	protected boolean buildTransactionChanges(Set<EntityChange> updates) {
 
-		if (changes.isEmpty())
-			return false;
+		boolean result = readRings(updates);
 
-		EntityChange change;
+		if (changes.isEmpty() && latestChanges.isEmpty())
+			return result;
+
+		Object change;
 		while ((change = changes.poll()) != null) {
-			transaction.addChange(change, updates);
+			if (change instanceof EntityChange[]) {
+				transaction.addChanges((EntityChange[]) change, updates);
+			} else {
+				transaction.addChange((EntityChange) change, updates);
+			}
+		}
+
+		// Any coalesced changes are applied after the queued ones since
+		// they are newer if coalescing was turned on in between.
+		if (latestChanges.isEmpty())
+			return true;
+		List<EntityChange> latest = new ArrayList<>(latestChanges.size());
+		latestLock.writeLock().lock();
+		try {
+			for (Map.Entry<ChangeKey, EntityChange> e : latestChanges.entrySet()) {
+				// Single changes don't take the lock so if the change was
+				// replaced since we looked then we leave the newer one for
+				// the next pass
+				if (latestChanges.remove(e.getKey(), e.getValue())) {
+					latest.add(e.getValue());
+				}
+			}
+		} finally {
+			latestLock.writeLock().unlock();
+		}
+		for (EntityChange e : latest) {
+			transaction.addChange(e, updates);
 		}
 		return true;
 	}
 
+	/**
+	 * Reads the changes from our change rings directly into the transaction. If we have fallen so far behind that a ring has overwritten changes we haven't read then we've lost track and a resync is scheduled.
+	 */
+	protected boolean readRings(Set<EntityChange> updates) {
+		ChangeRing.Cursor[] array = cursors;
+		if (array == null) {
+			return false;
+		}
+		boolean result = false;
+		ringReader.updates = updates;
+		try {
+			for (ChangeRing.Cursor cursor : array) {
+				int count = cursor.read(ringReader);
+				if (count == ChangeRing.OVERRUN) {
+					log.warning(debugId() + " fell too far behind its change ring, resyncing.");
+					resyncNeeded = true;
+					result = true;
+				} else if (count > 0) {
+					result = true;
+				}
+			}
+		} finally {
+			ringReader.updates = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Brings the set fully up to date with the entity data when changes have been lost. Every component is reloaded and entities are added, changed, or removed as needed.
+	 */
+	protected void resync() {
+
+		for (Entity e : entities.values()) {
+			EntityComponent[] array = e.getComponents();
+			boolean changed = false;
+			for (int i = 0; i < types.length; i++) {
+				EntityComponent c = ed.getComponent(e.getId(), types[i]);
+				if (c != array[i]) {
+					array[i] = c;
+					changed = true;
+				}
+			}
+			if (changed) {
+				changedEntities.add(e);
+			}
+		}
+
+		// Remove any entities that no longer match
+		purgeEntities();
+		changedEntities.removeAll(removedEntities);
+
+		// And add any that we missed
+		loadEntities(true);
+	}
+
 	public boolean hasFilterChanged() {
 		return filtersChanged;
 	}
@@ -382,6 +632,8 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		if (released) {
 			// Then the changes are irrelevant
 			changes.clear();
+			latestChanges.clear();
+			cursors = null;
 
 			// And everything is a remove
 			removedEntities.addAll(this);
@@ -394,14 +646,23 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 			transaction.resolveChanges();
 		}
 
+		if (resyncNeeded) {
+			resyncNeeded = false;
+			resync();
+		}
+
 		if (filtersChanged) {
 			filtersChanged = false;
 
-			// Remove any entities that no longer match
-			purgeEntities();
+			ComponentFilter oldFilter = appliedFilter;
+			appliedFilter = mainFilter;
+			if (!applyFilterDelta(oldFilter, mainFilter)) {
+				// Remove any entities that no longer match
+				purgeEntities();
 
-			// Find the latest entities
-			loadEntities(true);
+				// Find the latest entities
+				loadEntities(true);
+			}
 		}
 
 		return !addedEntities.isEmpty() || !changedEntities.isEmpty() || !removedEntities.isEmpty();
@@ -476,21 +737,11 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 
 	@Override
 	public final boolean hasType(Class type) {
-		for (Class c : types) {
-			if (c == type) {
-				return true;
-			}
-		}
-		return false;
+		return typeSet.contains(type);
 	}
 
 	private int typeIndex(Class type) {
-		for (int i = 0; i < types.length; i++) {
-			if (types[i] == type) {
-				return i;
-			}
-		}
-		return -1;
+		return typeSet.indexOf(type);
 	}
 
 	protected boolean isRelevantChange(EntityChange change) {
@@ -505,7 +756,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		// our filters we do care about.
 
 		// Is this even a type we watch?
-		if (!hasType(change.getComponentType())) {
+		if (!typeSet.contains(change.getComponentTypeId())) {
 			if (log.isLoggable(Level.FINER))
 				log.finer("   not our type.");
 			return false; // doesn't matter to us
@@ -549,7 +800,46 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 			log.finer("Adding change:" + change);
 
 		// Accumulate the change for the next update pass
-		changes.add(change);
+		if (coalescing) {
+			latestChanges.put(new ChangeKey(change), change);
+		} else {
+			changes.add(change);
+		}
+	}
+
+	/**
+	 * Called with a group of changes that were made together, for example from a ChangeBatch. The relevant ones are queued as a single element so that the next update pass can apply them as one unit.
+	 */
+	protected void entityChanges(List<EntityChange> batch) {
+		List<EntityChange> relevant = new ArrayList<>(batch.size());
+		for (EntityChange change : batch) {
+			if (isRelevantChange(change)) {
+				relevant.add(change);
+			}
+		}
+		if (relevant.isEmpty()) {
+			return;
+		}
+		if (coalescing) {
+			latestLock.readLock().lock();
+			try {
+				for (EntityChange change : relevant) {
+					latestChanges.put(new ChangeKey(change), change);
+				}
+			} finally {
+				latestLock.readLock().unlock();
+			}
+			return;
+		}
+		if (relevant.size() == 1) {
+			changes.add(relevant.get(0));
+			return;
+		}
+
+		if (log.isLoggable(Level.FINER))
+			log.finer("Adding " + relevant.size() + " batched changes");
+
+		changes.add(relevant.toArray(new EntityChange[relevant.size()]));
 	}
 
 	/**
@@ -621,8 +911,11 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 		return true;
 	}
 
-	protected ConcurrentLinkedQueue<EntityChange> getChangeQueue() {
-		return changes;
+	/**
+	 * Returns a read-only view of the changes that have not been applied yet in the order that they will be applied, including the changes that were delivered as a group and the coalesced changes. Like the underlying queue, the view is weakly consistent while changes are still arriving. Changes delivered through change rings are read in place and are not included.
+	 */
+	protected Collection<EntityChange> getChangeQueue() {
+		return pendingChanges;
 	}
 
 	private class EntityIterator implements Iterator<Entity> {
@@ -644,6 +937,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 
 		@Override
 		public void remove() {
+			dense = null;
 			delegate.remove();
 		}
 	}
@@ -654,6 +948,97 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 	protected static class RemovedComponent implements EntityComponent {
 	}
 
+	/**
+	 * Feeds changes read in place from a change ring to the transaction.
+	 */
+	private class RingReader implements ChangeRing.Reader {
+
+		Set<EntityChange> updates;
+
+		@Override
+		public void read(EntityId entityId, Class type, EntityComponent component) {
+			transaction.addChange(entityId, type, component, null, updates);
+		}
+	}
+
+	/**
+	 * Identifies the entity and component type of a coalesced change.
+	 */
+	private static final class ChangeKey {
+
+		private final EntityId id;
+		private final Class type;
+
+		public ChangeKey(EntityChange change) {
+			this.id = change.getEntityId();
+			this.type = change.getComponentType();
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode() * 31 + type.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof ChangeKey))
+				return false;
+			ChangeKey other = (ChangeKey) o;
+			return type == other.type && id.equals(other.id);
+		}
+	}
+
+	/**
+	 * Flattened view of the queued changes followed by the coalesced ones.
+	 */
+	private class PendingChanges extends AbstractCollection<EntityChange> {
+
+		@Override
+		public Iterator<EntityChange> iterator() {
+			return new Iterator<EntityChange>() {
+				private final Iterator<Object> queued = changes.iterator();
+				private final Iterator<EntityChange> latest = latestChanges.values().iterator();
+				private EntityChange[] group;
+				private int index;
+
+				@Override
+				public boolean hasNext() {
+					return (group != null && index < group.length) || queued.hasNext() || latest.hasNext();
+				}
+
+				@Override
+				public EntityChange next() {
+					if (group != null && index < group.length) {
+						return group[index++];
+					}
+					group = null;
+					if (queued.hasNext()) {
+						Object next = queued.next();
+						if (next instanceof EntityChange[]) {
+							// Groups are never empty
+							group = (EntityChange[]) next;
+							index = 1;
+							return group[0];
+						}
+						return (EntityChange) next;
+					}
+					return latest.next();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = latestChanges.size();
+			for (Object o : changes) {
+				size += o instanceof EntityChange[] ? ((EntityChange[]) o).length : 1;
+			}
+			return size;
+		}
+	}
+
 	/**
 	 * Keeps accumulated data about a set of changes. This buffers the changes and finalizes them all at once which should be a more efficient and simpler design than the deeply nested loop I used to have in applyChanges().
 	 * 
@@ -672,9 +1057,23 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 			adds.put(e.getId(), e);
 		}
 
+		/**
+		 * Adds a block of changes that were made together.
+		 */
+		public void addChanges(EntityChange[] block, Set<EntityChange> updates) {
+			for (EntityChange change : block) {
+				addChange(change, updates);
+			}
+		}
+
 		public void addChange(EntityChange change, Set<EntityChange> updates) {
-			EntityId id = change.getEntityId();
-			EntityComponent comp = change.getComponent();
+			addChange(change.getEntityId(), change.getComponentType(), change.getComponent(), change, updates);
+		}
+
+		/**
+		 * Adds a change given as separate values, for example when it is read in place from a ChangeRing. The EntityChange is only needed for the updates set and is created on demand if it is null.
+		 */
+		public void addChange(EntityId id, Class type, EntityComponent comp, EntityChange change, Set<EntityChange> updates) {
 			DefaultEntity e = (DefaultEntity) entities.get(id);
 
 			// If we don't have the entity then it's an add
@@ -709,7 +1108,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 
 					// Create an empty entity with the right number
 					// of components.
-					e = new DefaultEntity(ed, id, new EntityComponent[types.length], types);
+					e = new DefaultEntity(ed, id, new EntityComponent[types.length], typeSet);
 					adds.put(id, e);
 				}
 
@@ -728,7 +1127,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 			// Apply the change
 			int index;
 			if (comp == null) {
-				index = typeIndex(change.getComponentType());
+				index = typeIndex(type);
 			} else {
 				index = typeIndex(comp.getClass());
 			}
@@ -765,7 +1164,7 @@ public class DefaultEntitySet extends AbstractSet<Entity> implements EntitySet {
 					// It could be that we have no choice but to make two passes through
 					// the change events or go through the updates and remove the ones
 					// for entities that aren't in the set anymore.
-					updates.add(change);
+					updates.add(change != null ? change : new EntityChange(id, type, comp));
 				} else {
 				}
 			}
@@ -43,8 +43,6 @@ import com.simsilica.es.EntityData;
 import com.simsilica.es.EntityId;
 import com.simsilica.es.ObservableEntityData;
 import com.simsilica.es.WatchedEntity;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -70,7 +68,7 @@ public class DefaultWatchedEntity implements WatchedEntity {
     private final EntityId id;
     private final EntityComponent[] components;
     private final Class[] types;
-    private final Set<Class> typeSet;
+    private final ComponentTypeSet typeSet;
     private final ChangeProcessor listener;
     private final ConcurrentLinkedQueue<EntityChange> changes = new ConcurrentLinkedQueue<EntityChange>();
     private boolean released;
@@ -84,11 +82,9 @@ public class DefaultWatchedEntity implements WatchedEntity {
         this.id = id;
         this.components = data == null ? new EntityComponent[types.length] : data;
         this.types = types;
-        this.typeSet = new HashSet<Class>(Arrays.asList(types));
+        this.typeSet = new ComponentTypeSet(types);
         this.listener = new ChangeProcessor();
-        if( ed instanceof ObservableEntityData ) {
-            ((ObservableEntityData)ed).addEntityComponentListener(listener);
-        }
+        startWatching();
         if( data == null ) {
             load();
         }
@@ -104,6 +100,29 @@ public class DefaultWatchedEntity implements WatchedEntity {
     protected EntityComponentListener getListener() {
         return listener;
     }                                 
+ 
+    /**
+     *  Called during construction to hook this watched entity up to 
+     *  the change notifications for its entity.  A DefaultEntityData 
+     *  delivers changes only to the watchers of the changed entity.  Other
+     *  ObservableEntityData implementations get a regular listener that
+     *  sees all changes of the watched types.
+     */   
+    protected void startWatching() {
+        if( ed instanceof DefaultEntityData ) {
+            ((DefaultEntityData)ed).registerWatchedEntity(this);
+        } else if( ed instanceof ObservableEntityData ) {
+            ((ObservableEntityData)ed).addEntityComponentListener(listener, types);
+        }
+    }
+    
+    protected void stopWatching() {
+        if( ed instanceof DefaultEntityData ) {
+            ((DefaultEntityData)ed).releaseWatchedEntity(this);
+        } else if( ed instanceof ObservableEntityData ) {
+            ((ObservableEntityData)ed).removeEntityComponentListener(listener);
+        }
+    }
 
     @Override
     public EntityId getId() {
@@ -112,12 +131,11 @@ public class DefaultWatchedEntity implements WatchedEntity {
 
     @Override
     public <T extends EntityComponent> T get( Class<T> type ) {
-        for( int i = 0; i < types.length; i++ ) {
-            if( types[i] == type ) {
-                return type.cast(components[i]);
-            }
+        int i = typeSet.indexOf(type);
+        if( i < 0 ) {
+            return null;
         }
-        return null;   
+        return type.cast(components[i]);   
     }
 
     @Override
@@ -190,21 +208,18 @@ public class DefaultWatchedEntity implements WatchedEntity {
         //       the change then we risk the caller missing
         //       updates that they set themselves which destroys
         //       typical MVC patterns.
-        for( int i = 0; i < types.length; i++ ) {
-            if( types[i] == change.getComponentType() ) {
-                components[i] = change.getComponent();
-                return true;
-            }
-        }    
-        return false;
+        int i = typeSet.indexOf(change.getComponentTypeId());
+        if( i < 0 ) {
+            return false;
+        }
+        components[i] = change.getComponent();
+        return true;
     }
 
     @Override
     public void release() {
         released = true;
-        if( ed instanceof ObservableEntityData ) {
-            ((ObservableEntityData)ed).removeEntityComponentListener(listener);
-        }
+        stopWatching();
     }
  
     protected boolean isReleased() {
@@ -213,14 +228,15 @@ public class DefaultWatchedEntity implements WatchedEntity {
  
     protected void addChange( EntityChange change ) {
 
-        // If it's not for this entity then just ignore it
+        // If it's not for this entity then just ignore it.  This should
+        // only happen when we are a plain listener.
         if( id.getId() != change.getEntityId().getId() ) {
             return;
         }
             
         // Now that we've done the quick check do the ever slightly
         // more expensive check
-        if( !typeSet.contains(change.getComponentType()) ) {
+        if( !typeSet.contains(change.getComponentTypeId()) ) {
             return;
         }
 
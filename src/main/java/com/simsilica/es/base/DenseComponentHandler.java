@@ -0,0 +1,310 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ *  In-memory component handler that keeps components in arrays indexed
+ *  by the slot of a dense entity ID as handed out by the DenseEntityIdGenerator.
+ *  Lookups are a couple of array reads with no hashing and no per-component
+ *  node objects.  The full ID is kept next to each component so that 
+ *  lookups using the ID of a removed entity whose slot has been reused 
+ *  don't find the new entity's components.
+ *
+ *  <p>Writes to a page are serialized so that a slot's ID and component
+ *  always change together.  A write using the ID of an entity that is older 
+ *  than the slot's current owner is ignored, and a write for a newer owner 
+ *  first clears any component left behind by the previous owner.  Reads 
+ *  are lock-free.</p>
+ *
+ *  <p>The arrays grow in pages as higher slots are used but never shrink.
+ *  The set returned from getEntities() is a live view of the entity IDs
+ *  in this handler.  EntityId objects are only created as it is iterated.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class DenseComponentHandler<T extends EntityComponent> 
+                    implements ComponentHandler<T> {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final ReentrantLock growLock = new ReentrantLock();
+    private volatile Page<T>[] pages = newPages(0);
+    private final AtomicInteger size = new AtomicInteger();
+    private final EntityIdView entityIds = new EntityIdView();
+    
+    public DenseComponentHandler() {
+    }
+ 
+    @SuppressWarnings("unchecked")
+    private static <T> Page<T>[] newPages( int size ) {
+        return new Page[size];
+    }
+
+    private Page<T> getPage( int slot, boolean create ) {
+        int index = slot >>> PAGE_BITS;
+        Page<T>[] array = pages;
+        if( index < array.length ) {
+            return array[index];
+        }
+        if( !create ) {
+            return null;
+        }
+        growLock.lock();
+        try {
+            array = pages;
+            if( index >= array.length ) {
+                Page<T>[] grown = newPages(index + 1);
+                System.arraycopy(array, 0, grown, 0, array.length);
+                for( int i = array.length; i < grown.length; i++ ) {
+                    grown[i] = new Page<T>();
+                }
+                pages = grown;
+                array = grown;
+            }
+            return array[index];
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    @Override
+    public void setComponent( EntityId entityId, T component ) {
+        long id = entityId.getId();
+        int slot = DenseEntityIdGenerator.slot(id);
+        Page<T> page = getPage(slot, true);
+        int i = slot & PAGE_MASK;
+        
+        synchronized( page ) {
+            T previous = page.components.get(i);
+            long existing = page.ids.get(i);
+            if( existing != id ) {
+                if( previous != null && DenseEntityIdGenerator.isNewer(existing, id) ) {
+                    // The entity was removed and its slot already belongs 
+                    // to a newer one
+                    return;
+                }
+                
+                // Whatever is there belongs to a removed entity.  Clear it 
+                // before the ID changes so that a reader with the new ID never 
+                // sees it and then put the ID in first so that a reader using 
+                // the older ID will see the change when it rechecks.
+                if( previous != null ) {
+                    page.components.set(i, null);
+                }
+                page.ids.set(i, id);
+            }
+            page.components.set(i, component);
+            if( previous == null ) {
+                size.incrementAndGet();
+            }
+        }
+    }
+    
+    @Override
+    public boolean removeComponent( EntityId entityId ) {
+        long id = entityId.getId();
+        int slot = DenseEntityIdGenerator.slot(id);
+        Page<T> page = getPage(slot, false);
+        if( page == null ) {
+            return false;
+        }
+        int i = slot & PAGE_MASK;
+        synchronized( page ) {
+            if( page.ids.get(i) != id || page.components.get(i) == null ) {
+                return false;
+            }
+            page.components.set(i, null);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+    
+    @Override
+    public T getComponent( EntityId entityId ) {
+        long id = entityId.getId();
+        int slot = DenseEntityIdGenerator.slot(id);
+        Page<T> page = getPage(slot, false);
+        if( page == null ) {
+            return null;
+        }
+        int i = slot & PAGE_MASK;
+        if( page.ids.get(i) != id ) {
+            return null;
+        }
+        T result = page.components.get(i);
+        
+        // Make sure the slot wasn't taken over while we were reading it
+        if( page.ids.get(i) != id ) {
+            return null;
+        }
+        return result;
+    }
+    
+    @Override
+    public Set<EntityId> getEntities() {
+        return entityIds;
+    } 
+
+    @Override
+    public Set<EntityId> getEntities( ComponentFilter filter ) {
+    
+        if( filter == null ) {
+            return entityIds;
+        }
+               
+        Set<EntityId> results = new HashSet<EntityId>();
+        for( Page<T> page : pages ) {
+            for( int i = 0; i < PAGE_SIZE; i++ ) {
+                T c = page.components.get(i);
+                if( c != null && filter.evaluate(c) ) {
+                    results.add(new EntityId(page.ids.get(i)));
+                }
+            }
+        }
+        return results;
+    }
+    
+    @Override
+    public EntityId findEntity( ComponentFilter filter ) {
+        for( Page<T> page : pages ) {
+            for( int i = 0; i < PAGE_SIZE; i++ ) {
+                T c = page.components.get(i);
+                if( c != null && (filter == null || filter.evaluate(c)) ) {
+                    return new EntityId(page.ids.get(i));
+                }
+            }
+        }
+        return null;
+    }
+ 
+    @Override
+    public String toString() {
+        return "DenseComponentHandler[size=" + size.get() + ", pages=" + pages.length + "]";
+    }
+ 
+    private static class Page<T> {
+        final AtomicLongArray ids = new AtomicLongArray(PAGE_SIZE);
+        final AtomicReferenceArray<T> components = new AtomicReferenceArray<T>(PAGE_SIZE);
+    }
+    
+    /**
+     *  A read-only set view of the entity IDs in the component arrays.
+     */   
+    private class EntityIdView extends AbstractSet<EntityId> {
+ 
+        @Override
+        public int size() {
+            return size.get();
+        }
+        
+        @Override
+        public boolean contains( Object o ) {
+            if( !(o instanceof EntityId) ) {
+                return false;
+            }
+            return getComponent((EntityId)o) != null;
+        }
+               
+        @Override
+        public Iterator<EntityId> iterator() {
+            return new EntityIdIterator(pages);
+        }
+    }
+    
+    private static class EntityIdIterator<T> implements Iterator<EntityId> {
+        private final Page<T>[] pages;
+        private int page;
+        private int index = -1;
+        private EntityId next;
+        
+        public EntityIdIterator( Page<T>[] pages ) {
+            this.pages = pages;
+            advance();
+        }
+ 
+        private void advance() {
+            next = null;
+            while( page < pages.length ) {
+                Page<T> p = pages[page];
+                while( ++index < PAGE_SIZE ) {
+                    if( p.components.get(index) != null ) {
+                        next = new EntityId(p.ids.get(index));
+                        return;
+                    }
+                }
+                page++;
+                index = -1;
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public EntityId next() {
+            if( next == null ) {
+                throw new NoSuchElementException();
+            }
+            EntityId result = next;
+            advance();
+            return result;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Entity ID view is read-only.");
+        }
+    }
+}
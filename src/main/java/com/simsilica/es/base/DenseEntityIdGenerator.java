@@ -0,0 +1,203 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ *  Hands out entity IDs that pack a dense slot index into the low
+ *  32 bits and a generation counter into the 31 bits above that.  When 
+ *  an entity is removed its slot is recycled for a later entity with
+ *  the next generation so the slots stay dense and can be used as array 
+ *  indexes, for example by the DenseComponentHandler.  An ID whose
+ *  generation no longer matches its slot's current generation refers
+ *  to an entity that has been removed.
+ *
+ *  <p>Until slots start being recycled, the IDs handed out are 0, 1, 2,
+ *  etc. just like the DefaultEntityIdGenerator.  Freed slots are reused 
+ *  in the order they were freed.  A slot's generation wraps after 2^31 
+ *  reuses.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class DenseEntityIdGenerator implements EntityIdGenerator {
+
+    private static final long SLOT_MASK = 0xffffffffL;
+    private static final int GENERATION_MASK = 0x7fffffff;
+    
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> freeIds = new ConcurrentLinkedQueue<Long>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final ReentrantLock growLock = new ReentrantLock();
+    private volatile AtomicIntegerArray[] generations = new AtomicIntegerArray[0];
+
+    public DenseEntityIdGenerator() {
+    }
+
+    /**
+     *  Returns the slot index packed into the specified ID.
+     */
+    public static int slot( long id ) {
+        return (int)(id & SLOT_MASK);
+    }
+ 
+    /**
+     *  Returns the generation packed into the specified ID.
+     */
+    public static int generation( long id ) {
+        return (int)(id >>> 32) & GENERATION_MASK;
+    }
+ 
+    public static long pack( int slot, int generation ) {
+        return ((long)(generation & GENERATION_MASK) << 32) | (slot & SLOT_MASK);
+    }
+ 
+    @Override
+    public long nextEntityId() {
+        Long recycled = freeIds.poll();
+        if( recycled != null ) {
+            freeCount.decrementAndGet();
+            return recycled;
+        }
+        int slot = nextSlot.getAndIncrement();
+        if( slot < 0 ) {
+            throw new IllegalStateException("Entity slots exhausted");
+        }
+        return pack(slot, 0);
+    }
+ 
+    /**
+     *  Frees the slot of the specified entity ID so that it can be handed 
+     *  out again with the next generation.  Returns false if the ID was 
+     *  already released or was never handed out by this generator.
+     */
+    public boolean releaseEntityId( long id ) {
+        int slot = slot(id);
+        if( id < 0 || slot >= nextSlot.get() ) {
+            return false;
+        }
+        int generation = generation(id);
+        AtomicIntegerArray page = getPage(slot);
+        int next = (generation + 1) & GENERATION_MASK;
+        if( !page.compareAndSet(slot & PAGE_MASK, generation, next) ) {
+            return false;
+        }
+        freeIds.add(pack(slot, next));
+        freeCount.incrementAndGet();
+        return true;
+    }
+ 
+    /**
+     *  Returns true if the specified ID has the current generation
+     *  for its slot, ie: it has not been released.
+     */
+    public boolean isCurrent( long id ) {
+        int slot = slot(id);
+        if( id < 0 || slot >= nextSlot.get() ) {
+            return false;
+        }
+        AtomicIntegerArray[] array = generations;
+        int index = slot >>> PAGE_BITS;
+        if( index >= array.length ) {
+            // Never released so still on its first generation
+            return generation(id) == 0;
+        }
+        return array[index].get(slot & PAGE_MASK) == generation(id);
+    }
+ 
+    /**
+     *  Returns the number of slots that have been handed out so far,
+     *  including the ones that are currently free.
+     */
+    public int getSlotCount() {
+        return nextSlot.get();
+    }
+ 
+    /**
+     *  Returns the number of slots waiting to be reused.
+     */
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+ 
+    /**
+     *  Returns true if the generation of ID 'a' is newer than the generation 
+     *  of ID 'b', taking wrapping into account.  Only meaningful for IDs
+     *  of the same slot.
+     */
+    public static boolean isNewer( long a, long b ) {
+        int delta = (generation(a) - generation(b)) & GENERATION_MASK;
+        return delta != 0 && delta < (1 << 30);
+    }
+ 
+    private AtomicIntegerArray getPage( int slot ) {
+        int index = slot >>> PAGE_BITS;
+        AtomicIntegerArray[] array = generations;
+        if( index < array.length ) {
+            return array[index];
+        }
+        growLock.lock();
+        try {
+            array = generations;
+            if( index >= array.length ) {
+                AtomicIntegerArray[] grown = new AtomicIntegerArray[index + 1];
+                System.arraycopy(array, 0, grown, 0, array.length);
+                for( int i = array.length; i < grown.length; i++ ) {
+                    grown[i] = new AtomicIntegerArray(PAGE_SIZE);
+                }
+                generations = grown;
+                array = grown;
+            }
+            return array[index];
+        } finally {
+            growLock.unlock();
+        }
+    }
+ 
+    @Override
+    public String toString() {
+        return "DenseEntityIdGenerator[slots=" + getSlotCount() + ", free=" + getFreeCount() + "]";
+    }
+}
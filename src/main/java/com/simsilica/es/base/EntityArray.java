@@ -0,0 +1,146 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.Entity;
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+
+/**
+ *  A dense, immutable snapshot of an entity set's entities used
+ *  for splitting per-entity work across threads.  The snapshot 
+ *  reflects the set as of the last applyChanges() and is rebuilt
+ *  lazily by the owning set after its membership changes.
+ *
+ *  @author    Paul Speed
+ */
+public class EntityArray {
+
+    /**
+     *  The smallest run of entities that will be handed to a single
+     *  task.  Below this the fork overhead outweighs the work.
+     */
+    public static final int MIN_CHUNK = 64;
+ 
+    private static final int CHARACTERISTICS = Spliterator.DISTINCT 
+                                             | Spliterator.NONNULL 
+                                             | Spliterator.IMMUTABLE;
+ 
+    private final Entity[] array;
+    
+    public EntityArray( Collection<Entity> entities ) {
+        this.array = entities.toArray(new Entity[entities.size()]);
+    }
+ 
+    public int size() {
+        return array.length;
+    }
+ 
+    public Entity get( int index ) {
+        return array[index];
+    }
+ 
+    /**
+     *  Returns a sized, splittable spliterator over the snapshot.
+     */
+    public Spliterator<Entity> spliterator() {
+        return Spliterators.spliterator(array, CHARACTERISTICS);
+    }
+ 
+    /**
+     *  Performs the specified action for every entity in the snapshot
+     *  using the specified pool or the common pool if the pool is null.  
+     *  Returns when all entities have been visited.  The first exception 
+     *  thrown by the action is rethrown to the caller.
+     */
+    public void parallelForEach( Consumer<? super Entity> action, ForkJoinPool pool ) {
+        if( action == null ) {
+            throw new IllegalArgumentException("Action cannot be null");
+        }
+        if( array.length == 0 ) {
+            return;
+        }
+        if( pool == null ) {
+            pool = ForkJoinPool.commonPool();
+        }
+        
+        // A few chunks per worker so that the stealing can even
+        // out uneven per-entity costs
+        int chunk = Math.max(MIN_CHUNK, array.length / (pool.getParallelism() * 4));
+        if( array.length <= chunk ) {
+            for( Entity e : array ) {
+                action.accept(e);
+            }
+            return;
+        }
+        pool.invoke(new ForEachTask(action, 0, array.length, chunk));
+    }
+ 
+    private class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Consumer<? super Entity> action;
+        private final int start;
+        private final int end;
+        private final int chunk;
+        
+        public ForEachTask( Consumer<? super Entity> action, int start, int end, int chunk ) {
+            this.action = action;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+        
+        @Override
+        protected void compute() {
+            if( end - start <= chunk ) {
+                for( int i = start; i < end; i++ ) {
+                    action.accept(array[i]);
+                }
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new ForEachTask(action, start, mid, chunk), 
+                      new ForEachTask(action, mid, end, chunk));
+        }
+    }
+}
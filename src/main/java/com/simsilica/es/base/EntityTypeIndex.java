@@ -0,0 +1,178 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentTypes;
+import com.simsilica.es.EntityId;
+import com.simsilica.util.ConcurrentLongMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ *  Keeps track of which component types each entity currently has
+ *  as a compact bit mask per entity.  Each component type's bit is its
+ *  global ComponentTypes ID.  This lets removeEntity() visit 
+ *  only the component types an entity actually owns instead of every
+ *  known component type.
+ *
+ *  <p>Masks are immutable arrays that are swapped on change so that
+ *  readers never need to lock.  Setting a bit that is already set
+ *  does not lock or allocate, which is the common case for component
+ *  updates.  An entity's mask is dropped when its last bit is cleared.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class EntityTypeIndex {
+
+    private final ConcurrentLongMap<long[]> masks = new ConcurrentLongMap<long[]>();
+    private final Object lock = new Object();
+    
+    public EntityTypeIndex() {
+    }
+
+    /**
+     *  Returns the bit assigned to the specified type.
+     */
+    public int getTypeBit( Class type ) {
+        return ComponentTypes.getId(type);
+    }
+ 
+    /**
+     *  Records that the specified entity has a component of
+     *  the specified type.
+     */   
+    public void add( EntityId entityId, Class type ) {
+        int bit = getTypeBit(type);
+        long key = entityId.getId();
+        if( ComponentTypes.isSet(masks.get(key), bit) ) {
+            return;
+        }
+        synchronized( lock ) {
+            long[] mask = masks.get(key);
+            if( ComponentTypes.isSet(mask, bit) ) {
+                return;
+            }
+            int word = bit >>> 6;
+            long[] copy = new long[Math.max(word + 1, mask == null ? 0 : mask.length)];
+            if( mask != null ) {
+                System.arraycopy(mask, 0, copy, 0, mask.length);
+            }
+            copy[word] |= 1L << bit;
+            masks.put(key, copy);
+        }
+    }
+    
+    /**
+     *  Records that the specified entity no longer has a component
+     *  of the specified type.
+     */
+    public void remove( EntityId entityId, Class type ) {
+        int bit = getTypeBit(type);
+        long key = entityId.getId();
+        synchronized( lock ) {
+            long[] mask = masks.get(key);
+            if( !ComponentTypes.isSet(mask, bit) ) {
+                return;
+            }
+            long[] copy = mask.clone();
+            copy[bit >>> 6] &= ~(1L << bit);
+            if( isEmpty(copy) ) {
+                masks.remove(key);
+            } else {
+                masks.put(key, copy);
+            }
+        }
+    }
+ 
+    /**
+     *  Forgets everything known about the specified entity.
+     */   
+    public void clear( EntityId entityId ) {
+        synchronized( lock ) {
+            masks.remove(entityId.getId());
+        }
+    }
+ 
+    public boolean hasType( EntityId entityId, Class type ) {
+        return ComponentTypes.isSet(masks.get(entityId.getId()), getTypeBit(type));
+    }
+    
+    /**
+     *  Returns the component types that the specified entity 
+     *  currently has.
+     */
+    public List<Class> getTypes( EntityId entityId ) {
+        long[] mask = masks.get(entityId.getId());
+        if( mask == null ) {
+            return Collections.emptyList();
+        }
+        List<Class> results = new ArrayList<Class>();
+        for( int word = 0; word < mask.length; word++ ) {
+            long bits = mask[word];
+            while( bits != 0 ) {
+                int bit = Long.numberOfTrailingZeros(bits); 
+                results.add(ComponentTypes.getType((word << 6) + bit));
+                bits &= bits - 1;
+            }
+        }
+        return results;
+    }
+ 
+    /**
+     *  Returns the number of entities that currently have at least one
+     *  component type recorded.
+     */   
+    public int getEntityCount() {
+        return masks.size();
+    }
+ 
+    private static boolean isEmpty( long[] mask ) {
+        for( long l : mask ) {
+            if( l != 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return "EntityTypeIndex[entities=" + masks.size() + "]";
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ *  A hash index of entity IDs by the value of one field of
+ *  a particular component type.  Values are compared with .equals()
+ *  the same way that FieldFilter compares them.
+ *
+ *  <p>Lookups are safe to perform from any thread but updates are
+ *  expected to be serialized by the caller, ie: the IndexedComponentHandler
+ *  that owns this index.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class FieldIndex {
+
+    /**
+     *  The concurrent maps do not support null keys so null
+     *  field values are stored under this key.
+     */
+    protected static final Object NULL_KEY = new Object();
+
+    private final Class type;
+    private final Field field;
+    private final ConcurrentMap<Object, Set<EntityId>> index;
+    
+    public FieldIndex( Class type, String fieldName ) {
+        this(type, fieldName, new ConcurrentHashMap<Object, Set<EntityId>>());
+    }
+    
+    protected FieldIndex( Class type, String fieldName, ConcurrentMap<Object, Set<EntityId>> index ) {
+        this.index = index;
+        try {
+            this.type = type;
+            this.field = type.getDeclaredField(fieldName);
+            this.field.setAccessible(true);
+        } catch( NoSuchFieldException e ) {
+            throw new IllegalArgumentException("Field not found:" + fieldName + " on type:" + type, e);
+        }
+    }
+    
+    public Class getComponentType() {
+        return type;
+    }
+    
+    public String getFieldName() {
+        return field.getName();
+    }
+    
+    protected Field getField() {
+        return field;
+    }
+ 
+    protected Object getKey( EntityComponent c ) {
+        try {
+            Object result = field.get(c);
+            return result == null ? NULL_KEY : result;
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException("Error retrieving field[" + field + "] of:" + c, e);
+        }
+    }
+ 
+    /**
+     *  Updates the index for a component change.  Either component may
+     *  be null to indicate an add or a remove. 
+     */   
+    public void update( EntityId id, EntityComponent oldValue, EntityComponent newValue ) {
+        Object oldKey = oldValue == null ? null : getKey(oldValue);
+        Object newKey = newValue == null ? null : getKey(newValue);
+        if( oldKey != null && newKey != null && oldKey.equals(newKey) ) {
+            // Nothing to do
+            return;
+        }
+        if( oldKey != null ) {
+            Set<EntityId> ids = index.get(oldKey);
+            if( ids != null ) {
+                ids.remove(id);
+                if( ids.isEmpty() ) {
+                    index.remove(oldKey);
+                }
+            }
+        }
+        if( newKey != null ) {
+            Set<EntityId> ids = index.get(newKey);
+            if( ids == null ) {
+                ids = Collections.newSetFromMap(new ConcurrentHashMap<EntityId, Boolean>());
+                index.put(newKey, ids);
+            }
+            ids.add(id);
+        }
+    }
+ 
+    /**
+     *  Returns a read-only live view of the entity IDs whose field
+     *  matches the specified value.
+     */   
+    public Set<EntityId> lookup( Object value ) {
+        return wrap(index.get(value == null ? NULL_KEY : value));
+    }
+    
+    protected static Set<EntityId> wrap( Set<EntityId> ids ) {
+        if( ids == null ) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+ 
+    /**
+     *  Returns the number of distinct values in the index.
+     */   
+    public int getValueCount() {
+        return index.size();
+    }
+ 
+    public void clear() {
+        index.clear();
+    }
+    
+    @Override
+    public String toString() {
+        return "FieldIndex[" + field + ", values=" + index.size() + "]";
+    }
+}
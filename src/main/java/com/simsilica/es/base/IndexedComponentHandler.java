@@ -0,0 +1,390 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.Indexed;
+import com.simsilica.es.filter.AndFilter;
+import com.simsilica.es.filter.FieldFilter;
+import com.simsilica.es.filter.InFilter;
+import com.simsilica.es.filter.OrFilter;
+import com.simsilica.es.filter.RangeFilter;
+import com.simsilica.es.filter.ValueComparator;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *  Wraps another ComponentHandler to maintain secondary indexes
+ *  on some of the component's fields.  FieldFilter and InFilter queries 
+ *  against an indexed field, RangeFilter queries against a field with
+ *  an ordered index, and OrFilter/AndFilter trees made of them, are answered
+ *  from the indexes instead of evaluating the filter against every
+ *  component.  Any other filter is passed through to the delegate.
+ *
+ *  <p>Writes are serialized so that the indexes stay consistent with
+ *  the delegate.  Reads are not blocked.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class IndexedComponentHandler<T extends EntityComponent> 
+                    implements ComponentHandler<T> {
+
+    private final ComponentHandler<T> delegate;
+    private final Class<T> type;
+    private final Map<String, FieldIndex> indexes = new ConcurrentHashMap<String, FieldIndex>();
+    
+    public IndexedComponentHandler( ComponentHandler<T> delegate, Class<T> type, String... fields ) {
+        this.delegate = delegate;
+        this.type = type;
+        for( String field : fields ) {
+            addIndex(field, false);
+        }
+    }
+ 
+    /**
+     *  Creates an indexed handler for the specified field-to-ordered
+     *  mappings.  Fields mapped to true get an ordered index.
+     */
+    public IndexedComponentHandler( ComponentHandler<T> delegate, Class<T> type, Map<String, Boolean> fields ) {
+        this.delegate = delegate;
+        this.type = type;
+        for( Map.Entry<String, Boolean> e : fields.entrySet() ) {
+            addIndex(e.getKey(), e.getValue());
+        }
+    }
+ 
+    /**
+     *  Returns the names of the fields of the specified type that have
+     *  been annotated with @Indexed mapped to whether the index should be 
+     *  ordered or not.
+     */   
+    public static Map<String, Boolean> getIndexedFields( Class type ) {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        for( Field f : type.getDeclaredFields() ) {
+            if( Modifier.isStatic(f.getModifiers()) ) {
+                continue;
+            }
+            Indexed indexed = f.getAnnotation(Indexed.class);
+            if( indexed != null ) {
+                results.put(f.getName(), indexed.ordered());
+            }
+        }
+        return results;
+    }
+    
+    public ComponentHandler<T> getDelegate() {
+        return delegate;
+    }
+ 
+    /**
+     *  Adds an index for the specified field if one does not already
+     *  exist, populating it from the delegate's current components.  If
+     *  ordered is true and the field currently only has a hash index then
+     *  it is replaced with an ordered index.
+     */   
+    public synchronized void addIndex( String field, boolean ordered ) {
+        FieldIndex existing = indexes.get(field);
+        if( existing != null && (!ordered || existing instanceof SortedFieldIndex) ) {
+            return;
+        }
+        FieldIndex index = ordered ? new SortedFieldIndex(type, field) : new FieldIndex(type, field);
+        for( EntityId id : delegate.getEntities() ) {
+            T value = delegate.getComponent(id);
+            if( value != null ) {
+                index.update(id, null, value);
+            }
+        }
+        indexes.put(field, index);
+    }
+    
+    public FieldIndex getIndex( String field ) {
+        return indexes.get(field);
+    }
+ 
+    @Override
+    public synchronized void setComponent( EntityId entityId, T component ) {
+        T old = delegate.getComponent(entityId);
+        delegate.setComponent(entityId, component);
+        for( FieldIndex index : indexes.values() ) {
+            index.update(entityId, old, component);
+        }
+    }
+    
+    @Override
+    public synchronized boolean removeComponent( EntityId entityId ) {
+        T old = delegate.getComponent(entityId);
+        boolean result = delegate.removeComponent(entityId);
+        if( old != null ) {
+            for( FieldIndex index : indexes.values() ) {
+                index.update(entityId, old, null);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public T getComponent( EntityId entityId ) {
+        return delegate.getComponent(entityId);
+    }
+    
+    @Override
+    public Set<EntityId> getEntities() {
+        return delegate.getEntities();
+    } 
+
+    @Override
+    public Set<EntityId> getEntities( ComponentFilter filter ) {
+        if( filter == null ) {
+            return delegate.getEntities();
+        }
+        Set<EntityId> result = query(filter);
+        if( result == null ) {
+            return delegate.getEntities(filter);
+        }
+        return result;
+    }
+    
+    @Override
+    public EntityId findEntity( ComponentFilter filter ) {
+        if( filter instanceof FieldFilter ) {
+            // Can avoid copying the index entries
+            FieldFilter ff = (FieldFilter)filter;
+            FieldIndex index = indexes.get(ff.getFieldName());
+            if( index != null ) {
+                Iterator<EntityId> it = index.lookup(ff.getValue()).iterator();
+                return it.hasNext() ? it.next() : null;
+            }
+        } 
+        if( filter != null ) {
+            Set<EntityId> result = query(filter);
+            if( result != null ) {
+                return result.isEmpty() ? null : result.iterator().next();
+            }
+        }
+        return delegate.findEntity(filter);
+    }
+ 
+    /**
+     *  Returns the IDs of the entities matching the specified filter
+     *  as resolved from the indexes or null if the filter cannot be
+     *  resolved from indexes.  The returned set is always a new set that
+     *  the caller can modify.
+     */
+    protected Set<EntityId> query( ComponentFilter filter ) {
+        if( filter instanceof FieldFilter ) {
+            FieldFilter ff = (FieldFilter)filter;
+            FieldIndex index = indexes.get(ff.getFieldName());
+            if( index == null ) {
+                return null;
+            }
+            return new HashSet<EntityId>(index.lookup(ff.getValue()));
+        } else if( filter instanceof InFilter ) {
+            InFilter in = (InFilter)filter;
+            FieldIndex index = indexes.get(in.getFieldName());
+            if( index == null ) {
+                return null;
+            }
+            Set<EntityId> result = new HashSet<EntityId>();
+            for( Object value : in.getValues() ) {
+                result.addAll(index.lookup(value));
+            }
+            return result;
+        } else if( filter instanceof RangeFilter ) {
+            RangeFilter range = (RangeFilter)filter;
+            FieldIndex index = indexes.get(range.getFieldName());
+            if( !(index instanceof SortedFieldIndex) ) {
+                return null;
+            }
+            return ((SortedFieldIndex)index).range(range.getMin(), range.isMinInclusive(),
+                                                   range.getMax(), range.isMaxInclusive()); 
+        } else if( filter instanceof OrFilter ) {
+            ComponentFilter[] operands = ((OrFilter)filter).getOperands();
+            if( operands == null ) {
+                // No operands means it matches everything 
+                return null;
+            }
+            Set<EntityId> result = new HashSet<EntityId>();
+            for( ComponentFilter op : operands ) {
+                Set<EntityId> sub = query(op);
+                if( sub == null ) {
+                    // If any branch needs a scan then the whole
+                    // thing needs a scan
+                    return null;
+                }
+                result.addAll(sub);
+            }
+            return result;
+        } else if( filter instanceof AndFilter ) {
+            ComponentFilter[] operands = ((AndFilter)filter).getOperands();
+            if( operands == null ) {
+                return null;
+            }
+            Set<EntityId> result = null;
+            List<ComponentFilter> residual = new ArrayList<ComponentFilter>();
+            for( ComponentFilter op : operands ) {
+                Set<EntityId> sub = query(op);
+                if( sub == null ) {
+                    residual.add(op);
+                    continue;
+                }
+                if( result == null ) {
+                    result = sub;
+                } else {
+                    result.retainAll(sub);
+                }
+                if( result.isEmpty() ) {
+                    return result;
+                }
+            }
+            if( result == null ) {
+                // Nothing was indexed
+                return null;
+            }
+            
+            // Whatever couldn't be answered from an index is checked
+            // against the much smaller candidate set.
+            if( !residual.isEmpty() ) {
+                for( Iterator<EntityId> it = result.iterator(); it.hasNext(); ) {
+                    T value = delegate.getComponent(it.next());
+                    if( value == null || !matchesAll(residual, value) ) {
+                        it.remove();
+                    }
+                }
+            }
+            return result;
+        }
+        return null;
+    }
+    
+    /**
+     *  Collects the IDs of the entities that match the new filter but not 
+     *  the old one into entering and the IDs of the ones that match the old
+     *  filter but not the new one into leaving.  Returns false if this can't 
+     *  be resolved from the indexes.  For range filters on an ordered index,
+     *  only the parts of the ranges that don't overlap are looked up
+     *  so the work is proportional to the difference between the two filters 
+     *  rather than the size of their results.
+     */
+    public boolean diff( ComponentFilter oldFilter, ComponentFilter newFilter, 
+                         Set<EntityId> entering, Set<EntityId> leaving ) {
+        if( oldFilter instanceof RangeFilter && newFilter instanceof RangeFilter ) {
+            RangeFilter from = (RangeFilter)oldFilter;
+            RangeFilter to = (RangeFilter)newFilter;
+            if( !from.getFieldName().equals(to.getFieldName()) ) {
+                return false;
+            }
+            FieldIndex index = indexes.get(to.getFieldName());
+            if( !(index instanceof SortedFieldIndex) ) {
+                return false;
+            }
+            addDifference((SortedFieldIndex)index, to, from, entering);
+            addDifference((SortedFieldIndex)index, from, to, leaving);
+            return true;
+        } else if( oldFilter instanceof FieldFilter && newFilter instanceof FieldFilter ) {
+            FieldFilter from = (FieldFilter)oldFilter;
+            FieldFilter to = (FieldFilter)newFilter;
+            if( !from.getFieldName().equals(to.getFieldName()) ) {
+                return false;
+            }
+            FieldIndex index = indexes.get(to.getFieldName());
+            if( index == null ) {
+                return false;
+            }
+            if( !from.equals(to) ) {
+                entering.addAll(index.lookup(to.getValue()));
+                leaving.addAll(index.lookup(from.getValue()));
+            }
+            return true;
+        }
+        return false;
+    }
+ 
+    /**
+     *  Adds the IDs with values inside 'range' but outside of 'excluded'.
+     *  That is the part of 'range' below 'excluded' and the part above it.
+     */   
+    private static void addDifference( SortedFieldIndex index, RangeFilter range, RangeFilter excluded, 
+                                       Set<EntityId> results ) {
+        if( excluded.getMin() != null ) {
+            // Everything in range that is below excluded's minimum
+            Object max = range.getMax();
+            boolean maxInclusive = range.isMaxInclusive();
+            int c = max == null ? 1 : ValueComparator.INSTANCE.compare(max, excluded.getMin());
+            if( c >= 0 ) {
+                maxInclusive = c == 0 ? maxInclusive && !excluded.isMinInclusive() : !excluded.isMinInclusive();
+                max = excluded.getMin();
+            }
+            results.addAll(index.range(range.getMin(), range.isMinInclusive(), max, maxInclusive));
+        }
+        if( excluded.getMax() != null ) {
+            // Everything in range that is above excluded's maximum
+            Object min = range.getMin();
+            boolean minInclusive = range.isMinInclusive();
+            int c = min == null ? -1 : ValueComparator.INSTANCE.compare(min, excluded.getMax());
+            if( c <= 0 ) {
+                minInclusive = c == 0 ? minInclusive && !excluded.isMaxInclusive() : !excluded.isMaxInclusive();
+                min = excluded.getMax();
+            }
+            results.addAll(index.range(min, minInclusive, range.getMax(), range.isMaxInclusive()));
+        }
+    }
+    
+    private static boolean matchesAll( List<ComponentFilter> filters, EntityComponent c ) {
+        for( ComponentFilter f : filters ) {
+            if( !f.evaluate(c) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return "IndexedComponentHandler[" + indexes.values() + ", delegate=" + delegate + "]";
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import com.simsilica.util.ConcurrentLongMap;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ *  In-memory component handler that stores components in a
+ *  primitive long-keyed table instead of a Map&lt;EntityId,T&gt;.  This
+ *  avoids keeping an EntityId object and a map node per component which
+ *  can add up to a lot of heap (and GC time) when there are hundreds of
+ *  thousands of entities with a particular component type.
+ *
+ *  <p>The set returned from getEntities() is a live view of the entity IDs
+ *  in this handler.  EntityId objects are only created as it is iterated.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class LongMapComponentHandler<T extends EntityComponent> 
+                    implements ComponentHandler<T> {
+
+    private final ConcurrentLongMap<T> components;
+    private final EntityIdView entityIds = new EntityIdView();
+    
+    public LongMapComponentHandler() {
+        this.components = new ConcurrentLongMap<T>();
+    }
+    
+    public LongMapComponentHandler( int initialCapacity ) {
+        this.components = new ConcurrentLongMap<T>(initialCapacity);
+    }
+
+    @Override
+    public void setComponent( EntityId entityId, T component ) {
+        components.put(entityId.getId(), component);
+    }
+    
+    @Override
+    public boolean removeComponent( EntityId entityId ) {
+        return components.remove(entityId.getId()) != null;
+    }
+    
+    @Override
+    public T getComponent( EntityId entityId ) {
+        return components.get(entityId.getId());
+    }
+    
+    @Override
+    public Set<EntityId> getEntities() {
+        return entityIds;
+    } 
+
+    @Override
+    public Set<EntityId> getEntities( ComponentFilter filter ) {
+    
+        if( filter == null ) {
+            return entityIds;
+        }
+               
+        Set<EntityId> results = new HashSet<EntityId>();
+        ConcurrentLongMap.Cursor<T> cursor = components.cursor();
+        while( cursor.next() ) {
+            if( filter.evaluate(cursor.getValue()) ) {
+                results.add(new EntityId(cursor.getKey()));
+            }
+        }
+        return results;
+    }
+    
+    @Override
+    public EntityId findEntity( ComponentFilter filter ) {
+        ConcurrentLongMap.Cursor<T> cursor = components.cursor();
+        while( cursor.next() ) {
+            if( filter == null || filter.evaluate(cursor.getValue()) ) {
+                return new EntityId(cursor.getKey());
+            }
+        }
+        return null;
+    }
+ 
+    @Override
+    public String toString() {
+        return "LongMapComponentHandler[" + components + "]";
+    }
+    
+    /**
+     *  A read-only set view of the keys in the component table.
+     */   
+    private class EntityIdView extends AbstractSet<EntityId> {
+ 
+        @Override
+        public int size() {
+            return components.size();
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return components.isEmpty();
+        }
+        
+        @Override
+        public boolean contains( Object o ) {
+            if( !(o instanceof EntityId) ) {
+                return false;
+            }
+            return components.containsKey(((EntityId)o).getId());
+        }
+               
+        @Override
+        public Iterator<EntityId> iterator() {
+            return new EntityIdIterator(components.cursor());
+        }
+    }
+    
+    private static class EntityIdIterator implements Iterator<EntityId> {
+        private final ConcurrentLongMap.Cursor cursor;
+        private boolean hasNext;
+        
+        public EntityIdIterator( ConcurrentLongMap.Cursor cursor ) {
+            this.cursor = cursor;
+            this.hasNext = cursor.next();
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+        
+        @Override
+        public EntityId next() {
+            if( !hasNext ) {
+                throw new NoSuchElementException();
+            }
+            EntityId result = new EntityId(cursor.getKey());
+            hasNext = cursor.next();
+            return result;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Entity ID view is read-only.");
+        }
+    }
+}
@@ -103,6 +103,35 @@ public class MemStringIndex implements StringIndex {
         } finally { 
             lock.readLock().unlock();
         }
-    }    
+    }
+ 
+    /**
+     *  Returns a copy of all of the strings in the index keyed by
+     *  their IDs.
+     */   
+    public Map<Integer, String> getStrings() {
+        lock.readLock().lock();
+        try {
+            return new HashMap<Integer, String>(strings);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+ 
+    /**
+     *  Adds a string with a previously assigned ID, for example when
+     *  restoring a saved index.  New strings will be given IDs after 
+     *  the largest loaded ID.
+     */   
+    public void load( int id, String s ) {
+        lock.writeLock().lock();
+        try {
+            index.put(s, id);
+            strings.put(id, s);
+            nextId = Math.max(nextId, id + 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 }
 
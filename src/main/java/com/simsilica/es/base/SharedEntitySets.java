@@ -0,0 +1,518 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.Entity;
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.EntitySet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+
+/**
+ *  Hands out lightweight EntitySet views over one canonical DefaultEntitySet 
+ *  per (types, filter) combination so that systems asking for the same
+ *  entities share the change queue and change resolution.
+ *  The canonical set is created for the first view and released when the
+ *  last view is released.
+ *
+ *  <p>Each view keeps its own membership and its own added, changed,
+ *  and removed sets.  Changes are resolved once, by whichever view calls
+ *  applyChanges() first, and the results are accumulated for every view until 
+ *  that view's own applyChanges().  Each view copies the resolved component
+ *  values into its own Entity objects during its applyChanges() so that 
+ *  one system applying changes never modifies the entities that another 
+ *  system may be iterating at the same time, for example when the systems 
+ *  run in parallel.</p>
+ *
+ *  <p>Calling resetFilter() on a view detaches it into its own private 
+ *  entity set since its results no longer match the other views.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class SharedEntitySets {
+
+    private final DefaultEntityData ed;
+    private final Map<Key, Shared> shared = new HashMap<Key, Shared>();
+    
+    public SharedEntitySets( DefaultEntityData ed ) {
+        this.ed = ed;
+    }
+ 
+    /**
+     *  Returns a new view of the shared entity set for the specified filter
+     *  and types, creating the shared set if needed.
+     */   
+    public EntitySet getEntitySet( ComponentFilter filter, Class... types ) {
+        Key key = new Key(filter, types);
+        synchronized( shared ) {
+            Shared set = shared.get(key);
+            if( set == null ) {
+                DefaultEntitySet source = ed.createSet(filter, types);
+                source.loadEntities(false);
+                set = new Shared(key, source);
+                shared.put(key, set);
+            }
+            return set.newView();
+        }
+    }
+ 
+    /**
+     *  Returns the number of canonical entity sets currently shared.
+     */   
+    public int getSharedCount() {
+        synchronized( shared ) {
+            return shared.size();
+        }
+    }
+    
+    /**
+     *  Returns the number of views of the shared entity sets.
+     */
+    public int getViewCount() {
+        int count = 0;
+        synchronized( shared ) {
+            for( Shared set : shared.values() ) {
+                count += set.views.size();
+            }
+        }
+        return count;
+    }
+ 
+    protected void release( Shared set, View view ) {
+        synchronized( shared ) {
+            set.views.remove(view);
+            if( set.views.isEmpty() ) {
+                shared.remove(set.key);
+                set.source.release();
+            }
+        }
+    }
+ 
+    /**
+     *  The canonical entity set for one key and its views.
+     */   
+    protected class Shared {
+        final Key key;
+        final DefaultEntitySet source;
+        final List<View> views = new CopyOnWriteArrayList<View>();
+        volatile boolean wantsUpdates;
+        
+        public Shared( Key key, DefaultEntitySet source ) {
+            this.key = key;
+            this.source = source;
+        }
+        
+        protected synchronized View newView() {
+            View view = new View(this);
+            views.add(view);
+            return view;
+        }
+ 
+        /**
+         *  Resolves the canonical set's pending changes once and hands the
+         *  results to all of the views.  Must be called while synchronized
+         *  on this object.
+         */       
+        protected void update() {
+            Set<EntityChange> updates = wantsUpdates ? new LinkedHashSet<EntityChange>() : null;
+            if( !source.applyChanges(updates) ) {
+                return;
+            }
+            for( View view : views ) {
+                view.accumulate(source.getAddedEntities(), source.getChangedEntities(), 
+                                source.getRemovedEntities(), updates);
+            }
+        }
+    }
+ 
+    /**
+     *  One system's view of a shared entity set.
+     */   
+    public class View extends AbstractSet<Entity> implements EntitySet {
+        private Shared set;
+        private DefaultEntitySet detached;
+        private final Class[] types;
+        private final ComponentTypeSet typeSet;
+        
+        // This view's own copies of the entities
+        private final Map<EntityId, Entity> entities = new HashMap<EntityId, Entity>();
+        
+        private final Set<Entity> addedEntities = new HashSet<Entity>();
+        private final Set<Entity> changedEntities = new HashSet<Entity>();
+        private final Set<Entity> removedEntities = new HashSet<Entity>();
+        
+        // Resolved by the shared set but not applied to this view yet.  These
+        // are the source set's entities and are only read under the lock.
+        private final Map<EntityId, Entity> pendingAdds = new HashMap<EntityId, Entity>();
+        private final Map<EntityId, Entity> pendingChanges = new HashMap<EntityId, Entity>();
+        private final Map<EntityId, Entity> pendingRemoves = new HashMap<EntityId, Entity>();
+        private Set<EntityChange> pendingUpdates;
+        
+        private boolean released;
+        private EntityArray dense;
+        
+        protected View( Shared set ) {
+            this.set = set;
+            this.types = set.source.getTypes();
+            this.typeSet = new ComponentTypeSet(types);
+            for( Entity e : set.source ) {
+                entities.put(e.getId(), copy(e));
+            }
+        }
+ 
+        private Entity copy( Entity source ) {
+            return new DefaultEntity(ed, source.getId(), source.getComponents().clone(), typeSet);
+        }
+ 
+        private Object getLock() {
+            return set != null ? set : this;
+        }
+ 
+        /**
+         *  Accumulates a round of resolved changes on top of whatever 
+         *  this view has not applied yet.  
+         */       
+        protected void accumulate( Set<Entity> added, Set<Entity> changed, Set<Entity> removed, 
+                                   Set<EntityChange> updates ) {
+            for( Entity e : added ) {
+                EntityId id = e.getId();
+                if( pendingRemoves.remove(id) != null ) {
+                    // It left and came back before we noticed 
+                    pendingChanges.put(id, e);
+                } else {
+                    pendingAdds.put(id, e);
+                }
+            }
+            for( Entity e : changed ) {
+                EntityId id = e.getId();
+                if( pendingAdds.containsKey(id) ) {
+                    pendingAdds.put(id, e);
+                } else {
+                    pendingChanges.put(id, e);
+                }
+            }
+            for( Entity e : removed ) {
+                EntityId id = e.getId();
+                if( pendingAdds.remove(id) != null ) {
+                    // We never saw it so we don't need to see it go
+                    continue;
+                }
+                pendingChanges.remove(id);
+                pendingRemoves.put(id, e);
+            }
+            if( updates != null && pendingUpdates != null ) {
+                pendingUpdates.addAll(updates);
+            }
+        }
+ 
+        @Override
+        public boolean applyChanges() {
+            return applyChanges(null);
+        }
+        
+        @Override
+        public boolean applyChanges( Set<EntityChange> updates ) {
+            clearChangeSets();
+            dense = null;
+            if( released ) {
+                removedEntities.addAll(entities.values());
+                entities.clear();
+                return hasChanges();
+            }
+            
+            synchronized( getLock() ) {
+                if( updates != null && pendingUpdates == null ) {
+                    pendingUpdates = new LinkedHashSet<EntityChange>();
+                    if( set != null ) {
+                        set.wantsUpdates = true;
+                    }
+                }
+                
+                if( set != null ) {
+                    set.update();
+                } else {
+                    Set<EntityChange> detachedUpdates = pendingUpdates != null ? new LinkedHashSet<EntityChange>() : null;
+                    if( detached.applyChanges(detachedUpdates) ) {
+                        accumulate(detached.getAddedEntities(), detached.getChangedEntities(), 
+                                   detached.getRemovedEntities(), detachedUpdates);
+                    }
+                }
+                
+                for( Entity e : pendingAdds.values() ) {
+                    Entity mine = copy(e);
+                    entities.put(e.getId(), mine);
+                    addedEntities.add(mine);
+                }
+                for( Entity e : pendingChanges.values() ) {
+                    Entity mine = entities.get(e.getId());
+                    if( mine == null ) {
+                        mine = copy(e);
+                        entities.put(e.getId(), mine);
+                    } else {
+                        // Update in place so that callers holding on to 
+                        // the entity see the new values like they would 
+                        // for a regular entity set
+                        EntityComponent[] values = e.getComponents();
+                        System.arraycopy(values, 0, mine.getComponents(), 0, values.length);
+                    }
+                    changedEntities.add(mine);
+                }
+                for( Entity e : pendingRemoves.values() ) {
+                    Entity mine = entities.remove(e.getId());
+                    removedEntities.add(mine != null ? mine : e);
+                }
+                pendingAdds.clear();
+                pendingChanges.clear();
+                pendingRemoves.clear();
+                
+                if( pendingUpdates != null ) {
+                    if( updates != null ) {
+                        updates.addAll(pendingUpdates);
+                    }
+                    pendingUpdates.clear();
+                }
+            }
+            return hasChanges();
+        }
+ 
+        /**
+         *  Detaches this view from the shared set into a private entity 
+         *  set with the new filter.  The difference between what this view 
+         *  currently contains and the new set shows up on the next 
+         *  applyChanges().
+         */       
+        @Override
+        public void resetFilter( ComponentFilter filter ) {
+            if( set == null ) {
+                detached.resetFilter(filter);
+                return;
+            }
+            
+            Shared old = set;
+            dense = null;
+            synchronized( old ) {
+                DefaultEntitySet source = ed.createSet(filter, types);
+                source.loadEntities(false);
+                
+                pendingAdds.clear();
+                pendingChanges.clear();
+                pendingRemoves.clear();
+                for( Entity e : source ) {
+                    Entity existing = entities.get(e.getId());
+                    if( existing == null ) {
+                        pendingAdds.put(e.getId(), e);
+                    } else if( !Arrays.equals(existing.getComponents(), e.getComponents()) ) {
+                        pendingChanges.put(e.getId(), e);
+                    }
+                }
+                for( Entity e : entities.values() ) {
+                    if( !source.containsId(e.getId()) ) {
+                        pendingRemoves.put(e.getId(), e);
+                    }
+                }
+                detached = source;
+                set = null;
+            }
+            SharedEntitySets.this.release(old, this);
+        }
+ 
+        @Override
+        public void release() {
+            if( released ) {
+                return;
+            }
+            released = true;
+            if( set != null ) {
+                SharedEntitySets.this.release(set, this);
+            } else {
+                detached.release();
+            }
+        }
+ 
+        public boolean isShared() {
+            return set != null;
+        }
+        
+        @Override
+        public boolean containsId( EntityId id ) {
+            return entities.containsKey(id);
+        }
+ 
+        @Override
+        public Set<EntityId> getEntityIds() {
+            return Collections.unmodifiableSet(entities.keySet());
+        }
+ 
+        @Override
+        public Entity getEntity( EntityId id ) {
+            return entities.get(id);
+        }
+ 
+        @Override
+        public Set<Entity> getAddedEntities() {
+            return addedEntities;
+        }
+ 
+        @Override
+        public Set<Entity> getChangedEntities() {
+            return changedEntities;
+        }
+ 
+        @Override
+        public Set<Entity> getRemovedEntities() {
+            return removedEntities;
+        }
+ 
+        @Override
+        public void clearChangeSets() {
+            addedEntities.clear();
+            changedEntities.clear();
+            removedEntities.clear();
+        }
+ 
+        @Override
+        public boolean hasChanges() {
+            return !addedEntities.isEmpty() || !changedEntities.isEmpty() || !removedEntities.isEmpty();
+        }
+ 
+        @Override
+        public boolean hasType( Class type ) {
+            for( Class c : types ) {
+                if( c == type ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+ 
+        @Override
+        public Iterator<Entity> iterator() {
+            return Collections.unmodifiableCollection(entities.values()).iterator();
+        }
+ 
+        @Override
+        public int size() {
+            return entities.size();
+        }
+ 
+        @Override
+        public Spliterator<Entity> spliterator() {
+            return getEntityArray().spliterator();
+        }
+ 
+        @Override
+        public void parallelForEach( Consumer<? super Entity> action ) {
+            ForkJoinPool pool = detached != null ? detached.getForkJoinPool() : ed.getForkJoinPool();
+            getEntityArray().parallelForEach(action, pool);
+        }
+ 
+        private EntityArray getEntityArray() {
+            if( dense == null ) {
+                dense = new EntityArray(entities.values());
+            }
+            return dense;
+        }
+ 
+        @Override
+        public boolean contains( Object o ) {
+            if( !(o instanceof Entity) ) {
+                return false;
+            }
+            return entities.containsKey(((Entity)o).getId());
+        }
+ 
+        @Override
+        public boolean equals( Object o ) {
+            return o == this;
+        }
+ 
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+        
+        @Override
+        public String toString() {
+            return "SharedEntitySet.View[" + Arrays.asList(types) + ", size=" + entities.size() + ", shared=" + isShared() + "]";
+        }
+    }
+ 
+    /**
+     *  Identifies a shared set by its types, in order, and its filter.
+     *  Filters are compared with equals().
+     */   
+    protected static class Key {
+        final ComponentFilter filter;
+        final Class[] types;
+        
+        public Key( ComponentFilter filter, Class[] types ) {
+            this.filter = filter;
+            this.types = types.clone();
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( !(o instanceof Key) ) {
+                return false;
+            }
+            Key other = (Key)o;
+            return Arrays.equals(types, other.types) && Objects.equals(filter, other.filter);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(types) * 31 + Objects.hashCode(filter);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.base;
+
+import com.simsilica.es.EntityId;
+import com.simsilica.es.filter.ValueComparator;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+
+/**
+ *  A FieldIndex that keeps its values in order so that it can also
+ *  answer range queries.  Backed by a concurrent skip list.  The indexed 
+ *  field must be a primitive or Comparable type.  Null values are kept
+ *  so that equality lookups still work but they are never part of a
+ *  range.
+ *
+ *  @author    Paul Speed
+ */
+public class SortedFieldIndex extends FieldIndex {
+
+    private static final Comparator<Object> KEY_ORDER = new KeyComparator();
+
+    private final ConcurrentNavigableMap<Object, Set<EntityId>> sorted;
+
+    public SortedFieldIndex( Class type, String fieldName ) {
+        this(type, fieldName, new ConcurrentSkipListMap<Object, Set<EntityId>>(KEY_ORDER));
+    }
+    
+    private SortedFieldIndex( Class type, String fieldName, 
+                              ConcurrentNavigableMap<Object, Set<EntityId>> sorted ) {
+        super(type, fieldName, sorted);
+        this.sorted = sorted;
+        
+        Class fieldType = getField().getType();
+        if( !fieldType.isPrimitive() && !Comparable.class.isAssignableFrom(fieldType) ) {
+            throw new IllegalArgumentException("Field type is not comparable:" + getField());
+        }
+    }
+
+    /**
+     *  Overridden to keep .equals() semantics for equality lookups
+     *  since the skip list would otherwise match Integer 3 to Float 3.0.
+     */
+    @Override
+    public Set<EntityId> lookup( Object value ) {
+        if( value == null ) {
+            return super.lookup(null);
+        }
+        Map.Entry<Object, Set<EntityId>> entry = sorted.ceilingEntry(value);
+        if( entry == null || !value.equals(entry.getKey()) ) {
+            return wrap(null);
+        }
+        return wrap(entry.getValue());
+    }
+ 
+    /**
+     *  Returns a new set containing the IDs of all entities whose field 
+     *  value is within the specified range.  Either bound can be null to
+     *  indicate an open range.
+     */   
+    public Set<EntityId> range( Object min, boolean minInclusive, Object max, boolean maxInclusive ) {
+        if( min != null && max != null ) {
+            // The skip list won't take an inverted range
+            int c = ValueComparator.INSTANCE.compare(min, max);
+            if( c > 0 || (c == 0 && !(minInclusive && maxInclusive)) ) {
+                return new HashSet<EntityId>();
+            }
+        }
+        NavigableMap<Object, Set<EntityId>> sub;
+        if( min != null ) {
+            sub = sorted.tailMap(min, minInclusive);
+        } else {
+            // Skip the nulls
+            sub = sorted.tailMap(NULL_KEY, false);
+        }
+        if( max != null ) {
+            sub = sub.headMap(max, maxInclusive);
+        }
+        Set<EntityId> results = new HashSet<EntityId>();
+        for( Set<EntityId> ids : sub.values() ) {
+            results.addAll(ids);
+        }
+        return results;
+    }
+ 
+    /**
+     *  Orders the null key first and everything else by ValueComparator.
+     */   
+    private static class KeyComparator implements Comparator<Object> {
+        @Override
+        public int compare( Object a, Object b ) {
+            if( a == b ) {
+                return 0;
+            }
+            if( a == NULL_KEY ) {
+                return -1;
+            }
+            if( b == NULL_KEY ) {
+                return 1;
+            }
+            return ValueComparator.INSTANCE.compare(a, b);
+        }
+    }
+}
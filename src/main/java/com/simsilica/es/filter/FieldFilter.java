@@ -49,7 +49,7 @@ public class FieldFilter<T extends EntityComponent> implements ComponentFilter<T
 	private Class<T> type;
 	private Field field;
 	private Object value;
-	private transient boolean initialized = false;
+	private transient ComponentPredicate predicate;
 
 	public FieldFilter() {
 	}
@@ -73,6 +73,10 @@ public class FieldFilter<T extends EntityComponent> implements ComponentFilter<T
 		return this.field.getName();
 	}
 
+	Field getField() {
+		return this.field;
+	}
+
 	public Object getValue() {
 		return this.value;
 	}
@@ -84,19 +88,14 @@ public class FieldFilter<T extends EntityComponent> implements ComponentFilter<T
 
 	@Override
 	public boolean evaluate(EntityComponent c) {
-		if (!this.type.isInstance(c)) {
-			return false;
-		}
-		try {
-			if (!this.initialized) {
-				this.field.setAccessible(true);
-				this.initialized = true;
-			}
-			Object val = this.field.get(c);
-			return equal(this.value, val);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException("Error retrieving field[" + this.field + "] of:" + c, e); //$NON-NLS-1$ //$NON-NLS-2$
+		ComponentPredicate p = this.predicate;
+		if (p == null) {
+			// Compiled on first use since the transient predicate doesn't
+			// come along when the filter is sent over the network
+			p = FilterCompiler.compile(this);
+			this.predicate = p;
 		}
+		return p.test(c);
 	}
 
 	// added to remove google guava dependency
@@ -110,6 +109,24 @@ public class FieldFilter<T extends EntityComponent> implements ComponentFilter<T
 		return o1.equals(o2);
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o == null || o.getClass() != getClass()) {
+			return false;
+		}
+		FieldFilter other = (FieldFilter) o;
+		return this.type == other.type && this.field.equals(other.field) && equal(this.value, other.value);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = this.field.hashCode();
+		return hash * 31 + (this.value == null ? 0 : this.value.hashCode());
+	}
+
 	@Override
 	public String toString() {
 		return "FieldFilter[" + this.field + " == " + this.value + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
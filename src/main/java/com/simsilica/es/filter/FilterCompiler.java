@@ -0,0 +1,509 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.filter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+
+
+/**
+ *  Compiles the standard filters into ComponentPredicates that read
+ *  fields through MethodHandles instead of Field.get().  Primitive fields
+ *  compared against values of their own wrapper type (or against Number
+ *  bounds for RangeFilters) are read and compared as primitives without
+ *  boxing.  And/Or trees are compiled as a whole so that the component
+ *  type is only checked once for operands of the outer filter's type.
+ *  Anything else falls back to a predicate that calls evaluate().
+ *
+ *  <p>Compiled predicates produce exactly the same results as the
+ *  filters' reflective evaluation, including the equals() semantics of 
+ *  the wrapper types and ValueComparator's ordering.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class FilterCompiler {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    
+    private FilterCompiler() {
+    }
+ 
+    /**
+     *  Returns a predicate that evaluates components the same way
+     *  as the specified filter.
+     */
+    public static ComponentPredicate compile( ComponentFilter filter ) {
+        return compile(filter, null);
+    }
+ 
+    /**
+     *  Compiles the filter, leaving out the type check if the components
+     *  will already be known to be of checkedType.
+     */
+    protected static ComponentPredicate compile( ComponentFilter filter, Class checkedType ) {
+        if( filter instanceof FieldFilter ) {
+            FieldFilter f = (FieldFilter)filter;
+            return checkType(f.getComponentType(), checkedType, 
+                             compileEquals(f.getField(), new Object[] { f.getValue() }));
+        } else if( filter instanceof InFilter ) {
+            InFilter f = (InFilter)filter;
+            return checkType(f.getComponentType(), checkedType, 
+                             compileEquals(f.getField(), f.getValues()));
+        } else if( filter instanceof RangeFilter ) {
+            RangeFilter f = (RangeFilter)filter;
+            return checkType(f.getComponentType(), checkedType, compileRange(f));
+        } else if( filter instanceof AndFilter || filter instanceof OrFilter ) {
+            boolean and = filter instanceof AndFilter;
+            ComponentFilter[] operands = and ? ((AndFilter)filter).getOperands() 
+                                             : ((OrFilter)filter).getOperands();
+            Class type = filter.getComponentType();
+            if( operands == null ) {
+                return checkType(type, checkedType, TRUE);
+            }
+            ComponentPredicate[] predicates = new ComponentPredicate[operands.length];
+            for( int i = 0; i < operands.length; i++ ) {
+                predicates[i] = compile(operands[i], type);
+            }
+            return checkType(type, checkedType, and ? new And(predicates) : new Or(predicates));
+        }
+        return new Evaluate(filter);
+    }
+ 
+    private static ComponentPredicate checkType( Class type, Class checkedType, ComponentPredicate p ) {
+        if( type == checkedType ) {
+            return p;
+        }
+        return new TypeCheck(type, p);
+    }
+ 
+    private static MethodHandle getter( Field field, Class returnType ) {
+        try {
+            // Filters that came over the network won't have had this done
+            field.setAccessible(true);
+            MethodHandle h = lookup.unreflectGetter(field);
+            return h.asType(MethodType.methodType(returnType, EntityComponent.class));
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException("Error accessing field:" + field, e);
+        }
+    }
+ 
+    private static boolean isIntegral( Class type ) {
+        return type == int.class || type == long.class || type == short.class || type == byte.class;
+    }
+    
+    private static boolean isIntegralValue( Object o ) {
+        return o instanceof Integer || o instanceof Long 
+                || o instanceof Short || o instanceof Byte;
+    }
+ 
+    private static Class wrapper( Class type ) {
+        if( type == int.class ) return Integer.class;
+        if( type == long.class ) return Long.class;
+        if( type == short.class ) return Short.class;
+        if( type == byte.class ) return Byte.class;
+        if( type == float.class ) return Float.class;
+        if( type == double.class ) return Double.class;
+        if( type == boolean.class ) return Boolean.class;
+        if( type == char.class ) return Character.class;
+        return null;
+    }
+ 
+    /**
+     *  Compiles a test for the field equaling any one of the values.
+     */
+    private static ComponentPredicate compileEquals( Field field, Object[] values ) {
+        Class type = field.getType();
+        Class wrapper = wrapper(type);
+        if( wrapper == null || type == boolean.class ) {
+            // Booleans can't be converted to a long but boxing them
+            // doesn't allocate anyway
+            return new ObjectIn(getter(field, Object.class), values);
+        }
+        
+        // A boxed field value can only ever equal values of its own
+        // wrapper type so everything else can be dropped up front
+        int count = 0;
+        long[] bits = new long[values.length];
+        for( Object v : values ) {
+            if( v == null || v.getClass() != wrapper ) {
+                continue;
+            }
+            bits[count++] = toBits(v);
+        }
+        if( count < bits.length ) {
+            long[] trimmed = new long[count];
+            System.arraycopy(bits, 0, trimmed, 0, count);
+            bits = trimmed;
+        }
+        if( type == float.class ) {
+            return new FloatIn(getter(field, float.class), bits);
+        } else if( type == double.class ) {
+            return new DoubleIn(getter(field, double.class), bits);
+        }
+        // Everything else widens to a long without changing equality
+        return new LongIn(getter(field, long.class), bits);
+    }
+ 
+    /**
+     *  Converts a wrapper value to the bits that its equals() compares.
+     */
+    private static long toBits( Object v ) {
+        if( v instanceof Float ) {
+            return Float.floatToIntBits((Float)v);
+        } else if( v instanceof Double ) {
+            return Double.doubleToLongBits((Double)v);
+        } else if( v instanceof Character ) {
+            return (Character)v;
+        }
+        return ((Number)v).longValue();
+    }
+ 
+    private static ComponentPredicate compileRange( RangeFilter f ) {
+        Field field = f.getField();
+        Class type = field.getType();
+        Object min = f.getMin();
+        Object max = f.getMax();
+        boolean numericBounds = (min == null || min instanceof Number) 
+                                && (max == null || max instanceof Number);
+        if( numericBounds && isIntegral(type) 
+            && (min == null || isIntegralValue(min)) && (max == null || isIntegralValue(max)) ) {
+            // ValueComparator compares integral values of any mix of
+            // types by their long value
+            return new LongRange(getter(field, long.class), 
+                                 min == null ? Long.MIN_VALUE : ((Number)min).longValue(), 
+                                 min == null || f.isMinInclusive(),
+                                 max == null ? Long.MAX_VALUE : ((Number)max).longValue(), 
+                                 max == null || f.isMaxInclusive());
+        }
+        if( numericBounds && (isIntegral(type) || type == float.class || type == double.class) ) {
+            // Everything else ends up as a Double.compare(), even float to float
+            // since widening preserves Float.compare() ordering
+            return new DoubleRange(getter(field, double.class), 
+                                   min == null ? null : ((Number)min).doubleValue(), f.isMinInclusive(),
+                                   max == null ? null : ((Number)max).doubleValue(), f.isMaxInclusive());
+        }
+        return new ObjectRange(getter(field, Object.class), f);
+    }
+ 
+    private static final ComponentPredicate TRUE = new ComponentPredicate() {
+            @Override
+            public boolean test( EntityComponent c ) {
+                return true;
+            }
+        };
+ 
+    private static RuntimeException fieldError( EntityComponent c, Throwable t ) {
+        if( t instanceof Error ) {
+            throw (Error)t;
+        } else if( t instanceof RuntimeException ) {
+            return (RuntimeException)t;
+        }
+        return new RuntimeException("Error retrieving field of:" + c, t);
+    }
+ 
+    private static class TypeCheck extends ComponentPredicate {
+        private final Class type;
+        private final ComponentPredicate delegate;
+        
+        public TypeCheck( Class type, ComponentPredicate delegate ) {
+            this.type = type;
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            return type.isInstance(c) && delegate.test(c);
+        }
+    }
+ 
+    private static class And extends ComponentPredicate {
+        private final ComponentPredicate[] operands;
+        
+        public And( ComponentPredicate[] operands ) {
+            this.operands = operands;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            for( ComponentPredicate p : operands ) {
+                if( !p.test(c) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static class Or extends ComponentPredicate {
+        private final ComponentPredicate[] operands;
+        
+        public Or( ComponentPredicate[] operands ) {
+            this.operands = operands;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            for( ComponentPredicate p : operands ) {
+                if( p.test(c) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+ 
+    private static class Evaluate extends ComponentPredicate {
+        private final ComponentFilter filter;
+        
+        public Evaluate( ComponentFilter filter ) {
+            this.filter = filter;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            return filter.evaluate(c);
+        }
+    }
+    
+    private static class LongIn extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final long[] values;
+        
+        public LongIn( MethodHandle getter, long[] values ) {
+            this.getter = getter;
+            this.values = values;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            long v;
+            try {
+                v = (long)getter.invokeExact(c);
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            for( long l : values ) {
+                if( l == v ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class FloatIn extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final long[] values;
+        
+        public FloatIn( MethodHandle getter, long[] values ) {
+            this.getter = getter;
+            this.values = values;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            long v;
+            try {
+                v = Float.floatToIntBits((float)getter.invokeExact(c));
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            for( long l : values ) {
+                if( l == v ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class DoubleIn extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final long[] values;
+        
+        public DoubleIn( MethodHandle getter, long[] values ) {
+            this.getter = getter;
+            this.values = values;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            long v;
+            try {
+                v = Double.doubleToLongBits((double)getter.invokeExact(c));
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            for( long l : values ) {
+                if( l == v ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class ObjectIn extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final Object[] values;
+        
+        public ObjectIn( MethodHandle getter, Object[] values ) {
+            this.getter = getter;
+            this.values = values;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            Object v;
+            try {
+                v = (Object)getter.invokeExact(c);
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            for( Object o : values ) {
+                if( FieldFilter.equal(o, v) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class LongRange extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final long min;
+        private final boolean minInclusive;
+        private final long max;
+        private final boolean maxInclusive;
+        
+        public LongRange( MethodHandle getter, long min, boolean minInclusive, 
+                          long max, boolean maxInclusive ) {
+            this.getter = getter;
+            this.min = min;
+            this.minInclusive = minInclusive;
+            this.max = max;
+            this.maxInclusive = maxInclusive;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            long v;
+            try {
+                v = (long)getter.invokeExact(c);
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            if( v < min || (v == min && !minInclusive) ) {
+                return false;
+            }
+            if( v > max || (v == max && !maxInclusive) ) {
+                return false;
+            }
+            return true;
+        }
+    }
+    
+    private static class DoubleRange extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final boolean hasMin;
+        private final double min;
+        private final boolean minInclusive;
+        private final boolean hasMax;
+        private final double max;
+        private final boolean maxInclusive;
+        
+        public DoubleRange( MethodHandle getter, Double min, boolean minInclusive, 
+                            Double max, boolean maxInclusive ) {
+            this.getter = getter;
+            this.hasMin = min != null;
+            this.min = min == null ? 0 : min;
+            this.minInclusive = minInclusive;
+            this.hasMax = max != null;
+            this.max = max == null ? 0 : max;
+            this.maxInclusive = maxInclusive;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            double v;
+            try {
+                v = (double)getter.invokeExact(c);
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            if( hasMin ) {
+                int i = Double.compare(v, min);
+                if( i < 0 || (i == 0 && !minInclusive) ) {
+                    return false;
+                }
+            }
+            if( hasMax ) {
+                int i = Double.compare(v, max);
+                if( i > 0 || (i == 0 && !maxInclusive) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static class ObjectRange extends ComponentPredicate {
+        private final MethodHandle getter;
+        private final RangeFilter filter;
+        
+        public ObjectRange( MethodHandle getter, RangeFilter filter ) {
+            this.getter = getter;
+            this.filter = filter;
+        }
+        
+        @Override
+        public boolean test( EntityComponent c ) {
+            Object v;
+            try {
+                v = (Object)getter.invokeExact(c);
+            } catch( Throwable t ) {
+                throw fieldError(c, t);
+            }
+            return filter.matches(v);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.filter;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+
+/**
+ *  A filter that matches components whose field value is equal
+ *  to any one of a set of values.  This is equivalent to an OrFilter
+ *  of FieldFilters on the same field but is more compact and easier 
+ *  for indexes and SQL to deal with.  Values are compared with .equals()
+ *  and two nulls are considered equal.
+ *
+ *  @author    Paul Speed
+ */
+public class InFilter<T extends EntityComponent> implements ComponentFilter<T> {
+
+    private Class<T> type;
+    private Field field;
+    private Object[] values;
+    private transient ComponentPredicate predicate;
+    
+    public InFilter() {
+    }
+    
+    public InFilter( Class<T> type, String field, Object... values ) {
+        try {
+            this.type = type;
+            this.field = type.getDeclaredField(field);
+            this.field.setAccessible(true);
+            this.values = values;
+        } catch( NoSuchFieldException e ) {
+            throw new IllegalArgumentException("Field not found:" + field + " on type:" + type, e);
+        }
+    }
+
+    public static <T extends EntityComponent> InFilter<T> create( Class<T> type, String field, Object... values ) {
+        return new InFilter<T>(type, field, values);
+    }
+
+    public String getFieldName() {
+        return field.getName();
+    }
+ 
+    Field getField() {
+        return field;
+    }
+    
+    public Object[] getValues() {
+        return values;
+    }
+
+    @Override
+    public Class<T> getComponentType() {
+        return type;
+    }
+    
+    @Override
+    public boolean evaluate( EntityComponent c ) {
+        ComponentPredicate p = predicate;
+        if( p == null ) {
+            p = FilterCompiler.compile(this);
+            predicate = p;
+        }
+        return p.test(c);
+    }
+    
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
+            return true;
+        }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
+        }
+        InFilter other = (InFilter)o;
+        return type == other.type && field.equals(other.field) && Arrays.equals(values, other.values);
+    }
+    
+    @Override
+    public int hashCode() {
+        return field.hashCode() * 31 + Arrays.hashCode(values);
+    }
+    
+    @Override
+    public String toString() {
+        return "InFilter[" + field + " in " + Arrays.asList(values) + "]";
+    }
+}
@@ -50,6 +50,7 @@ public class OrFilter<T extends EntityComponent> implements ComponentFilter<T> {
 
     private Class<T> type;
     private ComponentFilter<? extends T>[] operands;
+    private transient ComponentPredicate predicate;
     
     public OrFilter() {
     }
@@ -75,19 +76,31 @@ public class OrFilter<T extends EntityComponent> implements ComponentFilter<T> {
     
     @Override
     public boolean evaluate( EntityComponent c ) {
-        if( !type.isInstance(c) ) {
-            return false;
+        // The whole tree is compiled at once so that the operands
+        // don't each repeat the type check
+        ComponentPredicate p = predicate;
+        if( p == null ) {
+            p = FilterCompiler.compile(this);
+            predicate = p;
         }
-        if( operands == null ) {
+        return p.test(c);
+    }
+    
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
             return true;
         }
- 
-        for( ComponentFilter f : operands ) {
-            if( f.evaluate(c) ) {
-                return true;
-            }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
         }
-        return false;                    
+        OrFilter other = (OrFilter)o;
+        return type == other.type && Arrays.equals(operands, other.operands);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(operands);
     }
     
     @Override
@@ -0,0 +1,193 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.filter;
+
+import java.lang.reflect.Field;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+
+/**
+ *  A filter that matches components whose field value falls within
+ *  a range.  Either bound can be null to leave that side of the range open
+ *  which is how the simple comparison filters (less than, greater than, etc.)
+ *  are represented.  Components with a null field value never match.
+ *  Values are compared using ValueComparator.
+ *
+ *  @author    Paul Speed
+ */
+public class RangeFilter<T extends EntityComponent> implements ComponentFilter<T> {
+
+    private Class<T> type;
+    private Field field;
+    private Object min;
+    private boolean minInclusive;
+    private Object max;
+    private boolean maxInclusive;
+    private transient ComponentPredicate predicate;
+    
+    public RangeFilter() {
+    }
+    
+    public RangeFilter( Class<T> type, String field, Object min, boolean minInclusive, 
+                        Object max, boolean maxInclusive ) {
+        if( min == null && max == null ) {
+            throw new IllegalArgumentException("At least one bound must be specified.");
+        }
+        try {
+            this.type = type;
+            this.field = type.getDeclaredField(field);
+            this.field.setAccessible(true);
+            this.min = min;
+            this.minInclusive = minInclusive;
+            this.max = max;
+            this.maxInclusive = maxInclusive;
+        } catch( NoSuchFieldException e ) {
+            throw new IllegalArgumentException("Field not found:" + field + " on type:" + type, e);
+        }
+    }
+
+    public static <T extends EntityComponent> RangeFilter<T> create( Class<T> type, String field, 
+                                                                     Object min, boolean minInclusive, 
+                                                                     Object max, boolean maxInclusive ) {
+        return new RangeFilter<T>(type, field, min, minInclusive, max, maxInclusive);
+    }
+
+    public String getFieldName() {
+        return field.getName();
+    }
+ 
+    Field getField() {
+        return field;
+    }
+    
+    /**
+     *  Returns the lower bound or null if there is no lower bound.
+     */
+    public Object getMin() {
+        return min;
+    }
+    
+    public boolean isMinInclusive() {
+        return minInclusive;
+    }
+    
+    /**
+     *  Returns the upper bound or null if there is no upper bound.
+     */
+    public Object getMax() {
+        return max;
+    }
+    
+    public boolean isMaxInclusive() {
+        return maxInclusive;
+    }
+
+    @Override
+    public Class<T> getComponentType() {
+        return type;
+    }
+    
+    @Override
+    public boolean evaluate( EntityComponent c ) {
+        ComponentPredicate p = predicate;
+        if( p == null ) {
+            p = FilterCompiler.compile(this);
+            predicate = p;
+        }
+        return p.test(c);
+    }
+ 
+    /**
+     *  Returns true if the specified field value is within this filter's
+     *  range.
+     */   
+    public boolean matches( Object value ) {
+        if( value == null ) {
+            return false;
+        }
+        if( min != null ) {
+            int i = ValueComparator.INSTANCE.compare(value, min);
+            if( i < 0 || (i == 0 && !minInclusive) ) {
+                return false;
+            }
+        }
+        if( max != null ) {
+            int i = ValueComparator.INSTANCE.compare(value, max);
+            if( i > 0 || (i == 0 && !maxInclusive) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean equals( Object o ) {
+        if( o == this ) {
+            return true;
+        }
+        if( o == null || o.getClass() != getClass() ) {
+            return false;
+        }
+        RangeFilter other = (RangeFilter)o;
+        return type == other.type && field.equals(other.field)
+                && FieldFilter.equal(min, other.min) && minInclusive == other.minInclusive 
+                && FieldFilter.equal(max, other.max) && maxInclusive == other.maxInclusive;
+    }
+    
+    @Override
+    public int hashCode() {
+        int hash = field.hashCode();
+        hash = hash * 31 + (min == null ? 0 : min.hashCode());
+        hash = hash * 31 + (max == null ? 0 : max.hashCode());
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RangeFilter[");
+        if( min != null ) {
+            sb.append(min).append(minInclusive ? " <= " : " < ");
+        }
+        sb.append(field);
+        if( max != null ) {
+            sb.append(maxInclusive ? " <= " : " < ").append(max);
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.filter;
+
+import java.util.Comparator;
+
+
+/**
+ *  Compares field values for the ordered filters and indexes.  Values
+ *  are compared by their natural ordering except that different Number
+ *  types are compared by value.  This lets a filter like 
+ *  "hitPoints &lt; 10" work whether the field is an int, a float, or a long.
+ *
+ *  @author    Paul Speed
+ */
+public class ValueComparator implements Comparator<Object> {
+
+    public static final ValueComparator INSTANCE = new ValueComparator();
+    
+    protected ValueComparator() {
+    }
+ 
+    private static boolean isIntegral( Object o ) {
+        return o instanceof Integer || o instanceof Long 
+                || o instanceof Short || o instanceof Byte;
+    } 
+    
+    @Override
+    public int compare( Object a, Object b ) {
+        if( a instanceof Number && b instanceof Number && a.getClass() != b.getClass() ) {
+            if( isIntegral(a) && isIntegral(b) ) {
+                long l1 = ((Number)a).longValue();
+                long l2 = ((Number)b).longValue();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+            return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+        }
+        return ((Comparable)a).compareTo(b);
+    }
+}
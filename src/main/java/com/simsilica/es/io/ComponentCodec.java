@@ -0,0 +1,172 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.io;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ *  Reflection-based binary encoding of component values, or of any
+ *  other class with a no-argument constructor.  All non-static, non-transient
+ *  fields of the class and its superclasses are written in name order 
+ *  without any per-value tags, so the encoding is only as large as the
+ *  field values themselves.  Readers should compare getLayout() with the 
+ *  layout that was recorded when the data was written to detect classes 
+ *  that have changed.
+ *
+ *  @author    Paul Speed
+ */
+public class ComponentCodec<T> {
+
+    private static final ClassValue<ComponentCodec> codecs = new ClassValue<ComponentCodec>() {
+            @Override
+            protected ComponentCodec computeValue( Class type ) {
+                return new ComponentCodec(type);
+            }
+        };
+
+    private final Class<T> type;
+    private final Constructor<T> constructor;
+    private final FieldCodec[] fields;
+    private final String layout;
+    
+    protected ComponentCodec( Class<T> type ) {
+        this.type = type;
+        try {
+            this.constructor = type.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch( NoSuchMethodException e ) {
+            throw new IllegalArgumentException("Type has no no-argument constructor:" + type, e);
+        }
+        
+        List<Field> list = getSerializedFields(type);
+        this.fields = new FieldCodec[list.size()];
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < fields.length; i++ ) {
+            fields[i] = FieldCodecs.create(list.get(i));
+            if( i > 0 ) {
+                sb.append(";");
+            }
+            sb.append(fields[i].getLayout());
+        }
+        this.layout = sb.toString();
+    }
+    
+    /**
+     *  Returns the fields of the specified type that a codec for it would 
+     *  encode, in encoding order.  Other fixed-layout storage can use this 
+     *  to order fields the same way without creating a codec.
+     */
+    public static List<Field> getSerializedFields( Class type ) {
+        List<Field> list = new ArrayList<Field>();
+        for( Class c = type; c != null && c != Object.class; c = c.getSuperclass() ) {
+            for( Field f : c.getDeclaredFields() ) {
+                if( Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()) ) {
+                    continue;
+                }
+                list.add(f);
+            }
+        }
+        Collections.sort(list, new Comparator<Field>() {
+                @Override
+                public int compare( Field f1, Field f2 ) {
+                    int result = f1.getName().compareTo(f2.getName());
+                    if( result == 0 ) {
+                        // Shadowed fields, superclass first
+                        result = f1.getDeclaringClass().getName().compareTo(f2.getDeclaringClass().getName());
+                    }
+                    return result;
+                }
+            });
+        return list;
+    }
+    
+    public static <T> ComponentCodec<T> getCodec( Class<T> type ) {
+        return codecs.get(type);
+    }
+    
+    public Class<T> getType() {
+        return type;
+    }
+    
+    public String getLayout() {
+        return layout;
+    }
+    
+    public FieldCodec[] getFields() {
+        return fields.clone();
+    }
+    
+    public T newInstance() {
+        try {
+            return constructor.newInstance();
+        } catch( Exception e ) {
+            throw new RuntimeException("Error creating instance of:" + type, e);
+        }
+    }
+
+    /**
+     *  Writes all of the fields of the specified non-null value.  Throws 
+     *  BufferOverflowException if the buffer is too small in which case 
+     *  the buffer's position is undefined.
+     */
+    public void write( T value, ByteBuffer out ) {
+        for( FieldCodec f : fields ) {
+            f.write(value, out);
+        }
+    }
+    
+    public T read( ByteBuffer in ) {
+        T result = newInstance();
+        for( FieldCodec f : fields ) {
+            f.read(result, in);
+        }
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return "ComponentCodec[" + type.getName() + ", " + layout + "]";
+    }
+}
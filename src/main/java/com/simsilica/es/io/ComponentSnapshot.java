@@ -0,0 +1,549 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityData;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.StringIndex;
+import com.simsilica.es.base.DefaultEntityData;
+import com.simsilica.es.base.DefaultEntityIdGenerator;
+import com.simsilica.es.base.MemStringIndex;
+
+
+/**
+ *  Saves and restores the components of an EntityData as one binary 
+ *  file per component type, laid out by column: a header, then every 
+ *  entity ID, then every value of the first field, and so on.  Loading
+ *  maps the file and walks each column sequentially, so restoring is 
+ *  bounded by decode speed instead of by per-entity queries.
+ *
+ *  <p>The header records the component class name and its ComponentCodec
+ *  layout.  Loading a file whose layout no longer matches the class fails
+ *  with a schema mismatch instead of misreading the columns.</p>
+ *
+ *  <p>Saving a whole DefaultEntityData also saves its string index, if it 
+ *  is a MemStringIndex, so that string IDs stored in components still
+ *  resolve after loading.  It deletes the files of any types that it did
+ *  not write so that a directory never mixes types from different 
+ *  saves.</p>
+ *
+ *  <p>A snapshot can also record the next entity ID to hand out with
+ *  writeNextEntityId().  Loading never starts new IDs below it, so IDs 
+ *  that were handed out without ever getting a component, or that only 
+ *  had non-persistent ones, are not reused.  Without it, new IDs start 
+ *  after the largest ID in the component files.</p>
+ *
+ *  <p>Saving reads each type separately, so the EntityData should not be 
+ *  changing while it is saved if the types must be consistent with each 
+ *  other.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ComponentSnapshot {
+
+    static Logger log = Logger.getLogger(ComponentSnapshot.class.getName());
+
+    public static final String SUFFIX = ".cols";
+    public static final String STRINGS_FILE = "strings.dat";
+    public static final String NEXT_ID_FILE = "next-id.dat";
+
+    private static final int MAGIC = 0x5a455343; // ZESC
+    private static final int STRINGS_MAGIC = 0x5a455353; // ZESS
+    private static final int NEXT_ID_MAGIC = 0x5a455349; // ZESI
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     *  Saves all component types and the string index of the specified 
+     *  DefaultEntityData into the directory and deletes the files of
+     *  any other types left there by earlier saves.
+     */
+    public static void save( DefaultEntityData ed, File dir ) throws IOException {
+        Set<Class> types = ed.getComponentTypes();
+        save(ed, dir, types.toArray(new Class[types.size()]));
+        
+        StringIndex strings = ed.getStrings();
+        if( strings instanceof MemStringIndex ) {
+            writeStrings(new File(dir, STRINGS_FILE), ((MemStringIndex)strings).getStrings());
+        } else {
+            if( strings != null ) {
+                log.warning("String index not saved, unsupported type:" + strings.getClass());
+            }
+            deleteFile(new File(dir, STRINGS_FILE));
+        }
+        
+        Set<File> written = new HashSet<File>();
+        for( Class type : types ) {
+            written.add(getFile(dir, type));
+        }
+        for( File f : listFiles(dir) ) {
+            if( !written.contains(f) ) {
+                deleteFile(f);
+            }
+        }
+    }
+    
+    private static void deleteFile( File file ) throws IOException {
+        if( file.exists() && !file.delete() ) {
+            throw new IOException("Unable to delete:" + file);
+        }
+    }
+ 
+    /**
+     *  Saves the specified component types of any EntityData into the
+     *  directory, one file per type.
+     */   
+    public static void save( EntityData ed, File dir, Class... types ) throws IOException {
+        if( !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException("Cannot create snapshot directory:" + dir);
+        }
+        for( Class type : types ) {
+            Set<EntityId> ids = ed.findEntities(null, type);
+            List<EntityId> keys = new ArrayList<EntityId>(ids.size());
+            List<EntityComponent> values = new ArrayList<EntityComponent>(ids.size());
+            for( EntityId id : ids ) {
+                EntityComponent c = ed.getComponent(id, type);
+                if( c == null ) {
+                    // Removed since we got the IDs
+                    continue;
+                }
+                keys.add(id);
+                values.add(c);
+            }
+            writeType(getFile(dir, type), type, keys, values);
+        }
+    }
+    
+    public static File getFile( File dir, Class type ) {
+        return new File(dir, type.getName() + SUFFIX);
+    }
+
+    /**
+     *  Writes a single type's file from an iterator of entries, such as
+     *  the bulk component scan of an SQL table.
+     */
+    public static void writeType( File file, Class type, Iterator<? extends Map.Entry<EntityId, ?>> it ) throws IOException {
+        List<EntityId> keys = new ArrayList<EntityId>();
+        List<Object> values = new ArrayList<Object>();
+        while( it.hasNext() ) {
+            Map.Entry<EntityId, ?> e = it.next();
+            keys.add(e.getKey());
+            values.add(e.getValue());
+        }
+        writeType(file, type, keys, values);
+    }
+ 
+    /**
+     *  Writes the specified strings keyed by ID to the file.  The file is 
+     *  written under a temporary name and renamed when complete.
+     */   
+    public static void writeStrings( File file, Map<Integer, String> strings ) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            ColumnWriter out = new ColumnWriter(fos.getChannel());
+            out.ensure(12);
+            out.buffer.putInt(STRINGS_MAGIC);
+            out.buffer.putInt(VERSION);
+            out.buffer.putInt(strings.size());
+            for( Map.Entry<Integer, String> e : strings.entrySet() ) {
+                out.ensure(4);
+                out.buffer.putInt(e.getKey());
+                out.write(e.getValue());
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        
+        deleteFile(file);
+        if( !temp.renameTo(file) ) {
+            throw new IOException("Unable to rename:" + temp + " to:" + file);
+        }
+    }
+ 
+    /**
+     *  Loads the strings file written by writeStrings() into the string 
+     *  index.  A MemStringIndex gets the strings with their original IDs.  
+     *  Any other index must assign the same IDs or this fails since the
+     *  IDs stored in components would no longer resolve.
+     */   
+    public static int loadStrings( StringIndex index, File file ) throws IOException {
+        ByteBuffer buffer = map(file);
+        if( buffer.remaining() < 12 || buffer.getInt() != STRINGS_MAGIC ) {
+            throw new IOException("Not a string index file:" + file);
+        }
+        int version = buffer.getInt();
+        if( version != VERSION ) {
+            throw new IOException("Unsupported snapshot version:" + version + " in:" + file);
+        }
+        int count = buffer.getInt();
+        for( int i = 0; i < count; i++ ) {
+            int id = buffer.getInt();
+            String s = FieldCodecs.readString(buffer);
+            if( index instanceof MemStringIndex ) {
+                ((MemStringIndex)index).load(id, s);
+            } else if( index.getStringId(s, true) != id ) {
+                throw new IOException("String index already has a different ID for:" + s + " expected:" + id);
+            }
+        }
+        return count;
+    }
+ 
+    /**
+     *  Writes the specified entity IDs and their component values of the
+     *  specified type to the file.  The file is written under a temporary
+     *  name and renamed when complete.
+     */   
+    public static void writeType( File file, Class type, List<EntityId> ids, List<?> values ) throws IOException {
+        if( ids.size() != values.size() ) {
+            throw new IllegalArgumentException("ID and value counts differ:" + ids.size() + " != " + values.size());
+        }
+        ComponentCodec codec = ComponentCodec.getCodec(type);
+        FieldCodec[] fields = codec.getFields();
+        long start = System.nanoTime();
+        
+        int count = ids.size();
+        long maxId = -1;
+        for( EntityId id : ids ) {
+            maxId = Math.max(maxId, id.getId());
+        }
+        
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            ColumnWriter out = new ColumnWriter(fos.getChannel());
+            ByteBuffer header = ByteBuffer.allocate(32 + (type.getName().length() + codec.getLayout().length()) * 4);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            FieldCodecs.writeString(type.getName(), header);
+            FieldCodecs.writeString(codec.getLayout(), header);
+            header.putInt(count);
+            header.putLong(maxId);
+            header.flip();
+            out.write(header);
+            
+            for( EntityId id : ids ) {
+                out.ensure(8);
+                out.buffer.putLong(id.getId());
+            }
+            for( FieldCodec f : fields ) {
+                for( Object value : values ) {
+                    out.write(f, value);
+                }
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        
+        deleteFile(file);
+        if( !temp.renameTo(file) ) {
+            throw new IOException("Unable to rename:" + temp + " to:" + file);
+        }
+        log.info("Wrote " + count + " " + type.getSimpleName() + " components to:" + file + " in " 
+                 + ((System.nanoTime() - start) / 1000000.0) + " ms");
+    }
+ 
+    /**
+     *  Records the next entity ID that the source of the snapshot would
+     *  hand out so that loading can continue from it.  The file is written
+     *  under a temporary name and renamed when complete.
+     */   
+    public static void writeNextEntityId( File dir, long nextId ) throws IOException {
+        File file = new File(dir, NEXT_ID_FILE);
+        File temp = new File(dir, NEXT_ID_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putInt(NEXT_ID_MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(nextId);
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                fos.getChannel().write(buffer);
+            }
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        
+        deleteFile(file);
+        if( !temp.renameTo(file) ) {
+            throw new IOException("Unable to rename:" + temp + " to:" + file);
+        }
+    }
+ 
+    /**
+     *  Returns the next entity ID to use after loading the snapshot in the 
+     *  directory: the ID saved by writeNextEntityId() or one more than the 
+     *  largest entity ID in any of the snapshot files, whichever is larger.
+     *  Only the file headers are read.
+     */   
+    public static long readNextEntityId( File dir ) throws IOException {
+        long max = -1;
+        for( File f : listFiles(dir) ) {
+            ByteBuffer buffer = map(f);
+            max = Math.max(max, readHeader(f, buffer).maxId);
+        }
+        long result = max + 1;
+        
+        File file = new File(dir, NEXT_ID_FILE);
+        if( file.exists() ) {
+            ByteBuffer buffer = map(file);
+            if( buffer.remaining() < 16 || buffer.getInt() != NEXT_ID_MAGIC ) {
+                throw new IOException("Not a next entity ID file:" + file);
+            }
+            int version = buffer.getInt();
+            if( version != VERSION ) {
+                throw new IOException("Unsupported snapshot version:" + version + " in:" + file);
+            }
+            result = Math.max(result, buffer.getLong());
+        }
+        return result;
+    }
+ 
+    /**
+     *  Creates a new DefaultEntityData whose ID generator starts at 
+     *  readNextEntityId() and loads the snapshot into it.
+     */   
+    public static DefaultEntityData load( File dir ) throws IOException {
+        DefaultEntityData ed = new DefaultEntityData(new DefaultEntityIdGenerator(readNextEntityId(dir)));
+        load(ed, dir);
+        return ed;
+    }
+ 
+    /**
+     *  Loads every snapshot file and the saved string index, if any, in 
+     *  the directory into the specified EntityData and returns the number 
+     *  of components loaded.
+     */
+    public static int load( EntityData ed, File dir ) throws IOException {
+        File strings = new File(dir, STRINGS_FILE);
+        if( strings.exists() ) {
+            loadStrings(ed.getStrings(), strings);
+        }
+        int total = 0;
+        for( File f : listFiles(dir) ) {
+            total += loadType(ed, f);
+        }
+        return total;
+    }
+    
+    protected static Collection<File> listFiles( File dir ) {
+        List<File> results = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if( files != null ) {
+            for( File f : files ) {
+                if( f.getName().endsWith(SUFFIX) ) {
+                    results.add(f);
+                }
+            }
+        }
+        return results;
+    }
+    
+    private static MappedByteBuffer map( File file ) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel fc = in.getChannel();
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static Header readHeader( File file, ByteBuffer buffer ) throws IOException {
+        if( buffer.remaining() < 8 || buffer.getInt() != MAGIC ) {
+            throw new IOException("Not a component snapshot file:" + file);
+        }
+        int version = buffer.getInt();
+        if( version != VERSION ) {
+            throw new IOException("Unsupported snapshot version:" + version + " in:" + file);
+        }
+        Header result = new Header();
+        result.className = FieldCodecs.readString(buffer);
+        result.layout = FieldCodecs.readString(buffer);
+        result.count = buffer.getInt();
+        result.maxId = buffer.getLong();
+        return result;
+    }
+ 
+    /**
+     *  Loads a single type's file into the EntityData and returns the
+     *  number of components loaded.
+     */   
+    public static int loadType( EntityData ed, File file ) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = map(file);
+        Header header = readHeader(file, buffer);
+        
+        Class type;
+        try {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if( loader == null ) {
+                loader = ComponentSnapshot.class.getClassLoader();
+            }
+            type = Class.forName(header.className, true, loader);
+        } catch( ClassNotFoundException e ) {
+            throw new IOException("Snapshot component type not found:" + header.className, e);
+        }
+        ComponentCodec codec = ComponentCodec.getCodec(type);
+        if( !codec.getLayout().equals(header.layout) ) {
+            throw new RuntimeException("Schema mismatch for type:" + header.className + " snapshot fields:" 
+                                        + header.layout + " class fields:" + codec.getLayout());
+        }
+ 
+        int count = header.count;
+        long[] ids = new long[count];
+        buffer.asLongBuffer().get(ids);
+        buffer.position(buffer.position() + count * 8);
+        
+        Object[] values = new Object[count];
+        for( int i = 0; i < count; i++ ) {
+            values[i] = codec.newInstance();
+        }
+        for( FieldCodec f : codec.getFields() ) {
+            for( int i = 0; i < count; i++ ) {
+                f.read(values[i], buffer);
+            }
+        }
+        
+        for( int i = 0; i < count; i++ ) {
+            ed.setComponent(new EntityId(ids[i]), (EntityComponent)values[i]);
+        }
+        log.info("Loaded " + count + " " + type.getSimpleName() + " components from:" + file + " in " 
+                 + ((System.nanoTime() - start) / 1000000.0) + " ms");
+        return count;
+    }
+    
+    private static class Header {
+        String className;
+        String layout;
+        int count;
+        long maxId;
+    }
+ 
+    /**
+     *  Buffers column values and writes them to the channel in large
+     *  chunks.
+     */   
+    private static class ColumnWriter {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        
+        public ColumnWriter( FileChannel channel ) {
+            this.channel = channel;
+        }
+        
+        public void ensure( int size ) throws IOException {
+            if( buffer.remaining() < size ) {
+                flush();
+            }
+        }
+        
+        public void write( ByteBuffer data ) throws IOException {
+            flush();
+            while( data.hasRemaining() ) {
+                channel.write(data);
+            }
+        }
+        
+        public void write( String s ) throws IOException {
+            for( ;; ) {
+                int mark = buffer.position();
+                try {
+                    FieldCodecs.writeString(s, buffer);
+                    return;
+                } catch( BufferOverflowException e ) {
+                    buffer.position(mark);
+                    if( mark == 0 ) {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    } else {
+                        flush();
+                    }
+                }
+            }
+        }
+        
+        public void write( FieldCodec f, Object value ) throws IOException {
+            for( ;; ) {
+                int mark = buffer.position();
+                try {
+                    f.write(value, buffer);
+                    return;
+                } catch( BufferOverflowException e ) {
+                    buffer.position(mark);
+                    if( mark == 0 ) {
+                        // A single value bigger than the whole buffer
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    } else {
+                        flush();
+                    }
+                }
+            }
+        }
+        
+        public void flush() throws IOException {
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
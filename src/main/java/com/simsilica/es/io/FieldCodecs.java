@@ -0,0 +1,358 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.io;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.simsilica.es.EntityId;
+
+
+/**
+ *  Creates the FieldCodec for a reflected field.  Primitives are written 
+ *  as themselves.  Wrappers, Strings, EntityIds, enums, and nested objects 
+ *  are preceded by a null flag or length.  Enums are written by name so 
+ *  that reordering the constants does not change stored values.  Arrays 
+ *  and collections are not supported.
+ *
+ *  @author    Paul Speed
+ */
+public class FieldCodecs {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BOOLEAN = 0;
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int CHAR = 3;
+    private static final int INT = 4;
+    private static final int LONG = 5;
+    private static final int FLOAT = 6;
+    private static final int DOUBLE = 7;
+
+    public static FieldCodec create( Field f ) {
+        f.setAccessible(true);
+        
+        Class type = f.getType();
+        int kind = primitiveKind(type);
+        if( kind >= 0 ) {
+            return type.isPrimitive() ? new PrimitiveField(f, kind) : new BoxedField(f, kind);
+        }
+        if( String.class.equals(type) ) {
+            return new StringField(f);
+        }
+        if( EntityId.class.equals(type) ) {
+            return new EntityIdField(f);
+        }
+        if( type.isEnum() ) {
+            return new EnumField(f);
+        }
+        if( type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers()) ) {
+            throw new UnsupportedOperationException("Field type not supported:" + f);
+        } 
+        return new ObjectField(f);
+    }
+
+    protected static int primitiveKind( Class c ) {
+        if( c == Boolean.TYPE || c == Boolean.class ) return BOOLEAN;
+        if( c == Byte.TYPE || c == Byte.class ) return BYTE;
+        if( c == Short.TYPE || c == Short.class ) return SHORT;
+        if( c == Character.TYPE || c == Character.class ) return CHAR;
+        if( c == Integer.TYPE || c == Integer.class ) return INT;
+        if( c == Long.TYPE || c == Long.class ) return LONG;
+        if( c == Float.TYPE || c == Float.class ) return FLOAT;
+        if( c == Double.TYPE || c == Double.class ) return DOUBLE;
+        return -1;
+    }
+
+    /**
+     *  Writes a possibly null string as an int byte length, -1 for null,
+     *  followed by the UTF-8 bytes.
+     */
+    public static void writeString( String s, ByteBuffer out ) {
+        if( s == null ) {
+            out.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+    
+    public static String readString( ByteBuffer in ) {
+        int size = in.getInt();
+        if( size < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+    
+    protected static void writeBoxed( int kind, Object value, ByteBuffer out ) {
+        switch( kind ) {
+            case BOOLEAN: out.put((byte)(((Boolean)value) ? 1 : 0)); break;
+            case BYTE: out.put((Byte)value); break;
+            case SHORT: out.putShort((Short)value); break;
+            case CHAR: out.putChar((Character)value); break;
+            case INT: out.putInt((Integer)value); break;
+            case LONG: out.putLong((Long)value); break;
+            case FLOAT: out.putFloat((Float)value); break;
+            case DOUBLE: out.putDouble((Double)value); break;
+        }
+    }
+    
+    protected static Object readBoxed( int kind, ByteBuffer in ) {
+        switch( kind ) {
+            case BOOLEAN: return in.get() != 0;
+            case BYTE: return in.get();
+            case SHORT: return in.getShort();
+            case CHAR: return in.getChar();
+            case INT: return in.getInt();
+            case LONG: return in.getLong();
+            case FLOAT: return in.getFloat();
+            case DOUBLE: return in.getDouble();
+        }
+        throw new IllegalArgumentException("Unknown kind:" + kind);
+    }
+
+    protected static abstract class AbstractField implements FieldCodec {
+        protected final Field field;
+        
+        protected AbstractField( Field field ) {
+            this.field = field;
+        }
+        
+        @Override
+        public String getFieldName() {
+            return field.getName();
+        }
+        
+        @Override
+        public Class getType() {
+            return field.getType();
+        }
+        
+        @Override
+        public String getLayout() {
+            return field.getName() + ":" + field.getType().getName();
+        }
+        
+        protected Object get( Object object ) {
+            try {
+                return field.get(object);
+            } catch( IllegalAccessException e ) {
+                throw new RuntimeException("Error in field mapping:" + field, e);
+            }
+        }
+        
+        protected void set( Object target, Object value ) {
+            try {
+                field.set(target, value);
+            } catch( IllegalAccessException e ) {
+                throw new RuntimeException("Error in field mapping:" + field, e);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + getLayout() + "]";
+        }
+    }
+    
+    protected static class PrimitiveField extends AbstractField {
+        private final int kind;
+        
+        public PrimitiveField( Field field, int kind ) {
+            super(field);
+            this.kind = kind;
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            try {
+                switch( kind ) {
+                    case BOOLEAN: out.put((byte)(field.getBoolean(object) ? 1 : 0)); break;
+                    case BYTE: out.put(field.getByte(object)); break;
+                    case SHORT: out.putShort(field.getShort(object)); break;
+                    case CHAR: out.putChar(field.getChar(object)); break;
+                    case INT: out.putInt(field.getInt(object)); break;
+                    case LONG: out.putLong(field.getLong(object)); break;
+                    case FLOAT: out.putFloat(field.getFloat(object)); break;
+                    case DOUBLE: out.putDouble(field.getDouble(object)); break;
+                }
+            } catch( IllegalAccessException e ) {
+                throw new RuntimeException("Error in field mapping:" + field, e);
+            }
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            try {
+                switch( kind ) {
+                    case BOOLEAN: field.setBoolean(target, in.get() != 0); break;
+                    case BYTE: field.setByte(target, in.get()); break;
+                    case SHORT: field.setShort(target, in.getShort()); break;
+                    case CHAR: field.setChar(target, in.getChar()); break;
+                    case INT: field.setInt(target, in.getInt()); break;
+                    case LONG: field.setLong(target, in.getLong()); break;
+                    case FLOAT: field.setFloat(target, in.getFloat()); break;
+                    case DOUBLE: field.setDouble(target, in.getDouble()); break;
+                }
+            } catch( IllegalAccessException e ) {
+                throw new RuntimeException("Error in field mapping:" + field, e);
+            }
+        }
+    }
+    
+    protected static class BoxedField extends AbstractField {
+        private final int kind;
+        
+        public BoxedField( Field field, int kind ) {
+            super(field);
+            this.kind = kind;
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            Object value = get(object);
+            if( value == null ) {
+                out.put((byte)0);
+                return;
+            }
+            out.put((byte)1);
+            writeBoxed(kind, value, out);
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            set(target, in.get() == 0 ? null : readBoxed(kind, in));
+        }
+    }
+    
+    protected static class StringField extends AbstractField {
+        public StringField( Field field ) {
+            super(field);
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            writeString((String)get(object), out);
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            set(target, readString(in));
+        }
+    }
+    
+    protected static class EntityIdField extends AbstractField {
+        public EntityIdField( Field field ) {
+            super(field);
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            EntityId id = (EntityId)get(object);
+            if( id == null ) {
+                out.put((byte)0);
+                return;
+            }
+            out.put((byte)1);
+            out.putLong(id.getId());
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            set(target, in.get() == 0 ? null : new EntityId(in.getLong()));
+        }
+    }
+    
+    protected static class EnumField extends AbstractField {
+        public EnumField( Field field ) {
+            super(field);
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            Enum value = (Enum)get(object);
+            writeString(value == null ? null : value.name(), out);
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            String name = readString(in);
+            set(target, name == null ? null : Enum.valueOf((Class<Enum>)field.getType(), name));
+        }
+    }
+    
+    protected static class ObjectField extends AbstractField {
+        private final ComponentCodec codec;
+        
+        public ObjectField( Field field ) {
+            super(field);
+            this.codec = ComponentCodec.getCodec(field.getType());
+        }
+        
+        @Override
+        public String getLayout() {
+            return super.getLayout() + "{" + codec.getLayout() + "}";
+        }
+        
+        @Override
+        public void write( Object object, ByteBuffer out ) {
+            Object value = get(object);
+            if( value == null ) {
+                out.put((byte)0);
+                return;
+            }
+            if( value.getClass() != codec.getType() ) {
+                throw new UnsupportedOperationException("Subclass values not supported:" + value.getClass() 
+                                                        + " in field:" + field);
+            }
+            out.put((byte)1);
+            codec.write(value, out);
+        }
+        
+        @Override
+        public void read( Object target, ByteBuffer in ) {
+            set(target, in.get() == 0 ? null : codec.read(in));
+        }
+    }
+}
@@ -0,0 +1,974 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.simsilica.es.EntityChange;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityComponentListener;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.io.ComponentCodec;
+import com.simsilica.es.io.FieldCodecs;
+
+
+/**
+ *  Append-only binary log of component changes kept in memory-mapped
+ *  segment files.  Appending a change is an encode and a copy into the
+ *  mapped segment.  The mapped pages are forced to disk by a background
+ *  thread every sync interval, so all of the changes made in an interval
+ *  are committed together.  A sync interval of 0 forces after every change.
+ *
+ *  <p>Each record is an int length, an int CRC32, and a body.  Every segment 
+ *  starts its own component type table so that each file can be read on its 
+ *  own, and types are recorded by class name and ComponentCodec layout so 
+ *  that a changed class is detected on replay instead of misread.  A torn 
+ *  record at the end of the last segment fails its CRC and ends the replay
+ *  of that segment.</p>
+ *
+ *  <p>The next segment file is allocated and mapped in the background
+ *  ahead of time, and a full segment is forced and closed in the background
+ *  after the writers have moved on, so rolling to a new segment does not 
+ *  stall the writer on file I/O.</p>
+ *
+ *  <p>When enough segments have been closed, a background compaction folds 
+ *  the latest snapshot and the closed segments into a new snapshot that holds 
+ *  only the current value of each component, and then deletes them.  Replay
+ *  reads the newest snapshot and then the segments written after it.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ChangeJournal implements EntityComponentListener {
+
+    static Logger log = Logger.getLogger(ChangeJournal.class.getName());
+
+    public static final long DEFAULT_SYNC_INTERVAL = 50;
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_COMPACT_THRESHOLD = 4;
+
+    private static final int MAGIC = 0x5a45534a; // ZESJ
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_OVERHEAD = 8;
+
+    private static final byte TYPE = 1;
+    private static final byte SET = 2;
+    private static final byte REMOVE = 3;
+    private static final byte RESERVE = 4;
+    private static final byte STRING = 5;
+    
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SUFFIX = ".jrn";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long syncInterval;
+    private final int segmentSize;
+    private volatile int compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+    
+    // Guarded by 'this'
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private Future<Segment> nextSegment;
+    private final Map<Class, Integer> typeRefs = new HashMap<Class, Integer>();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private final CRC32 crc = new CRC32();
+    private boolean dirty;
+    private int closedSegments;
+    private boolean closed;
+    
+    private ScheduledExecutorService executor;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     *  Receives the contents of the journal during replay().
+     */
+    public interface ReplayHandler {
+        public void setComponent( EntityId entityId, EntityComponent component );
+        public void removeComponent( EntityId entityId, Class type );
+        
+        /**
+         *  Called with the end of each range of entity IDs that was reserved.
+         *  IDs below it may be referenced by components even if they no 
+         *  longer have components of their own.
+         */
+        public void reserveIds( long end );
+        
+        public void addString( int id, String s );
+    }
+
+    public ChangeJournal( File dir ) {
+        this(dir, DEFAULT_SYNC_INTERVAL, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public ChangeJournal( File dir, long syncInterval, int segmentSize ) {
+        if( syncInterval < 0 ) {
+            throw new IllegalArgumentException("Sync interval cannot be negative:" + syncInterval);
+        }
+        if( segmentSize < 4096 ) {
+            throw new IllegalArgumentException("Segment size too small:" + segmentSize);
+        }
+        this.dir = dir;
+        this.syncInterval = syncInterval;
+        this.segmentSize = segmentSize;
+        if( !dir.exists() && !dir.mkdirs() ) {
+            throw new IllegalArgumentException("Cannot create journal directory:" + dir);
+        } 
+    }
+    
+    public File getDirectory() {
+        return dir;
+    }
+    
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+    
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+ 
+    /**
+     *  Sets how many segments must be closed before a background
+     *  compaction is started.  0 disables automatic compaction.
+     */   
+    public void setCompactThreshold( int compactThreshold ) {
+        this.compactThreshold = compactThreshold;
+    }
+    
+    public int getCompactThreshold() {
+        return compactThreshold;
+    }
+    
+    private static void listFiles( File dir, String prefix, String suffix, TreeMap<Long, File> results ) {
+        File[] files = dir.listFiles();
+        if( files == null ) {
+            return;
+        }
+        for( File f : files ) {
+            String name = f.getName();
+            if( !name.startsWith(prefix) || !name.endsWith(suffix) ) {
+                continue;
+            }
+            try {
+                long seq = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+                results.put(seq, f);
+            } catch( NumberFormatException e ) {
+                log.warning("Ignoring unexpected journal file:" + f);
+            }
+        }
+    }
+    
+    protected File getFile( String prefix, long seq, String suffix ) {
+        return new File(dir, prefix + String.format("%016d", seq) + suffix);
+    }
+ 
+    /**
+     *  Delivers the newest snapshot and then every later segment to the handler
+     *  and removes any files left over from an interrupted compaction.  This must
+     *  be called before open().
+     */   
+    public void replay( ReplayHandler handler ) throws IOException {
+        synchronized( this ) {
+            if( channel != null ) {
+                throw new IllegalStateException("Journal is already open");
+            }
+        }
+        TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        listFiles(dir, SNAPSHOT_PREFIX, SUFFIX, snapshots);
+        listFiles(dir, SEGMENT_PREFIX, SUFFIX, segments);
+        
+        // Snapshots that were never finished
+        TreeMap<Long, File> temps = new TreeMap<Long, File>();
+        listFiles(dir, SNAPSHOT_PREFIX, TEMP_SUFFIX, temps);
+        for( File f : temps.values() ) {
+            f.delete();
+        }
+
+        long base = -1;
+        ReplayVisitor visitor = new ReplayVisitor(handler);
+        if( !snapshots.isEmpty() ) {
+            Map.Entry<Long, File> last = snapshots.lastEntry();
+            base = last.getKey();
+            readFile(last.getValue(), visitor);
+            for( File f : snapshots.headMap(base).values() ) {
+                f.delete();
+            }
+        }
+        for( Map.Entry<Long, File> e : segments.entrySet() ) {
+            if( e.getKey() <= base ) {
+                // Already folded into the snapshot
+                e.getValue().delete();
+                continue;
+            }
+            readFile(e.getValue(), visitor);
+        }
+    }
+
+    /**
+     *  Starts a new segment after any existing ones and starts the
+     *  background sync thread.
+     */
+    public synchronized void open() throws IOException {
+        if( channel != null ) {
+            throw new IllegalStateException("Journal is already open");
+        }
+        TreeMap<Long, File> existing = new TreeMap<Long, File>();
+        listFiles(dir, SEGMENT_PREFIX, SUFFIX, existing);
+        listFiles(dir, SNAPSHOT_PREFIX, SUFFIX, existing);
+        sequence = existing.isEmpty() ? 0 : existing.lastKey() + 1;
+        createSegment();
+        
+        executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread(r, "ChangeJournal[" + dir.getName() + "]");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        if( syncInterval > 0 ) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        preallocate();
+    }
+    
+    private void createSegment() throws IOException {
+        startSegment(allocateSegment(sequence));
+    }
+ 
+    /**
+     *  Creates and maps the file for the specified segment without writing
+     *  anything to it.  Called from the background thread for pre-allocation.
+     */   
+    private Segment allocateSegment( long seq ) throws IOException {
+        File file = getFile(SEGMENT_PREFIX, seq, SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            FileChannel fc = raf.getChannel();
+            return new Segment(seq, file, fc, fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } catch( IOException e ) {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    private void startSegment( Segment next ) {
+        channel = next.channel;
+        segment = next.buffer;
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(next.sequence);
+        typeRefs.clear();
+        dirty = true;
+    }
+ 
+    /**
+     *  Starts allocating the segment after the current one in the background.
+     */   
+    private void preallocate() {
+        final long seq = sequence + 1;
+        nextSegment = executor.submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws IOException {
+                    return allocateSegment(seq);
+                }
+            });
+    }
+ 
+    /**
+     *  Returns the pre-allocated segment, waiting for it if it is being 
+     *  allocated right now, or null if it could not be allocated or was
+     *  still queued.
+     */   
+    private Segment takeNextSegment() {
+        Future<Segment> next = nextSegment;
+        nextSegment = null;
+        if( next == null ) {
+            return null;
+        }
+        if( next.cancel(false) ) {
+            // Still queued, possibly behind tasks that need our lock, so
+            // the caller will allocate it directly instead.  Waiting is only
+            // safe once it is running because allocation doesn't lock.
+            return null;
+        }
+        boolean interrupted = false;
+        try {
+            for( ;; ) {
+                try {
+                    return next.get();
+                } catch( InterruptedException e ) {
+                    // Giving up would leak the mapped file so finish the wait
+                    interrupted = true;
+                } catch( CancellationException e ) {
+                    return null;
+                } catch( ExecutionException e ) {
+                    log.log(Level.WARNING, "Error pre-allocating journal segment:" + (sequence + 1), e.getCause());
+                    return null;
+                }
+            }
+        } finally {
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void roll() {
+        final MappedByteBuffer oldSegment = segment;
+        final FileChannel oldChannel = channel;
+        try {
+            Segment next = takeNextSegment();
+            if( next == null ) {
+                next = allocateSegment(sequence + 1);
+            }
+            sequence++;
+            startSegment(next);
+        } catch( IOException e ) {
+            throw new RuntimeException("Error rolling journal segment:" + (sequence + 1), e);
+        }
+        preallocate();
+        
+        int threshold = compactThreshold;
+        final boolean compact = threshold > 0 && ++closedSegments >= threshold;
+        if( compact ) {
+            closedSegments = 0;
+        }
+        
+        // Forcing a whole segment can take a while so it's done off of the
+        // writer's lock.  Compaction runs after it in the same task so that
+        // it only ever reads segments that are fully on disk.
+        executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    oldSegment.force();
+                    try {
+                        oldChannel.close();
+                    } catch( IOException e ) {
+                        log.log(Level.WARNING, "Error closing journal segment", e);
+                    }
+                    if( compact ) {
+                        runCompaction();
+                    }
+                }
+            });
+    }
+ 
+    private void runCompaction() {
+        try {
+            compact();
+        } catch( IOException e ) {
+            log.log(Level.SEVERE, "Error compacting journal:" + dir, e);
+        } catch( RuntimeException e ) {
+            // These are not going to fix themselves, a schema change for 
+            // example, so retrying every few segments would just fail again 
+            compactThreshold = 0;
+            log.log(Level.SEVERE, "Error compacting journal:" + dir + ", automatic compaction disabled", e);
+        }
+    }
+
+    @Override
+    public void componentChange( EntityChange change ) {
+        EntityComponent c = change.getComponent();
+        if( c == null ) {
+            removeComponent(change.getEntityId(), change.getComponentType());
+        } else {
+            setComponent(change.getEntityId(), c);
+        }
+    }
+    
+    public synchronized void setComponent( EntityId entityId, EntityComponent component ) {
+        ComponentCodec codec = ComponentCodec.getCodec(component.getClass());
+        for( ;; ) {
+            scratch.clear();
+            try {
+                scratch.put(SET);
+                scratch.putLong(entityId.getId());
+                scratch.putInt(0);
+                codec.write(component, scratch);
+                break;
+            } catch( BufferOverflowException e ) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+        writeEntry(component.getClass(), scratch);
+    }
+    
+    public synchronized void removeComponent( EntityId entityId, Class type ) {
+        scratch.clear();
+        scratch.put(REMOVE);
+        scratch.putLong(entityId.getId());
+        scratch.putInt(0);
+        writeEntry(type, scratch);
+    }
+    
+    public synchronized void reserveIds( long end ) {
+        scratch.clear();
+        scratch.put(RESERVE);
+        scratch.putLong(end);
+        scratch.flip();
+        ensureSpace(scratch.remaining());
+        writeRecord(scratch);
+    }
+    
+    public synchronized void addString( int id, String s ) {
+        ByteBuffer body = encodeString(id, s);
+        ensureSpace(body.remaining());
+        writeRecord(body);
+    }
+ 
+    private static ByteBuffer encodeString( int id, String s ) {
+        ByteBuffer body = ByteBuffer.allocate(9 + s.length() * 4);
+        body.put(STRING);
+        body.putInt(id);
+        FieldCodecs.writeString(s, body);
+        body.flip();
+        return body;
+    }
+ 
+    private static ByteBuffer encodeType( int ref, String className, String layout ) {
+        ByteBuffer body = ByteBuffer.allocate(13 + (className.length() + layout.length()) * 4);
+        body.put(TYPE);
+        body.putInt(ref);
+        FieldCodecs.writeString(className, body);
+        FieldCodecs.writeString(layout, body);
+        body.flip();
+        return body;
+    }
+    
+    private void ensureSpace( int size ) {
+        if( closed || segment == null ) {
+            throw new IllegalStateException("Journal is not open");
+        }
+        if( size + RECORD_OVERHEAD > segmentSize - HEADER_SIZE ) {
+            throw new IllegalArgumentException("Record of size:" + size + " exceeds the segment size:" + segmentSize);
+        }
+        if( segment.remaining() < size + RECORD_OVERHEAD ) {
+            roll();
+        }
+    }
+ 
+    /**
+     *  Writes the change in body, which has a placeholder type reference 
+     *  after its kind and entity ID, preceded by the type's definition if
+     *  the current segment does not have one yet.
+     */   
+    private void writeEntry( Class type, ByteBuffer body ) {
+        body.flip();
+        int size = body.remaining();
+        ensureSpace(size);
+        Integer ref = typeRefs.get(type);
+        if( ref == null ) {
+            ComponentCodec codec = ComponentCodec.getCodec(type);
+            ByteBuffer def = encodeType(0, type.getName(), codec.getLayout());
+            ensureSpace(def.remaining() + size + RECORD_OVERHEAD);
+            ref = typeRefs.size();
+            def.putInt(1, ref);
+            writeRecord(def);
+            typeRefs.put(type, ref);
+        }
+        body.putInt(9, ref);
+        writeRecord(body);
+    }
+    
+    private void writeRecord( ByteBuffer body ) {
+        crc.reset();
+        crc.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        segment.putInt(body.remaining());
+        segment.putInt((int)crc.getValue());
+        segment.put(body);
+        if( syncInterval == 0 ) {
+            segment.force();
+        } else {
+            dirty = true;
+        }
+    }
+ 
+    /**
+     *  Forces everything written so far to disk.  This is what the
+     *  background thread calls every sync interval.
+     */   
+    public void flush() {
+        MappedByteBuffer toForce;
+        synchronized( this ) {
+            if( !dirty || segment == null ) {
+                return;
+            }
+            dirty = false;
+            toForce = segment;
+        }
+        // Forcing outside of the lock lets writers keep appending
+        // while the pages are written.
+        toForce.force();
+    }
+ 
+    /**
+     *  Folds the newest snapshot and all closed segments into a new snapshot
+     *  and deletes them.  This is normally run in the background when enough
+     *  segments have been closed but can be called directly.  Does nothing if 
+     *  another compaction is already running.
+     */   
+    public void compact() throws IOException {
+        if( !compacting.compareAndSet(false, true) ) {
+            return;
+        }
+        try {
+            long last;
+            synchronized( this ) {
+                last = sequence - 1;
+            }
+            TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+            TreeMap<Long, File> segments = new TreeMap<Long, File>();
+            listFiles(dir, SNAPSHOT_PREFIX, SUFFIX, snapshots);
+            listFiles(dir, SEGMENT_PREFIX, SUFFIX, segments);
+            
+            long base = snapshots.isEmpty() ? -1 : snapshots.lastKey();
+            Map<Long, File> folded = segments.subMap(base, false, last, true);
+            if( folded.isEmpty() ) {
+                return;
+            }
+            
+            long start = System.nanoTime();
+            CompactVisitor state = new CompactVisitor();
+            if( base >= 0 ) {
+                readFile(snapshots.get(base), state);
+            }
+            for( File f : folded.values() ) {
+                readFile(f, state);
+            }
+            
+            File temp = getFile(SNAPSHOT_PREFIX, last, TEMP_SUFFIX);
+            writeSnapshot(temp, last, state);
+            File target = getFile(SNAPSHOT_PREFIX, last, SUFFIX);
+            if( !temp.renameTo(target) ) {
+                temp.delete();
+                throw new IOException("Unable to rename:" + temp + " to:" + target);
+            }
+            
+            // Only now is it safe to delete what was folded in
+            for( File f : snapshots.values() ) {
+                f.delete();
+            }
+            for( File f : segments.headMap(last, true).values() ) {
+                f.delete();
+            }
+            if( log.isLoggable(Level.FINE) ) {
+                log.fine("Compacted " + folded.size() + " segments into:" + target + " with " 
+                         + state.components.size() + " components in " 
+                         + ((System.nanoTime() - start) / 1000000.0) + " ms");
+            }
+        } finally {
+            compacting.set(false);
+        }
+    }
+    
+    private void writeSnapshot( File file, long seq, CompactVisitor state ) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            
+            CRC32 check = new CRC32();
+            Map<String, Integer> refs = new HashMap<String, Integer>();
+            for( Map.Entry<String, String> e : state.layouts.entrySet() ) {
+                int ref = refs.size();
+                refs.put(e.getKey(), ref);
+                writeStreamRecord(out, check, encodeType(ref, e.getKey(), e.getValue()));
+            }
+            for( Map.Entry<Integer, String> e : state.strings.entrySet() ) {
+                writeStreamRecord(out, check, encodeString(e.getKey(), e.getValue()));
+            }
+            if( state.reserved != Long.MIN_VALUE ) {
+                ByteBuffer body = ByteBuffer.allocate(9);
+                body.put(RESERVE);
+                body.putLong(state.reserved);
+                body.flip();
+                writeStreamRecord(out, check, body);
+            }
+            for( Map.Entry<ComponentKey, byte[]> e : state.components.entrySet() ) {
+                ComponentKey key = e.getKey();
+                byte[] data = e.getValue();
+                ByteBuffer body = ByteBuffer.allocate(13 + data.length);
+                body.put(SET);
+                body.putLong(key.entityId);
+                body.putInt(refs.get(key.className));
+                body.put(data);
+                body.flip();
+                writeStreamRecord(out, check, body);
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+    }
+    
+    private static void writeStreamRecord( DataOutputStream out, CRC32 check, ByteBuffer body ) throws IOException {
+        check.reset();
+        check.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        out.writeInt(body.remaining());
+        out.writeInt((int)check.getValue());
+        out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+    }
+
+    /**
+     *  Reads all of the valid records in a segment or snapshot file, resolving
+     *  the file's type references for the visitor.
+     */
+    private void readFile( File file, RecordVisitor visitor ) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel fc = in.getChannel();
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if( buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC ) {
+                log.warning("Skipping file that is not a journal:" + file);
+                return;
+            }
+            int version = buffer.getInt();
+            if( version != VERSION ) {
+                throw new IOException("Unsupported journal version:" + version + " in:" + file);
+            }
+            buffer.getLong();
+            
+            Map<Integer, String[]> types = new HashMap<Integer, String[]>();
+            CRC32 check = new CRC32();
+            while( buffer.remaining() >= RECORD_OVERHEAD ) {
+                int size = buffer.getInt();
+                if( size == 0 ) {
+                    // End of the written part of a segment
+                    break;
+                }
+                int expected = buffer.getInt();
+                if( size < 0 || size > buffer.remaining() ) {
+                    log.warning("Truncated record at:" + (buffer.position() - RECORD_OVERHEAD) + " in:" + file);
+                    break;
+                }
+                byte[] data = new byte[size];
+                buffer.get(data);
+                check.reset();
+                check.update(data, 0, size);
+                if( (int)check.getValue() != expected ) {
+                    log.warning("Corrupt record at:" + (buffer.position() - size - RECORD_OVERHEAD) + " in:" + file);
+                    break;
+                }
+                
+                ByteBuffer body = ByteBuffer.wrap(data);
+                byte kind = body.get();
+                switch( kind ) {
+                    case TYPE:
+                        int ref = body.getInt();
+                        String className = FieldCodecs.readString(body);
+                        String layout = FieldCodecs.readString(body);
+                        types.put(ref, new String[] { className, layout });
+                        visitor.type(className, layout);
+                        break;
+                    case SET:
+                    case REMOVE:
+                        long entityId = body.getLong();
+                        String[] type = types.get(body.getInt());
+                        if( type == null ) {
+                            throw new IOException("Undefined type reference in:" + file);
+                        }
+                        if( kind == SET ) {
+                            visitor.set(entityId, type[0], body);
+                        } else {
+                            visitor.remove(entityId, type[0]);
+                        }
+                        break;
+                    case RESERVE:
+                        visitor.reserve(body.getLong());
+                        break;
+                    case STRING:
+                        int id = body.getInt();
+                        visitor.string(id, FieldCodecs.readString(body));
+                        break;
+                    default:
+                        throw new IOException("Unknown record type:" + kind + " in:" + file);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+ 
+    /**
+     *  Stops the background thread, waiting for any compaction to finish,
+     *  and forces the current segment to disk.
+     */   
+    public void close() {
+        ScheduledExecutorService exec;
+        synchronized( this ) {
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            exec = executor;
+        }
+        if( exec != null ) {
+            exec.shutdown();
+            try {
+                exec.awaitTermination(1, TimeUnit.MINUTES);
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized( this ) {
+            // The executor is done so this does not wait
+            Segment unused = takeNextSegment();
+            if( unused != null ) {
+                try {
+                    unused.channel.close();
+                } catch( IOException e ) {
+                    log.log(Level.WARNING, "Error closing journal segment", e);
+                }
+                unused.file.delete();
+            }
+            if( segment != null ) {
+                segment.force();
+                segment = null;
+            }
+            if( channel != null ) {
+                try {
+                    channel.close();
+                } catch( IOException e ) {
+                    log.log(Level.WARNING, "Error closing journal segment", e);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "ChangeJournal[" + dir + ", syncInterval=" + syncInterval + ", segmentSize=" + segmentSize + "]";
+    }
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        
+        public Segment( long sequence, File file, FileChannel channel, MappedByteBuffer buffer ) {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private interface RecordVisitor {
+        public void type( String className, String layout );
+        public void set( long entityId, String className, ByteBuffer data ) throws IOException;
+        public void remove( long entityId, String className ) throws IOException;
+        public void reserve( long end );
+        public void string( int id, String s );
+    }
+    
+    private static class ReplayVisitor implements RecordVisitor {
+        private final ReplayHandler handler;
+        private final Map<String, String> layouts = new HashMap<String, String>();
+        private final Map<String, ComponentCodec> codecs = new HashMap<String, ComponentCodec>();
+        
+        public ReplayVisitor( ReplayHandler handler ) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public void type( String className, String layout ) {
+            String existing = layouts.put(className, layout);
+            if( existing != null && !existing.equals(layout) ) {
+                // A later segment was written by a different version of the class
+                codecs.remove(className);
+            }
+        }
+        
+        protected ComponentCodec getCodec( String className ) throws IOException {
+            ComponentCodec result = codecs.get(className);
+            if( result != null ) {
+                return result;
+            }
+            Class type;
+            try {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                if( loader == null ) {
+                    loader = ChangeJournal.class.getClassLoader();
+                }
+                type = Class.forName(className, true, loader);
+            } catch( ClassNotFoundException e ) {
+                throw new IOException("Journaled component type not found:" + className, e);
+            }
+            result = ComponentCodec.getCodec(type);
+            String layout = layouts.get(className);
+            if( !result.getLayout().equals(layout) ) {
+                throw new RuntimeException("Schema mismatch for type:" + className + " journal fields:" + layout 
+                                            + " class fields:" + result.getLayout());
+            }
+            codecs.put(className, result);
+            return result;
+        }
+        
+        @Override
+        public void set( long entityId, String className, ByteBuffer data ) throws IOException {
+            EntityComponent c = (EntityComponent)getCodec(className).read(data);
+            handler.setComponent(new EntityId(entityId), c);
+        }
+        
+        @Override
+        public void remove( long entityId, String className ) throws IOException {
+            handler.removeComponent(new EntityId(entityId), getCodec(className).getType());
+        }
+        
+        @Override
+        public void reserve( long end ) {
+            handler.reserveIds(end);
+        }
+        
+        @Override
+        public void string( int id, String s ) {
+            handler.addString(id, s);
+        }
+    }
+
+    private static class ComponentKey {
+        final long entityId;
+        final String className;
+        
+        public ComponentKey( long entityId, String className ) {
+            this.entityId = entityId;
+            this.className = className;
+        }
+        
+        @Override
+        public boolean equals( Object o ) {
+            if( !(o instanceof ComponentKey) ) {
+                return false;
+            }
+            ComponentKey other = (ComponentKey)o;
+            return entityId == other.entityId && className.equals(other.className);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (int)(entityId ^ (entityId >>> 32)) * 31 + className.hashCode();
+        }
+    }
+
+    /**
+     *  Keeps the raw encoded value of each live component without decoding
+     *  it, so compaction does not need the component classes.
+     */
+    private static class CompactVisitor implements RecordVisitor {
+        final Map<String, String> layouts = new LinkedHashMap<String, String>();
+        final Map<ComponentKey, byte[]> components = new LinkedHashMap<ComponentKey, byte[]>();
+        final Map<Integer, String> strings = new TreeMap<Integer, String>();
+        long reserved = Long.MIN_VALUE;
+        
+        @Override
+        public void type( String className, String layout ) {
+            String existing = layouts.put(className, layout);
+            if( existing != null && !existing.equals(layout) ) {
+                throw new RuntimeException("Schema changed for type:" + className 
+                                            + " between journal segments, cannot compact");
+            }
+        }
+        
+        @Override
+        public void set( long entityId, String className, ByteBuffer data ) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            ComponentKey key = new ComponentKey(entityId, className);
+            // Remove first so that the snapshot is in last-write order
+            components.remove(key);
+            components.put(key, bytes);
+        }
+        
+        @Override
+        public void remove( long entityId, String className ) {
+            components.remove(new ComponentKey(entityId, className));
+        }
+        
+        @Override
+        public void reserve( long end ) {
+            reserved = Math.max(reserved, end);
+        }
+        
+        @Override
+        public void string( int id, String s ) {
+            strings.put(id, s);
+        }
+    }
+}
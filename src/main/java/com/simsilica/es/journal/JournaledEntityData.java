@@ -0,0 +1,282 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.StringIndex;
+import com.simsilica.es.base.BlockEntityIdGenerator;
+import com.simsilica.es.base.ComponentHandler;
+import com.simsilica.es.base.DefaultEntityData;
+
+
+/**
+ *  In-memory EntityData that records every component change in a 
+ *  ChangeJournal and rebuilds itself from the journal when created.
+ *  Writes cost an append to a memory-mapped file instead of a database
+ *  round trip, and at most the last sync interval of changes is lost
+ *  in a crash.  Entity ID reservations and string index entries are 
+ *  journaled too so that IDs stored in components stay valid across
+ *  restarts.
+ *
+ *  <p>Changes are appended by the component handlers themselves while
+ *  holding a lock for the entity and type so that the journal always has 
+ *  writes to the same component in the order they were applied.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class JournaledEntityData extends DefaultEntityData {
+
+    static Logger log = Logger.getLogger(JournaledEntityData.class.getName());
+
+    public static final int DEFAULT_ID_RESERVE = 1024;
+    
+    private static final int LOCK_STRIPES = 64;
+
+    private final ChangeJournal journal;
+    private final JournalStringIndex strings = new JournalStringIndex();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    
+    /**
+     *  False while replaying so that the replayed changes are not
+     *  journaled again.
+     */
+    private volatile boolean journaling;
+
+    public JournaledEntityData( File dir ) throws IOException {
+        this(new ChangeJournal(dir));
+    }
+    
+    public JournaledEntityData( File dir, long syncInterval ) throws IOException {
+        this(new ChangeJournal(dir, syncInterval, ChangeJournal.DEFAULT_SEGMENT_SIZE));
+    }
+
+    /**
+     *  Creates an EntityData that replays and then appends to the 
+     *  specified journal.  The journal must not have been opened yet.
+     */
+    public JournaledEntityData( ChangeJournal journal ) throws IOException {
+        super(null);
+        this.journal = journal;
+        for( int i = 0; i < locks.length; i++ ) {
+            locks[i] = new Object();
+        }
+        
+        long start = System.nanoTime();
+        final AtomicLong nextId = new AtomicLong(0);
+        final int[] count = new int[1];
+        journal.replay(new ChangeJournal.ReplayHandler() {
+                @Override
+                public void setComponent( EntityId entityId, EntityComponent component ) {
+                    JournaledEntityData.super.setComponent(entityId, component);
+                    if( entityId.getId() >= nextId.get() ) {
+                        nextId.set(entityId.getId() + 1);
+                    }
+                    count[0]++;
+                }
+                
+                @Override
+                public void removeComponent( EntityId entityId, Class type ) {
+                    JournaledEntityData.super.removeComponent(entityId, type);
+                    count[0]++;
+                }
+                
+                @Override
+                public void reserveIds( long end ) {
+                    if( end > nextId.get() ) {
+                        nextId.set(end);
+                    }
+                }
+                
+                @Override
+                public void addString( int id, String s ) {
+                    strings.load(id, s);
+                }
+            });
+        log.info("Replayed " + count[0] + " changes from:" + journal.getDirectory() + " in " 
+                 + ((System.nanoTime() - start) / 1000000.0) + " ms");
+
+        setIdGenerator(new JournalIdGenerator(nextId.get()));
+        setStringIndex(strings);
+        
+        journal.open();
+        journaling = true;
+    }
+    
+    public ChangeJournal getJournal() {
+        return journal;
+    }
+
+    @Override
+    public void close() {
+        journaling = false;
+        super.close();
+        journal.close();
+    }
+
+    @Override
+    protected ComponentHandler lookupDefaultHandler( Class type ) {
+        return new JournalComponentHandler(super.lookupDefaultHandler(type), type);
+    }
+    
+    protected Object getLock( EntityId entityId, Class type ) {
+        int hash = (int)(entityId.getId() ^ (entityId.getId() >>> 32)) * 31 + type.hashCode();
+        hash ^= hash >>> 16;
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     *  Wraps a component handler to append each change to the journal
+     *  in the same critical section as the change itself.
+     */
+    private class JournalComponentHandler implements ComponentHandler {
+        private final ComponentHandler delegate;
+        private final Class type;
+        
+        public JournalComponentHandler( ComponentHandler delegate, Class type ) {
+            this.delegate = delegate;
+            this.type = type;
+        }
+        
+        @Override
+        public void setComponent( EntityId entityId, EntityComponent component ) {
+            synchronized( getLock(entityId, type) ) {
+                delegate.setComponent(entityId, component);
+                if( journaling ) {
+                    journal.setComponent(entityId, component);
+                }
+            }
+        }
+        
+        @Override
+        public boolean removeComponent( EntityId entityId ) {
+            synchronized( getLock(entityId, type) ) {
+                if( !delegate.removeComponent(entityId) ) {
+                    return false;
+                }
+                if( journaling ) {
+                    journal.removeComponent(entityId, type);
+                }
+                return true;
+            }
+        }
+        
+        @Override
+        public EntityComponent getComponent( EntityId entityId ) {
+            return delegate.getComponent(entityId);
+        }
+        
+        @Override
+        public Set<EntityId> getEntities() {
+            return delegate.getEntities();
+        }
+        
+        @Override
+        public Set<EntityId> getEntities( ComponentFilter filter ) {
+            return delegate.getEntities(filter);
+        }
+        
+        @Override
+        public EntityId findEntity( ComponentFilter filter ) {
+            return delegate.findEntity(filter);
+        }
+    }
+
+    /**
+     *  Hands out IDs from ranges whose end is journaled before any
+     *  ID in the range is used.
+     */
+    private class JournalIdGenerator extends BlockEntityIdGenerator {
+        private final AtomicLong next;
+        
+        public JournalIdGenerator( long initialValue ) {
+            super(DEFAULT_ID_RESERVE, 64);
+            this.next = new AtomicLong(initialValue);
+        }
+        
+        @Override
+        protected long reserve( int size ) {
+            long result = next.getAndAdd(size);
+            journal.reserveIds(result + size);
+            return result;
+        }
+    }
+
+    /**
+     *  In-memory string index that journals each new string.
+     */
+    private class JournalStringIndex implements StringIndex {
+        private final Map<String, Integer> index = new HashMap<String, Integer>();
+        private final Map<Integer, String> strings = new HashMap<Integer, String>();
+        private int nextId = 0;
+        
+        protected synchronized void load( int id, String s ) {
+            index.put(s, id);
+            strings.put(id, s);
+            nextId = Math.max(nextId, id + 1);
+        }
+        
+        @Override
+        public synchronized int getStringId( String s, boolean add ) {
+            Integer result = index.get(s);
+            if( result == null ) {
+                if( !add ) {
+                    return -1;
+                }
+                result = nextId++;
+                journal.addString(result, s);
+                index.put(s, result);
+                strings.put(result, s);
+            }
+            return result;
+        }
+        
+        @Override
+        public synchronized String getString( int id ) {
+            return strings.get(id);
+        }
+    }
+}
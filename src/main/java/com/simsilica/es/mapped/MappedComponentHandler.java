@@ -0,0 +1,539 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.simsilica.es.ComponentFilter;
+import com.simsilica.es.EntityComponent;
+import com.simsilica.es.EntityId;
+import com.simsilica.es.base.ComponentHandler;
+import com.simsilica.es.io.ComponentCodec;
+
+
+/**
+ *  ComponentHandler that stores components as fixed-size records in a
+ *  memory-mapped file, with the record for an entity at an offset 
+ *  computed from its ID.  Reading or writing a component is a handful 
+ *  of absolute buffer gets or puts and the operating system's page cache 
+ *  does all of the caching.  String fields are stored in an append-only
+ *  side file and referenced by offset.
+ *
+ *  <p>Only components whose fields are all primitives, Strings, or EntityIds
+ *  are supported, see isSupported().  Entity IDs must not be negative and 
+ *  the data file grows to hold the largest ID used, so this is meant for
+ *  the mostly sequential IDs of the default generators.  The field layout
+ *  is recorded in the file header and a changed class is rejected when
+ *  the file is opened.</p>
+ *
+ *  <p>Changes are written to the mapped pages immediately but only 
+ *  guaranteed to be on disk after flush() or close().</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MappedComponentHandler<T extends EntityComponent> implements ComponentHandler<T> {
+
+    static Logger log = Logger.getLogger(MappedComponentHandler.class.getName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x5a45534d; // ZESM
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final byte PRESENT = 1;
+    private static final int LOCK_COUNT = 64;
+
+    private static final int BOOLEAN = 0;
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int CHAR = 3;
+    private static final int INT = 4;
+    private static final int LONG = 5;
+    private static final int FLOAT = 6;
+    private static final int DOUBLE = 7;
+    private static final int STRING = 8;
+    private static final int ENTITY_ID = 9;
+    private static final int[] SIZES = { 1, 1, 2, 2, 4, 8, 4, 8, 8, 9 };
+
+    private final Class<T> type;
+    private final ComponentCodec<T> codec;
+    private final Slot[] slots;
+    private final String layout;
+    private final int recordSize;
+    private final int recordsPerChunk;
+    private final int chunkSize;
+    private final boolean hasStrings;
+    
+    private final File dataFile;
+    private final RandomAccessFile data;
+    private final FileChannel dataChannel;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private final StringFile strings;
+    
+    private final Set<EntityId> ids = Collections.newSetFromMap(new ConcurrentHashMap<EntityId, Boolean>());
+    private final Object[] locks = new Object[LOCK_COUNT];
+    
+    public MappedComponentHandler( File dir, Class<T> type ) throws IOException {
+        this(dir, type, DEFAULT_CHUNK_SIZE);
+    }
+    
+    public MappedComponentHandler( File dir, Class<T> type, int chunkSize ) throws IOException {
+        this.type = type;
+        this.codec = ComponentCodec.getCodec(type);
+        
+        List<Field> fields = ComponentCodec.getSerializedFields(type);
+        this.slots = new Slot[fields.size()];
+        StringBuilder sb = new StringBuilder();
+        int offset = 1; // the presence flag
+        boolean stringFields = false;
+        for( int i = 0; i < slots.length; i++ ) {
+            Field f = fields.get(i);
+            int kind = kindOf(f.getType());
+            if( kind < 0 ) {
+                throw new IllegalArgumentException("Field type not supported:" + f);
+            }
+            f.setAccessible(true);
+            slots[i] = new Slot(f, kind, offset);
+            offset += SIZES[kind];
+            stringFields |= kind == STRING;
+            if( i > 0 ) {
+                sb.append(";");
+            }
+            sb.append(f.getName() + ":" + f.getType().getName());
+        }
+        this.layout = sb.toString();
+        this.recordSize = offset;
+        this.recordsPerChunk = Math.max(1, chunkSize / recordSize);
+        this.chunkSize = recordsPerChunk * recordSize;
+        this.hasStrings = stringFields;
+        for( int i = 0; i < locks.length; i++ ) {
+            locks[i] = new Object();
+        }
+        
+        if( !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException("Cannot create directory:" + dir);
+        }
+        this.dataFile = new File(dir, type.getName() + ".dat");
+        boolean exists = dataFile.exists() && dataFile.length() > 0;
+        this.data = new RandomAccessFile(dataFile, "rw");
+        this.dataChannel = data.getChannel();
+        if( exists ) {
+            readHeader();
+        } else {
+            writeHeader();
+        }
+        this.strings = hasStrings ? new StringFile(new File(dir, type.getName() + ".str")) : null;
+        
+        // Map what is already there and collect the IDs
+        long records = (dataChannel.size() - HEADER_SIZE) / recordSize;
+        if( records > 0 ) {
+            int count = (int)((records + recordsPerChunk - 1) / recordsPerChunk);
+            MappedByteBuffer[] existing = getChunks(count - 1);
+            for( int c = 0; c < existing.length; c++ ) {
+                MappedByteBuffer chunk = existing[c];
+                long first = (long)c * recordsPerChunk;
+                for( int r = 0; r < recordsPerChunk; r++ ) {
+                    if( chunk.get(r * recordSize) == PRESENT ) {
+                        ids.add(new EntityId(first + r));
+                    }
+                }
+            }
+        }
+        log.info("Opened:" + dataFile + " with " + ids.size() + " components, record size:" + recordSize);
+    }
+ 
+    /**
+     *  Returns true if all of the fields of the specified type can be
+     *  stored in fixed-size records.
+     */   
+    public static boolean isSupported( Class type ) {
+        for( Field f : ComponentCodec.getSerializedFields(type) ) {
+            if( kindOf(f.getType()) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int kindOf( Class c ) {
+        if( c == Boolean.TYPE ) return BOOLEAN;
+        if( c == Byte.TYPE ) return BYTE;
+        if( c == Short.TYPE ) return SHORT;
+        if( c == Character.TYPE ) return CHAR;
+        if( c == Integer.TYPE ) return INT;
+        if( c == Long.TYPE ) return LONG;
+        if( c == Float.TYPE ) return FLOAT;
+        if( c == Double.TYPE ) return DOUBLE;
+        if( c == String.class ) return STRING;
+        if( c == EntityId.class ) return ENTITY_ID;
+        return -1;
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] bytes = layout.getBytes(UTF8);
+        if( bytes.length > HEADER_SIZE - 16 ) {
+            throw new IllegalArgumentException("Too many fields for header:" + type);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(recordSize);
+        header.putInt(bytes.length);
+        header.put(bytes);
+        header.clear();
+        dataChannel.write(header, 0);
+    }
+    
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        dataChannel.read(header, 0);
+        header.flip();
+        if( header.remaining() < 16 || header.getInt() != MAGIC ) {
+            throw new IOException("Not a component data file:" + dataFile);
+        }
+        int version = header.getInt();
+        if( version != VERSION ) {
+            throw new IOException("Unsupported data file version:" + version + " in:" + dataFile);
+        }
+        int size = header.getInt();
+        byte[] bytes = new byte[header.getInt()];
+        header.get(bytes);
+        String existing = new String(bytes, UTF8);
+        if( size != recordSize || !existing.equals(layout) ) {
+            throw new RuntimeException("Schema mismatch for type:" + type.getName() + " file fields:" + existing 
+                                        + " class fields:" + layout);
+        }
+    }
+    
+    public Class<T> getType() {
+        return type;
+    }
+    
+    public int getRecordSize() {
+        return recordSize;
+    }
+    
+    public File getFile() {
+        return dataFile;
+    }
+
+    /**
+     *  Returns the chunks, mapping more as needed so that the specified
+     *  chunk index exists.  Mapping past the end of the file extends it.
+     */
+    private MappedByteBuffer[] getChunks( int index ) throws IOException {
+        MappedByteBuffer[] current = chunks;
+        if( index < current.length ) {
+            return current;
+        }
+        synchronized( this ) {
+            current = chunks;
+            if( index < current.length ) {
+                return current;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(current, index + 1);
+            for( int i = current.length; i <= index; i++ ) {
+                grown[i] = dataChannel.map(FileChannel.MapMode.READ_WRITE, 
+                                           HEADER_SIZE + (long)i * chunkSize, chunkSize);
+            }
+            chunks = grown;
+            return grown;
+        }
+    }
+    
+    private Object lockFor( long id ) {
+        return locks[(int)(id & (LOCK_COUNT - 1))];
+    }
+    
+    @Override
+    public void setComponent( EntityId entityId, T component ) {
+        long id = entityId.getId();
+        if( id < 0 ) {
+            throw new IllegalArgumentException("Negative entity IDs not supported:" + entityId);
+        }
+        int chunk = (int)(id / recordsPerChunk);
+        int base = (int)(id % recordsPerChunk) * recordSize;
+        try {
+            MappedByteBuffer buffer = getChunks(chunk)[chunk];
+            synchronized( lockFor(id) ) {
+                boolean present = buffer.get(base) == PRESENT;
+                for( Slot s : slots ) {
+                    s.write(buffer, base, component, present, strings);
+                }
+                buffer.put(base, PRESENT);
+                
+                // Under the same lock so that the ID set always agrees
+                // with the record's flag
+                ids.add(entityId);
+            }
+        } catch( IOException e ) {
+            throw new RuntimeException("Error setting component:" + component + " on entity:" + entityId, e);
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException("Error in field mapping", e);
+        }
+    }
+    
+    @Override
+    public boolean removeComponent( EntityId entityId ) {
+        long id = entityId.getId();
+        int chunk = (int)(id / recordsPerChunk);
+        MappedByteBuffer[] current = chunks;
+        if( id < 0 || chunk >= current.length ) {
+            return false;
+        }
+        int base = (int)(id % recordsPerChunk) * recordSize;
+        synchronized( lockFor(id) ) {
+            if( current[chunk].get(base) != PRESENT ) {
+                return false;
+            }
+            current[chunk].put(base, (byte)0);
+            ids.remove(entityId);
+        }
+        return true;
+    }
+    
+    @Override
+    public T getComponent( EntityId entityId ) {
+        long id = entityId.getId();
+        int chunk = (int)(id / recordsPerChunk);
+        MappedByteBuffer[] current = chunks;
+        if( id < 0 || chunk >= current.length ) {
+            return null;
+        }
+        int base = (int)(id % recordsPerChunk) * recordSize;
+        MappedByteBuffer buffer = current[chunk];
+        try {
+            synchronized( lockFor(id) ) {
+                if( buffer.get(base) != PRESENT ) {
+                    return null;
+                }
+                T result = codec.newInstance();
+                for( Slot s : slots ) {
+                    s.read(buffer, base, result, strings);
+                }
+                return result;
+            }
+        } catch( IOException e ) {
+            throw new RuntimeException("Error retrieving component type:" + type + " for entity:" + entityId, e);
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException("Error in field mapping", e);
+        }
+    }
+    
+    @Override
+    public Set<EntityId> getEntities() {
+        return Collections.unmodifiableSet(ids);
+    }
+    
+    @Override
+    public Set<EntityId> getEntities( ComponentFilter filter ) {
+        if( filter == null ) {
+            return getEntities();
+        }
+        Set<EntityId> results = new HashSet<EntityId>();
+        for( EntityId id : ids ) {
+            T c = getComponent(id);
+            if( c != null && filter.evaluate(c) ) {
+                results.add(id);
+            }
+        }
+        return results;
+    }
+    
+    @Override
+    public EntityId findEntity( ComponentFilter filter ) {
+        for( EntityId id : ids ) {
+            T c = getComponent(id);
+            if( c != null && (filter == null || filter.evaluate(c)) ) {
+                return id;
+            }
+        }
+        return null;
+    }
+ 
+    /**
+     *  Forces all changes to disk, strings first so that no record on
+     *  disk refers to a string that is not.
+     */   
+    public void flush() throws IOException {
+        if( strings != null ) {
+            strings.channel.force(false);
+        }
+        for( MappedByteBuffer chunk : chunks ) {
+            chunk.force();
+        }
+    }
+    
+    public void close() throws IOException {
+        flush();
+        dataChannel.close();
+        if( strings != null ) {
+            strings.channel.close();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "MappedComponentHandler[" + dataFile + ", records=" + ids.size() + "]";
+    }
+
+    private static class Slot {
+        final Field field;
+        final int kind;
+        final int offset;
+        
+        public Slot( Field field, int kind, int offset ) {
+            this.field = field;
+            this.kind = kind;
+            this.offset = offset;
+        }
+        
+        public void write( MappedByteBuffer b, int base, Object o, boolean present, StringFile strings ) throws IOException, IllegalAccessException {
+            int i = base + offset;
+            switch( kind ) {
+                case BOOLEAN: b.put(i, (byte)(field.getBoolean(o) ? 1 : 0)); break;
+                case BYTE: b.put(i, field.getByte(o)); break;
+                case SHORT: b.putShort(i, field.getShort(o)); break;
+                case CHAR: b.putChar(i, field.getChar(o)); break;
+                case INT: b.putInt(i, field.getInt(o)); break;
+                case LONG: b.putLong(i, field.getLong(o)); break;
+                case FLOAT: b.putFloat(i, field.getFloat(o)); break;
+                case DOUBLE: b.putDouble(i, field.getDouble(o)); break;
+                case STRING:
+                    String s = (String)field.get(o);
+                    long pos = -1;
+                    if( s != null ) {
+                        // Reuse the stored copy when the value has not changed
+                        // so that resetting a component does not grow the file.
+                        long old = present ? b.getLong(i) : -1;
+                        pos = old >= 0 && s.equals(strings.read(old)) ? old : strings.append(s);
+                    }
+                    b.putLong(i, pos);
+                    break;
+                case ENTITY_ID:
+                    EntityId id = (EntityId)field.get(o);
+                    b.put(i, (byte)(id == null ? 0 : 1));
+                    b.putLong(i + 1, id == null ? 0 : id.getId());
+                    break;
+            }
+        }
+        
+        public void read( MappedByteBuffer b, int base, Object o, StringFile strings ) throws IOException, IllegalAccessException {
+            int i = base + offset;
+            switch( kind ) {
+                case BOOLEAN: field.setBoolean(o, b.get(i) != 0); break;
+                case BYTE: field.setByte(o, b.get(i)); break;
+                case SHORT: field.setShort(o, b.getShort(i)); break;
+                case CHAR: field.setChar(o, b.getChar(i)); break;
+                case INT: field.setInt(o, b.getInt(i)); break;
+                case LONG: field.setLong(o, b.getLong(i)); break;
+                case FLOAT: field.setFloat(o, b.getFloat(i)); break;
+                case DOUBLE: field.setDouble(o, b.getDouble(i)); break;
+                case STRING:
+                    long pos = b.getLong(i);
+                    field.set(o, pos < 0 ? null : strings.read(pos));
+                    break;
+                case ENTITY_ID:
+                    field.set(o, b.get(i) == 0 ? null : new EntityId(b.getLong(i + 1)));
+                    break;
+            }
+        }
+    }
+ 
+    /**
+     *  Append-only file of length-prefixed UTF-8 strings.  Uses positional
+     *  channel reads and writes so that any number of threads can use it
+     *  at once.
+     */   
+    private static class StringFile {
+        final FileChannel channel;
+        final AtomicLong end;
+        
+        public StringFile( File file ) throws IOException {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.end = new AtomicLong(channel.size());
+        }
+        
+        public long append( String s ) throws IOException {
+            byte[] bytes = s.getBytes(UTF8);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            long pos = end.getAndAdd(buffer.remaining());
+            long at = pos;
+            while( buffer.hasRemaining() ) {
+                at += channel.write(buffer, at);
+            }
+            return pos;
+        }
+        
+        public String read( long pos ) throws IOException {
+            ByteBuffer size = ByteBuffer.allocate(4);
+            readFully(size, pos);
+            ByteBuffer bytes = ByteBuffer.allocate(size.getInt(0));
+            readFully(bytes, pos + 4);
+            return new String(bytes.array(), UTF8);
+        }
+        
+        private void readFully( ByteBuffer buffer, long pos ) throws IOException {
+            while( buffer.hasRemaining() ) {
+                int read = channel.read(buffer, pos);
+                if( read < 0 ) {
+                    throw new IOException("Unexpected end of string file at:" + pos);
+                }
+                pos += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.simsilica.es.PersistentComponent;
+import com.simsilica.es.StringIndex;
+import com.simsilica.es.base.BlockEntityIdGenerator;
+import com.simsilica.es.base.ComponentHandler;
+import com.simsilica.es.base.DefaultEntityData;
+
+
+/**
+ *  EntityData implementation that stores PersistentComponents in 
+ *  memory-mapped files, one MappedComponentHandler per type, as a 
+ *  lighter weight alternative to SqlEntityData.  Other components are
+ *  kept in memory as usual.  The entity ID high-water mark is kept in
+ *  a mapped file of its own.
+ *
+ *  <p>String fields are stored directly by the handlers.  The string 
+ *  index, for components that hold string IDs instead, is kept in memory 
+ *  and each new string is appended to a file so that the IDs stay the 
+ *  same across runs.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class MappedEntityData extends DefaultEntityData {
+
+    static Logger log = Logger.getLogger(MappedEntityData.class.getName());
+
+    public static final int DEFAULT_ID_RESERVE = 1024;
+
+    private final File dir;
+    private final List<MappedComponentHandler> mappedHandlers = new CopyOnWriteArrayList<MappedComponentHandler>();
+    private final MappedIdGenerator idGenerator;
+    private final FileStringIndex strings;
+
+    public MappedEntityData( File dir ) throws IOException {
+        super(null);
+        this.dir = dir;
+        if( !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException("Cannot create directory:" + dir);
+        }
+        this.idGenerator = new MappedIdGenerator(new File(dir, "entity-ids.dat"));
+        setIdGenerator(idGenerator);
+        this.strings = new FileStringIndex(new File(dir, "strings.dat"));
+        setStringIndex(strings);
+    }
+    
+    public File getDirectory() {
+        return dir;
+    }
+
+    @Override
+    protected ComponentHandler lookupDefaultHandler( Class type ) {
+        if( PersistentComponent.class.isAssignableFrom(type) ) {
+            if( !MappedComponentHandler.isSupported(type) ) {
+                throw new IllegalArgumentException("Persistent component type has fields that cannot be mapped:" + type);
+            }
+            try {
+                MappedComponentHandler handler = new MappedComponentHandler(dir, type);
+                mappedHandlers.add(handler);
+                return handler;
+            } catch( IOException e ) {
+                throw new RuntimeException("Error opening data file for component type:" + type, e);
+            }
+        }
+        return super.lookupDefaultHandler(type);
+    }
+
+    /**
+     *  Overridden because persistent components may have been set in a 
+     *  previous run and so removeEntity() must always check their handlers.
+     */
+    @Override
+    protected boolean isTypeTracked( Class type ) {
+        return !PersistentComponent.class.isAssignableFrom(type);
+    }
+ 
+    /**
+     *  Forces all persistent component changes to disk.
+     */   
+    public void flush() throws IOException {
+        // Strings first so that no forced component refers to a
+        // string ID that isn't on disk
+        strings.flush();
+        for( MappedComponentHandler handler : mappedHandlers ) {
+            handler.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for( MappedComponentHandler handler : mappedHandlers ) {
+            try {
+                handler.close();
+            } catch( IOException e ) {
+                log.log(Level.WARNING, "Error closing:" + handler, e);
+            }
+        }
+        idGenerator.close();
+        strings.close();
+    }
+
+    /**
+     *  In-memory string index that appends each new string to a file
+     *  as an int ID, an int UTF-8 byte length, and the bytes.  A record 
+     *  torn by a crash is cut off when the file is loaded.
+     */
+    private static class FileStringIndex implements StringIndex {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+        
+        private final File file;
+        private final RandomAccessFile out;
+        private final Map<String, Integer> index = new HashMap<String, Integer>();
+        private final Map<Integer, String> strings = new HashMap<Integer, String>();
+        private int nextId = 0;
+        
+        public FileStringIndex( File file ) throws IOException {
+            this.file = file;
+            this.out = new RandomAccessFile(file, "rw");
+            try {
+                load();
+            } catch( IOException e ) {
+                out.close();
+                throw e;
+            }
+        }
+        
+        private void load() throws IOException {
+            byte[] bytes = new byte[(int)out.length()];
+            out.readFully(bytes);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            int end = 0;
+            while( in.remaining() >= 8 ) {
+                int id = in.getInt();
+                int size = in.getInt();
+                if( size < 0 || size > in.remaining() ) {
+                    break;
+                }
+                String s = new String(bytes, in.position(), size, UTF8);
+                in.position(in.position() + size);
+                index.put(s, id);
+                strings.put(id, s);
+                nextId = Math.max(nextId, id + 1);
+                end = in.position();
+            }
+            if( end < bytes.length ) {
+                log.warning("Dropping partial string record at:" + end + " in:" + file);
+            }
+            out.setLength(end);
+            out.seek(end);
+        }
+        
+        @Override
+        public synchronized int getStringId( String s, boolean add ) {
+            Integer result = index.get(s);
+            if( result == null ) {
+                if( !add ) {
+                    return -1;
+                }
+                result = nextId;
+                byte[] data = s.getBytes(UTF8);
+                ByteBuffer record = ByteBuffer.allocate(8 + data.length);
+                record.putInt(result);
+                record.putInt(data.length);
+                record.put(data);
+                try {
+                    out.write(record.array());
+                } catch( IOException e ) {
+                    throw new RuntimeException("Error writing string to:" + file, e);
+                }
+                nextId++;
+                index.put(s, result);
+                strings.put(result, s);
+            }
+            return result;
+        }
+        
+        @Override
+        public synchronized String getString( int id ) {
+            return strings.get(id);
+        }
+        
+        public synchronized void flush() throws IOException {
+            out.getChannel().force(false);
+        }
+        
+        public synchronized void close() {
+            try {
+                out.close();
+            } catch( IOException e ) {
+                log.log(Level.WARNING, "Error closing string file:" + file, e);
+            }
+        }
+    }
+
+    /**
+     *  Hands out IDs from ranges whose end is stored and forced to disk
+     *  before any ID in the range is used.
+     */
+    private static class MappedIdGenerator extends BlockEntityIdGenerator {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private long next;
+        
+        public MappedIdGenerator( File file ) throws IOException {
+            super(DEFAULT_ID_RESERVE, 64);
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            this.next = buffer.getLong(0);
+        }
+        
+        @Override
+        protected synchronized long reserve( int size ) {
+            long result = next;
+            next += size;
+            buffer.putLong(0, next);
+            buffer.force();
+            return result;
+        }
+        
+        public void close() {
+            try {
+                channel.close();
+            } catch( IOException e ) {
+                log.log(Level.WARNING, "Error closing entity ID file", e);
+            }
+        }
+    }
+}
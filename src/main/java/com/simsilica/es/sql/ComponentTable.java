@@ -34,12 +34,15 @@
 
 package com.simsilica.es.sql;
 
+import java.lang.reflect.Field;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -51,12 +54,16 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.common.base.Joiner;
+import com.simsilica.es.Aggregate;
 import com.simsilica.es.ComponentFilter;
 import com.simsilica.es.EntityComponent;
 import com.simsilica.es.EntityId;
+import com.simsilica.es.Indexed;
 import com.simsilica.es.filter.AndFilter;
 import com.simsilica.es.filter.FieldFilter;
+import com.simsilica.es.filter.InFilter;
 import com.simsilica.es.filter.OrFilter;
+import com.simsilica.es.filter.RangeFilter;
 
 /**
  *
@@ -74,6 +81,8 @@ public class ComponentTable<T> {
 
 	private String insertSql;
 	private String updateSql;
+	private String mergeSql;
+	private String deleteSql;
 
 	protected ComponentTable(Class<T> type, FieldType[] fields) {
 		this.type = type;
@@ -89,6 +98,8 @@ public class ComponentTable<T> {
 
 		insertSql = createInsertSql();
 		updateSql = createUpdateSql();
+		mergeSql = createMergeSql();
+		deleteSql = "DELETE FROM " + tableName + " WHERE entityId = ?";
 	}
 
 	public static <T extends EntityComponent> ComponentTable<T> create(SqlSession session, Class<T> type) throws SQLException {
@@ -140,6 +151,48 @@ public class ComponentTable<T> {
 		return sql.toString();
 	}
 
+	/**
+	 * Creates a single MERGE statement that updates the row for an entity if it exists and inserts it otherwise. The parameters are cast to their column types because HSQLDB cannot infer the types of parameters in a VALUES table.
+	 */
+	protected String createMergeSql() {
+
+		Map<String, FieldType> defs = new HashMap<String, FieldType>();
+		for (FieldType t : fields) {
+			t.addFieldDefinitions("", defs);
+		}
+
+		StringBuilder sql = new StringBuilder("MERGE INTO " + tableName);
+		sql.append(" USING (VALUES (");
+		for (String s : dbFieldNames) {
+			sql.append("CAST(? AS " + defs.get(s.toUpperCase()).getDbType() + "), ");
+		}
+		sql.append("CAST(? AS BIGINT)))");
+
+		sql.append(" AS vals (");
+		Joiner.on(", ").appendTo(sql, dbFieldNames);
+		sql.append((dbFieldNames.length > 0 ? ", " : "") + "entityId)");
+
+		sql.append(" ON " + tableName + ".entityId = vals.entityId");
+
+		if (dbFieldNames.length > 0) {
+			sql.append(" WHEN MATCHED THEN UPDATE SET ");
+			for (int i = 0; i < dbFieldNames.length; i++) {
+				sql.append((i > 0 ? ", " : "") + tableName + "." + dbFieldNames[i] + " = vals." + dbFieldNames[i]);
+			}
+		}
+
+		sql.append(" WHEN NOT MATCHED THEN INSERT (");
+		Joiner.on(", ").appendTo(sql, dbFieldNames);
+		sql.append((dbFieldNames.length > 0 ? ", " : "") + "entityId)");
+		sql.append(" VALUES (");
+		for (String s : dbFieldNames) {
+			sql.append("vals." + s + ", ");
+		}
+		sql.append("vals.entityId)");
+
+		return sql.toString();
+	}
+
 	protected void initialize(SqlSession session) throws SQLException {
 
 		// See if the table exists
@@ -170,6 +223,7 @@ public class ComponentTable<T> {
 
 		if (!dbFields.isEmpty()) {
 			checkStructure(defs, dbFields);
+			createIndexes(session);
 			return;
 		}
 
@@ -195,6 +249,61 @@ public class ComponentTable<T> {
 		st.close();
 
 		log.info("Result:" + i);
+
+		createIndexes(session);
+	}
+
+	/**
+	 * Creates a database index for any top-level field annotated with @Indexed so that equality, IN, and range filters on that column can use an index seek instead of a table scan. Indexes that already exist are left alone.
+	 */
+	protected void createIndexes(SqlSession session) throws SQLException {
+
+		Set<String> existing = new HashSet<String>();
+		DatabaseMetaData md = session.getConnection().getMetaData();
+		ResultSet rs = md.getIndexInfo(null, "PUBLIC", tableName, false, false);
+		try {
+			while (rs.next()) {
+				String name = rs.getString("INDEX_NAME");
+				if (name != null) {
+					existing.add(name.toUpperCase());
+				}
+			}
+		} finally {
+			rs.close();
+		}
+
+		for (FieldType t : fields) {
+			Field f;
+			try {
+				f = type.getDeclaredField(t.getFieldName());
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+			if (f.getAnnotation(Indexed.class) == null) {
+				continue;
+			}
+
+			List<String> columns = new ArrayList<String>();
+			t.addFields("", columns);
+			if (columns.size() != 1) {
+				log.warning("Cannot index multi-column field:" + t + " of:" + type);
+				continue;
+			}
+			String column = columns.get(0).toUpperCase();
+			String indexName = tableName + "_" + column + "_IDX";
+			if (existing.contains(indexName)) {
+				continue;
+			}
+
+			String sql = "CREATE INDEX " + indexName + " ON " + tableName + " (" + column + ")";
+			log.info("Create index:" + sql);
+			Statement st = session.getConnection().createStatement();
+			try {
+				st.executeUpdate(sql);
+			} finally {
+				st.close();
+			}
+		}
 	}
 
 	protected void checkStructure(Map<String, FieldType> defs, Map<String, Integer> dbFields) throws SQLException {
@@ -247,6 +356,10 @@ public class ComponentTable<T> {
 		}
 	}
 
+	public String getTableName() {
+		return tableName;
+	}
+
 	protected FieldType getFieldType(String field) {
 		for (FieldType t : fields) {
 			if (t.getFieldName().equals(field)) {
@@ -283,6 +396,42 @@ public class ComponentTable<T> {
 		result = st.executeUpdate();
 	}
 
+	/**
+	 * Writes the specified components and removals as one JDBC batch of MERGE statements and one batch of DELETE statements. Transaction handling is left to the caller.
+	 */
+	public void writeComponents(SqlSession session, Map<EntityId, T> components, Collection<EntityId> removed) throws SQLException {
+
+		if (!components.isEmpty()) {
+			PreparedStatement st = session.prepareStatement(mergeSql);
+			try {
+				for (Map.Entry<EntityId, T> e : components.entrySet()) {
+					int index = 1;
+					for (FieldType t : fields) {
+						index = t.store(e.getValue(), st, index);
+					}
+					st.setObject(index++, e.getKey().getId());
+					st.addBatch();
+				}
+				st.executeBatch();
+			} finally {
+				st.clearBatch();
+			}
+		}
+
+		if (!removed.isEmpty()) {
+			PreparedStatement st = session.prepareStatement(deleteSql);
+			try {
+				for (EntityId id : removed) {
+					st.setObject(1, id.getId());
+					st.addBatch();
+				}
+				st.executeBatch();
+			} finally {
+				st.clearBatch();
+			}
+		}
+	}
+
 	public boolean removeComponent(SqlSession session, EntityId entityId) throws SQLException {
 
 		String sql = "DELETE FROM " + tableName + " WHERE entityId=" + entityId.getId();
@@ -363,6 +512,70 @@ public class ComponentTable<T> {
 		return 1;
 	}
 
+	protected int appendFilter(RangeFilter f, StringBuilder where, List<Object> parms) {
+
+		FieldType ft = getFieldType(f.getFieldName());
+
+		if (where.length() > 0) {
+			where.append(" AND ");
+		}
+
+		int count = 0;
+		if (f.getMin() != null) {
+			where.append(f.getFieldName() + (f.isMinInclusive() ? " >= ?" : " > ?"));
+			parms.add(ft.toDbValue(f.getMin()));
+			count++;
+		}
+		if (f.getMax() != null) {
+			if (count > 0) {
+				where.append(" AND ");
+			}
+			where.append(f.getFieldName() + (f.isMaxInclusive() ? " <= ?" : " < ?"));
+			parms.add(ft.toDbValue(f.getMax()));
+			count++;
+		}
+		return count;
+	}
+
+	protected int appendFilter(InFilter f, StringBuilder where, List<Object> parms) {
+
+		FieldType ft = getFieldType(f.getFieldName());
+
+		if (where.length() > 0) {
+			where.append(" AND ");
+		}
+
+		List<Object> values = new ArrayList<Object>();
+		boolean includeNull = false;
+		for (Object o : f.getValues()) {
+			Object dbValue = ft.toDbValue(o);
+			if (dbValue == null) {
+				includeNull = true;
+			} else {
+				values.add(dbValue);
+			}
+		}
+
+		if (values.isEmpty()) {
+			where.append(includeNull ? f.getFieldName() + " IS NULL" : "1 = 0");
+			return 1;
+		}
+
+		StringBuilder in = new StringBuilder(f.getFieldName() + " IN (");
+		for (int i = 0; i < values.size(); i++) {
+			in.append(i > 0 ? ", ?" : "?");
+		}
+		in.append(")");
+		parms.addAll(values);
+
+		if (includeNull) {
+			where.append("(" + in + " OR " + f.getFieldName() + " IS NULL)");
+		} else {
+			where.append(in);
+		}
+		return 1;
+	}
+
 	protected int appendFilter(OrFilter f, StringBuilder where, List<Object> parms) {
 
 		if (where.length() > 0)
@@ -421,6 +634,10 @@ public class ComponentTable<T> {
 	protected int appendFilter(ComponentFilter f, StringBuilder where, List<Object> parms) {
 		if (f instanceof FieldFilter) {
 			return appendFilter((FieldFilter) f, where, parms);
+		} else if (f instanceof RangeFilter) {
+			return appendFilter((RangeFilter) f, where, parms);
+		} else if (f instanceof InFilter) {
+			return appendFilter((InFilter) f, where, parms);
 		} else if (f instanceof OrFilter) {
 			return appendFilter((OrFilter) f, where, parms);
 		} else if (f instanceof AndFilter) {
@@ -567,4 +784,194 @@ public class ComponentTable<T> {
 			throw new UnsupportedOperationException("Cannot set the component on a reference.");
 		}
 	}
+
+	/**
+	 * Builds a WHERE clause that restricts this table's rows to the entities that also have a row in each of the other tables. The filter is applied to this table or to the sub-select of the other table of its component type. It is ignored if none of the tables match, the same as the in-memory intersection.
+	 */
+	protected String createWhere(ComponentFilter filter, ComponentTable[] others, List<Object> parms) {
+
+		StringBuilder where = new StringBuilder();
+		if (filter != null && filter.getComponentType() == type) {
+			appendNested(filter, where, parms);
+		}
+
+		for (ComponentTable t : others) {
+			if (t == this) {
+				continue;
+			}
+			if (where.length() > 0) {
+				where.append(" AND ");
+			}
+			where.append("entityId IN (SELECT entityId FROM " + t.tableName);
+			if (filter != null && filter.getComponentType() == t.type) {
+				StringBuilder sub = new StringBuilder();
+				t.appendNested(filter, sub, parms);
+				where.append(" WHERE " + sub);
+			}
+			where.append(")");
+		}
+		return where.toString();
+	}
+
+	private void appendNested(ComponentFilter filter, StringBuilder where, List<Object> parms) {
+		StringBuilder sub = new StringBuilder();
+		int count = appendFilter(filter, sub, parms);
+		if (count > 1) {
+			where.append("(" + sub + ")");
+		} else {
+			where.append(sub);
+		}
+	}
+
+	/**
+	 * Returns the number of entities that have a row in this table and in all of the other tables and that match the filter.
+	 */
+	public int count(SqlSession session, ComponentFilter filter, ComponentTable... others) throws SQLException {
+
+		StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM " + tableName);
+
+		List<Object> parms = new ArrayList<Object>();
+		String where = createWhere(filter, others, parms);
+		if (where.length() > 0) {
+			sql.append(" WHERE " + where);
+		}
+
+		try {
+			PreparedStatement st = session.prepareStatement(sql.toString());
+			int index = 1;
+			for (Object o : parms) {
+				st.setObject(index++, o);
+			}
+
+			ResultSet rs = st.executeQuery();
+			try {
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			throw new RuntimeException("Error executing sql:" + sql, e);
+		}
+	}
+
+	/**
+	 * Returns the column for a top-level primitive field or null if the field is missing or is not stored as a single primitive column. Booleans are not numeric and chars are never allowed.
+	 */
+	protected String getPrimitiveColumn(String field, boolean numeric) {
+		FieldType ft = getFieldType(field);
+		if (!(ft instanceof FieldTypes.PrimitiveField)) {
+			return null;
+		}
+		Class c = ft.getType();
+		if (c == Character.TYPE || (numeric && c == Boolean.TYPE)) {
+			return null;
+		}
+		List<String> columns = new ArrayList<String>();
+		ft.addFields("", columns);
+		return columns.size() == 1 ? columns.get(0) : null;
+	}
+
+	/**
+	 * Converts a database value back to the Java type of the field so that group keys compare equal to the values read from components.
+	 */
+	protected Object toFieldValue(Object value, Class c) {
+		if (!(value instanceof Number)) {
+			return value;
+		}
+		Number n = (Number) value;
+		if (c == Integer.TYPE)
+			return n.intValue();
+		if (c == Long.TYPE)
+			return n.longValue();
+		if (c == Float.TYPE)
+			return n.floatValue();
+		if (c == Double.TYPE)
+			return n.doubleValue();
+		if (c == Short.TYPE)
+			return n.shortValue();
+		if (c == Byte.TYPE)
+			return n.byteValue();
+		return n;
+	}
+
+	/**
+	 * Calculates COUNT/SUM/MIN/MAX of the specified field in the database, grouped by groupField if it is not null, for the entities that have a row in this table and in all of the other tables and that match the filter. Returns null if either field is not a simple primitive column, in which case the caller should aggregate in memory. Groups with no matching entities are not included.
+	 */
+	public Map<Object, Aggregate> aggregate(SqlSession session, String field, String groupField, ComponentFilter filter, ComponentTable... others) throws SQLException {
+
+		String column = null;
+		if (field != null) {
+			column = getPrimitiveColumn(field, true);
+			if (column == null) {
+				return null;
+			}
+		}
+		String groupColumn = null;
+		Class groupType = null;
+		if (groupField != null) {
+			groupColumn = getPrimitiveColumn(groupField, false);
+			if (groupColumn == null) {
+				return null;
+			}
+			groupType = getFieldType(groupField).getType();
+		}
+
+		StringBuilder sql = new StringBuilder("SELECT ");
+		if (groupColumn != null) {
+			sql.append(groupColumn + ", ");
+		}
+		sql.append("COUNT(*)");
+		if (column != null) {
+			sql.append(", COUNT(" + column + "), SUM(" + column + "), MIN(" + column + "), MAX(" + column + ")");
+		}
+		sql.append(" FROM " + tableName);
+
+		List<Object> parms = new ArrayList<Object>();
+		String where = createWhere(filter, others, parms);
+		if (where.length() > 0) {
+			sql.append(" WHERE " + where);
+		}
+		if (groupColumn != null) {
+			sql.append(" GROUP BY " + groupColumn);
+		}
+
+		try {
+			PreparedStatement st = session.prepareStatement(sql.toString());
+			int index = 1;
+			for (Object o : parms) {
+				st.setObject(index++, o);
+			}
+
+			Map<Object, Aggregate> results = new LinkedHashMap<Object, Aggregate>();
+			ResultSet rs = st.executeQuery();
+			try {
+				while (rs.next()) {
+					index = 1;
+					Object key = groupColumn == null ? null : toFieldValue(rs.getObject(index++), groupType);
+					long count = rs.getLong(index++);
+					if (count == 0) {
+						// An ungrouped query over no rows
+						continue;
+					}
+					if (column == null) {
+						results.put(key, new Aggregate(count, 0, 0, Double.NaN, Double.NaN));
+						continue;
+					}
+					long values = rs.getLong(index++);
+					double sum = rs.getDouble(index++);
+					Object min = rs.getObject(index++);
+					Object max = rs.getObject(index++);
+					results.put(key, new Aggregate(count, values, sum,
+							min == null ? Double.NaN : ((Number) min).doubleValue(),
+							max == null ? Double.NaN : ((Number) max).doubleValue()));
+				}
+			} finally {
+				rs.close();
+			}
+
+			return Collections.unmodifiableMap(results);
+		} catch (SQLException e) {
+			throw new RuntimeException("Error executing sql:" + sql, e);
+		}
+	}
 }
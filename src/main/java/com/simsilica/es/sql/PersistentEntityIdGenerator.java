@@ -34,21 +34,35 @@
 
 package com.simsilica.es.sql;
 
-import com.simsilica.es.base.EntityIdGenerator;
+import com.simsilica.es.base.BlockEntityIdGenerator;
 import java.sql.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- *  Hands out new IDs.
+ *  Hands out new IDs.  IDs are reserved from the ENTITY_ID table
+ *  in ranges so that the table is only updated once per range instead
+ *  of once per ID.  The table always holds the end of the last reserved
+ *  range so IDs are never reused after a restart, though the unused 
+ *  part of the last range will be skipped.
  *
  *  @author    Paul Speed
  */
-public class PersistentEntityIdGenerator implements EntityIdGenerator {
+public class PersistentEntityIdGenerator extends BlockEntityIdGenerator {
+
+    public static final int DEFAULT_RESERVE_SIZE = 1000;
+    public static final int DEFAULT_BLOCK_SIZE = 32;
 
     private SqlEntityData parent;
     private String tableName = "ENTITY_ID";
     private long entityId;
+    private final ReentrantLock lock = new ReentrantLock();
 
     protected PersistentEntityIdGenerator( SqlEntityData parent ) throws SQLException {
+        this(parent, DEFAULT_RESERVE_SIZE, DEFAULT_BLOCK_SIZE);
+    }
+    
+    protected PersistentEntityIdGenerator( SqlEntityData parent, int reserveSize, int blockSize ) throws SQLException {
+        super(reserveSize, blockSize);
         this.parent = parent;
         
         // See if the table exists
@@ -97,6 +111,10 @@ public class PersistentEntityIdGenerator implements EntityIdGenerator {
         return new PersistentEntityIdGenerator(parent); 
     } 
     
+    public static PersistentEntityIdGenerator create( SqlEntityData parent, int reserveSize, int blockSize ) throws SQLException {
+        return new PersistentEntityIdGenerator(parent, reserveSize, blockSize); 
+    } 
+    
     protected void loadId( SqlSession session ) throws SQLException {
     
         Statement st = session.getConnection().createStatement();
@@ -110,25 +128,46 @@ public class PersistentEntityIdGenerator implements EntityIdGenerator {
         }    
     }
  
-    public synchronized long nextEntityId() {
+    /**
+     *  Returns the end of the last reserved range.  No ID at or above
+     *  it has been handed out, in this run or any earlier one.
+     */
+    public long getReservedEnd() {
+        lock.lock();
+        try {
+            return entityId;
+        } finally {
+            lock.unlock();
+        }
+    }
+ 
+    @Override
+    protected long reserve( int size ) {
     
-        long result = entityId++;
+        // A lock instead of synchronized so that virtual threads
+        // waiting on the database don't pin their carriers
+        lock.lock();
         try {
+            long result = entityId;
+            long next = entityId + size;
             SqlSession session = parent.getSession();        
             Statement st = session.getConnection().createStatement();
             try {
-                // Write the next value
-                String sql = "UPDATE " + tableName + " SET entityId=" + entityId + " WHERE id=0";
+                // Write the end of the reserved range
+                String sql = "UPDATE " + tableName + " SET entityId=" + next + " WHERE id=0";
                 int update = st.executeUpdate(sql);
                 if( update != 1 ) {
                     throw new SQLException("EntityID sequence not updated.");
                 }
+                entityId = next;
                 return result;
             } finally {
                 st.close();
             }
         } catch( SQLException e ) {
             throw new RuntimeException("Error persisting entity ID", e);
+        } finally {
+            lock.unlock();
         }                
     }
     
@@ -40,18 +40,29 @@ import com.simsilica.es.EntityComponent;
 import com.simsilica.es.ComponentFilter;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
  *  Sql-based component handler for in-memory components.
  *
+ *  <p>When the parent SqlEntityData is in write-behind mode, sets
+ *  and removes are only recorded in a pending buffer keyed by entity.
+ *  Repeated changes to the same entity coalesce into the latest value
+ *  until the parent flushes them.  Reads consult the pending buffer
+ *  before the database so that callers always see their own writes.</p>
+ *
  *  @author    Paul Speed
  */
 public class SqlComponentHandler<T extends EntityComponent> implements ComponentHandler<T> {
 
+    private static final Object REMOVED = new Object();
+
     private SqlEntityData parent;
     private Class<T> type;
     private ComponentTable<T> table;
+    private final ConcurrentMap<EntityId, Object> pending = new ConcurrentHashMap<EntityId, Object>();
  
     public SqlComponentHandler( SqlEntityData parent, Class<T> type ) {
         this.parent = parent;
@@ -66,10 +77,80 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
     protected SqlSession getSession() throws SQLException {
         return parent.getSession();
     }
+ 
+    public ComponentTable<T> getTable() {
+        return table;
+    }
+    
+    /**
+     *  Returns true if there are sets or removes that have not been
+     *  written to the database yet.
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+ 
+    /**
+     *  Writes a snapshot of the pending changes using the specified
+     *  session and returns the snapshot.  The caller owns the transaction
+     *  and should call clearPending() with the snapshot once it has 
+     *  been committed.
+     */
+    protected Map<EntityId, Object> writePending( SqlSession session ) throws SQLException {
+        Map<EntityId, Object> snapshot = new HashMap<EntityId, Object>(pending);
+        if( snapshot.isEmpty() ) {
+            return snapshot;
+        }
+        
+        Map<EntityId, T> components = new HashMap<EntityId, T>();
+        List<EntityId> removed = new ArrayList<EntityId>();
+        for( Map.Entry<EntityId, Object> e : snapshot.entrySet() ) {
+            if( e.getValue() == REMOVED ) {
+                removed.add(e.getKey());
+            } else {
+                components.put(e.getKey(), type.cast(e.getValue()));
+            }
+        }
+        table.writeComponents(session, components, removed);
+        return snapshot;
+    }
+ 
+    /**
+     *  Removes the written entries from the pending buffer unless they
+     *  were changed again while the flush was in progress.
+     */
+    protected void clearPending( Map<EntityId, Object> written ) {
+        for( Map.Entry<EntityId, Object> e : written.entrySet() ) {
+            pending.remove(e.getKey(), e.getValue());
+        }
+    }
+ 
+    /**
+     *  Applies the pending changes on top of a set of entity IDs read
+     *  from the database.
+     */
+    protected Set<EntityId> applyPending( Map<EntityId, Object> snapshot, Set<EntityId> results, 
+                                          ComponentFilter filter ) {
+        for( Map.Entry<EntityId, Object> e : snapshot.entrySet() ) {
+            Object value = e.getValue();
+            if( value == REMOVED || (filter != null && !filter.evaluate((EntityComponent)value)) ) {
+                results.remove(e.getKey());
+            } else {
+                results.add(e.getKey());
+            }
+        }
+        return results;
+    }
     
     @Override
     public void setComponent( EntityId entityId, T component ) {
+        if( parent.isWriteBehind() ) {
+            pending.put(entityId, component);
+            return;
+        }
         try {
+            // Anything still pending for this entity is now stale
+            pending.remove(entityId);
             table.setComponent(getSession(), entityId, component);
         } catch( SQLException e ) {
             throw new RuntimeException("Error setting component:" + component 
@@ -77,9 +158,22 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
         }
     }
     
+    /**
+     *  Removes the component.  In write-behind mode this only queues
+     *  the delete and, unless the pending buffer already knows, returns 
+     *  true without checking the database.  So the result may report 
+     *  a removal for a component that did not exist, which is harmless
+     *  for listeners, but that avoids a blocking query for every persistent 
+     *  type in removeEntity().  Deleting a missing row is a no-op.
+     */
     @Override
     public boolean removeComponent( EntityId entityId ) {
         try {
+            if( parent.isWriteBehind() ) {
+                Object previous = pending.put(entityId, REMOVED);
+                return previous != REMOVED;
+            }
+            pending.remove(entityId);
             return table.removeComponent(getSession(), entityId);
         } catch( SQLException e ) {
             throw new RuntimeException("Error removing component type:" + type 
@@ -89,6 +183,10 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
     
     @Override
     public T getComponent( EntityId entityId ) {
+        Object value = pending.get(entityId);
+        if( value != null ) {
+            return value == REMOVED ? null : type.cast(value);
+        }
         try {       
             return (T)table.getComponent(getSession(), entityId);
         } catch( SQLException e ) {
@@ -99,8 +197,11 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
     
     @Override
     public Set<EntityId> getEntities() {
+        // Snapshot the pending changes before reading the database so that
+        // a flush committing in between cannot hide any of them
+        Map<EntityId, Object> snapshot = new HashMap<EntityId, Object>(pending);
         try {
-            return table.getEntityIds(getSession());
+            return applyPending(snapshot, table.getEntityIds(getSession()), null);
         } catch( SQLException e ) {
             throw new RuntimeException("Error retrieving component entities for type:" + type);
         }
@@ -112,8 +213,9 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
         if( filter == null ) {
             return getEntities();
         }
+        Map<EntityId, Object> snapshot = new HashMap<EntityId, Object>(pending);
         try {
-            return table.getEntityIds(getSession(), filter);
+            return applyPending(snapshot, table.getEntityIds(getSession(), filter), filter);
         } catch( SQLException e ) {
             throw new RuntimeException("Error retrieving component entities for type:" + type, e);
         }
@@ -125,6 +227,12 @@ public class SqlComponentHandler<T extends EntityComponent> implements Component
         if( filter == null ) {
             return null;
         }
+        if( !pending.isEmpty() ) {
+            // The database's first match may be stale so work from 
+            // the merged results instead
+            Iterator<EntityId> it = getEntities(filter).iterator();
+            return it.hasNext() ? it.next() : null;
+        }
         try {
             return table.getEntityId(getSession(), filter);
         } catch( SQLException e ) {
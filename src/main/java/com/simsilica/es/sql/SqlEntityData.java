@@ -39,15 +39,31 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.simsilica.es.Aggregate;
+import com.simsilica.es.ComponentFilter;
 import com.simsilica.es.PersistentComponent;
 import com.simsilica.es.base.ComponentHandler;
+import com.simsilica.es.base.DefaultAggregateView;
 import com.simsilica.es.base.DefaultEntityData;
+import com.simsilica.es.base.IndexedComponentHandler;
 
 /**
  * EntityData implementation that uses SQL tables to store persistent information.
  *
+ * By default persistent components are written to the database synchronously. With setWriteBehind() they are instead coalesced in memory per entity and type and flushed periodically by a background writer as batched MERGE statements in a single transaction. If the background writer fails then write-behind is turned off, so that new changes are written synchronously again, and the failure is rethrown from the next flush().
+ *
  * @author Paul Speed
  */
 public class SqlEntityData extends DefaultEntityData {
@@ -56,6 +72,12 @@ public class SqlEntityData extends DefaultEntityData {
 
 	private String dbPath;
 	private ThreadLocal<SqlSession> cachedSession = new ThreadLocal<SqlSession>();
+	private final List<SqlComponentHandler> sqlHandlers = new CopyOnWriteArrayList<SqlComponentHandler>();
+	private final Object flushLock = new Object();
+	private volatile boolean writeBehind;
+	private ScheduledExecutorService writer;
+	private final AtomicReference<RuntimeException> writeError = new AtomicReference<RuntimeException>();
+	private PersistentEntityIdGenerator idGenerator;
 
 	public SqlEntityData(File dbPath, long writeDelay) throws SQLException {
 		this(dbPath.toURI().toString(), writeDelay);
@@ -79,10 +101,15 @@ public class SqlEntityData extends DefaultEntityData {
 		execute("SET FILES WRITE DELAY " + writeDelay + " MILLIS");
 		execute("SET FILES DEFRAG 50");
 
-		setIdGenerator(PersistentEntityIdGenerator.create(this));
+		this.idGenerator = PersistentEntityIdGenerator.create(this);
+		setIdGenerator(idGenerator);
 		setStringIndex(new SqlStringIndex(this, 100));
 	}
 
+	protected PersistentEntityIdGenerator getIdGenerator() {
+		return idGenerator;
+	}
+
 	protected void execute(String statement) throws SQLException {
 		SqlSession session = getSession();
 		Statement st = session.getConnection().createStatement();
@@ -115,21 +142,264 @@ public class SqlEntityData extends DefaultEntityData {
 	@Override
 	protected ComponentHandler lookupDefaultHandler(Class type) {
 		if (PersistentComponent.class.isAssignableFrom(type)) {
-			return new SqlComponentHandler(this, type);
+			SqlComponentHandler handler = new SqlComponentHandler(this, type);
+			sqlHandlers.add(handler);
+			return handler;
 		}
 		return super.lookupDefaultHandler(type);
 	}
 
+	/**
+	 * Turns write-behind mode on with the specified flush interval in milliseconds or, for an interval of 0 or less, turns it off and writes out anything still pending.
+	 */
+	public synchronized void setWriteBehind(long flushInterval) {
+		if (writer != null) {
+			writer.shutdown();
+			awaitWriter();
+			writer = null;
+		}
+		if (flushInterval <= 0) {
+			writeBehind = false;
+			flush();
+			return;
+		}
+
+		writeBehind = true;
+		final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SqlEntityData-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		exec.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushPending();
+				} catch (RuntimeException e) {
+					// Retrying would only keep failing and hold up every other
+					// pending change, so stop and let the next flush() report it
+					log.log(Level.SEVERE, "Error writing pending components, write-behind stopped", e);
+					writeBehind = false;
+					writeError.set(e);
+					exec.shutdown();
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		writer = exec;
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	private void awaitWriter() {
+		try {
+			if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.warning("Timed out waiting for the background writer");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes all pending component changes to the database in one transaction. This is called periodically by the background writer in write-behind mode but can also be called directly, for example at the end of a frame or before a backup. If the transaction fails then the changes remain pending. If the background writer failed since the last call then that failure is thrown instead and write-behind will have been turned off.
+	 */
+	public void flush() {
+		RuntimeException error = writeError.getAndSet(null);
+		if (error != null) {
+			throw new RuntimeException("Background writer failed, write-behind has been stopped", error);
+		}
+		flushPending();
+	}
+
+	private void flushPending() {
+		synchronized (flushLock) {
+			boolean dirty = false;
+			for (SqlComponentHandler handler : sqlHandlers) {
+				if (handler.hasPending()) {
+					dirty = true;
+					break;
+				}
+			}
+			if (!dirty) {
+				return;
+			}
+
+			// New persistent types can be added at any time so work from one copy
+			SqlComponentHandler[] handlers = sqlHandlers.toArray(new SqlComponentHandler[0]);
+			Map[] written = new Map[handlers.length];
+			try {
+				Connection conn = getSession().getConnection();
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				try {
+					for (int i = 0; i < handlers.length; i++) {
+						written[i] = handlers[i].writePending(getSession());
+					}
+					conn.commit();
+				} catch (SQLException e) {
+					conn.rollback();
+					throw e;
+				} catch (RuntimeException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setAutoCommit(autoCommit);
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException("Error writing pending components", e);
+			}
+
+			for (int i = 0; i < handlers.length; i++) {
+				handlers[i].clearPending(written[i]);
+			}
+		}
+	}
+
+	/**
+	 * Overridden because persistent components may have been set in a previous run and so removeEntity() must always check their handlers.
+	 */
 	@Override
-	public void close() {
-		super.close();
+	protected boolean isTypeTracked(Class type) {
+		return !PersistentComponent.class.isAssignableFrom(type);
+	}
+
+	/**
+	 * Overridden so that @Indexed fields of persistent components are indexed by the database table instead of in memory. Explicitly registered field indexes are still kept in memory.
+	 */
+	@Override
+	protected Map<String, Boolean> getIndexedFields(Class type) {
+		if (PersistentComponent.class.isAssignableFrom(type)) {
+			return new HashMap<String, Boolean>(getRegisteredFieldIndexes(type));
+		}
+		return super.getIndexedFields(type);
+	}
+
+	/**
+	 * Returns the SQL handlers for the specified types or null if any of them is not stored in the database.
+	 */
+	protected SqlComponentHandler[] getSqlHandlers(Class... types) {
+		SqlComponentHandler[] results = new SqlComponentHandler[types.length];
+		for (int i = 0; i < types.length; i++) {
+			ComponentHandler handler = getHandler(types[i]);
+			if (handler instanceof IndexedComponentHandler) {
+				handler = ((IndexedComponentHandler) handler).getDelegate();
+			}
+			if (!(handler instanceof SqlComponentHandler)) {
+				return null;
+			}
+			results[i] = (SqlComponentHandler) handler;
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the tables for the specified types or null if any of them is not stored in the database.
+	 */
+	protected ComponentTable[] getTables(Class... types) {
+		SqlComponentHandler[] handlers = getSqlHandlers(types);
+		if (handlers == null) {
+			return null;
+		}
+		ComponentTable[] results = new ComponentTable[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			results[i] = handlers[i].getTable();
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the tables for the specified types or null if any of them is not stored in the database or has write-behind changes that are not in the table yet.
+	 */
+	protected ComponentTable[] getCurrentTables(Class... types) {
+		SqlComponentHandler[] handlers = getSqlHandlers(types);
+		if (handlers == null) {
+			return null;
+		}
+		ComponentTable[] results = new ComponentTable[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i].hasPending()) {
+				return null;
+			}
+			results[i] = handlers[i].getTable();
+		}
+		return results;
+	}
+
+	/**
+	 * Overridden to run a single SELECT COUNT(*) when all of the types are persistent. While any of the types have pending write-behind changes this instead counts the entity IDs from the handlers, which merge the pending changes over the table contents, so that nothing is flushed on the caller's thread.
+	 */
+	@Override
+	public int count(ComponentFilter filter, Class... types) {
+		if (types == null || types.length == 0) {
+			types = new Class[] { filter.getComponentType() };
+		}
+		ComponentTable[] tables = getCurrentTables(types);
+		if (tables == null) {
+			return super.count(filter, types);
+		}
+
+		// Drive the query from the filtered table when there is one
+		ComponentTable main = tables[0];
+		if (filter != null) {
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] == filter.getComponentType()) {
+					main = tables[i];
+					break;
+				}
+			}
+		}
 		try {
-			// Shut the database down
-			SqlSession session = getSession();
-			execute("SHUTDOWN COMPACT");
-			session.getConnection().close();
+			return main.count(getSession(), filter, tables);
 		} catch (SQLException e) {
-			throw new RuntimeException("Database was not shutdown cleanly", e);
+			throw new RuntimeException("Error counting entities for filter:" + filter, e);
+		}
+	}
+
+	/**
+	 * Overridden to run a single SELECT COUNT/SUM/MIN/MAX ... GROUP BY when all of the types are persistent and the fields are simple columns. Like count(), this falls back to aggregating over the handlers while any of the types have pending write-behind changes.
+	 */
+	@Override
+	public Map<Object, Aggregate> aggregate(ComponentFilter filter, Class type, String field, String groupField, Class... types) {
+		ComponentTable[] tables = getCurrentTables(DefaultAggregateView.collectTypes(filter, type, types));
+		if (tables != null) {
+			try {
+				Map<Object, Aggregate> result = tables[0].aggregate(getSession(), field, groupField, filter, tables);
+				if (result != null) {
+					return result;
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException("Error aggregating field:" + field + " of:" + type, e);
+			}
+		}
+		return super.aggregate(filter, type, field, groupField, types);
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (writer != null) {
+				writer.shutdown();
+				awaitWriter();
+				writer = null;
+			}
+		}
+		try {
+			flush();
+		} finally {
+			super.close();
+			try {
+				// Shut the database down
+				SqlSession session = getSession();
+				execute("SHUTDOWN COMPACT");
+				session.getConnection().close();
+			} catch (SQLException e) {
+				throw new RuntimeException("Database was not shutdown cleanly", e);
+			}
 		}
 	}
 
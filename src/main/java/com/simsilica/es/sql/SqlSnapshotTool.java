@@ -0,0 +1,119 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+import com.simsilica.es.StringIndex;
+import com.simsilica.es.io.ComponentSnapshot;
+
+
+/**
+ *  Exports persistent component tables of an SqlEntityData database
+ *  to ComponentSnapshot files with one full table scan per type, so that 
+ *  a server can start from the snapshot with ComponentSnapshot.load() 
+ *  instead of querying the database entity by entity.  The string table 
+ *  and the entity ID high-water mark are exported too so that string IDs 
+ *  still resolve and entity IDs are never reused after loading.
+ *
+ *  <pre>
+ *  java com.simsilica.es.sql.SqlSnapshotTool &lt;dbPath&gt; &lt;snapshotDir&gt; &lt;componentClass&gt;...
+ *  </pre>
+ *
+ *  @author    Paul Speed
+ */
+public class SqlSnapshotTool {
+
+    static Logger log = Logger.getLogger(SqlSnapshotTool.class.getName());
+
+    /**
+     *  Writes the snapshot file for each of the specified persistent
+     *  component types, along with the strings and the next entity ID.
+     */
+    public static void export( SqlEntityData ed, File dir, Class... types ) throws IOException {
+        if( !dir.exists() && !dir.mkdirs() ) {
+            throw new IOException("Cannot create snapshot directory:" + dir);
+        }
+        // Pending write-behind changes must be in the tables first
+        ed.flush();
+        for( Class type : types ) {
+            ComponentTable[] tables = ed.getTables(type);
+            if( tables == null ) {
+                throw new IllegalArgumentException("Not a persistent component type:" + type);
+            }
+            try {
+                ComponentSnapshot.writeType(ComponentSnapshot.getFile(dir, type), type, 
+                                            tables[0].components(ed.getSession()));
+            } catch( SQLException e ) {
+                throw new IOException("Error reading table for:" + type, e);
+            }
+        }
+        
+        StringIndex strings = ed.getStrings();
+        if( strings instanceof SqlStringIndex ) {
+            ComponentSnapshot.writeStrings(new File(dir, ComponentSnapshot.STRINGS_FILE), 
+                                           ((SqlStringIndex)strings).getStrings());
+        }
+        
+        // The end of the reserved range covers every ID handed out so far,
+        // including entities that only have non-persistent components
+        ComponentSnapshot.writeNextEntityId(dir, ed.getIdGenerator().getReservedEnd());
+    }
+
+    public static void main( String... args ) throws Exception {
+        if( args.length < 3 ) {
+            System.out.println("Usage: SqlSnapshotTool <dbPath> <snapshotDir> <componentClass>...");
+            return;
+        }
+        Class[] types = new Class[args.length - 2];
+        for( int i = 0; i < types.length; i++ ) {
+            types[i] = Class.forName(args[i + 2]);
+        }
+        
+        SqlEntityData ed = new SqlEntityData(args[0], 1000);
+        try {
+            long start = System.nanoTime();
+            export(ed, new File(args[1]), types);
+            log.info("Exported " + types.length + " types in " + ((System.nanoTime() - start) / 1000000.0) + " ms");
+        } finally {
+            ed.close();
+        }
+    }
+}
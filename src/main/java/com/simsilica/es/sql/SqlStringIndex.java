@@ -37,6 +37,7 @@ package com.simsilica.es.sql;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import java.sql.*;
+import java.util.Map;
 
 import com.simsilica.es.StringIndex;
 import com.simsilica.util.ReportSystem;
@@ -154,6 +155,18 @@ public class SqlStringIndex implements StringIndex {
         }
     }
         
+    /**
+     *  Returns every string in the index keyed by ID, read directly
+     *  from the database.
+     */
+    public Map<Integer, String> getStrings() {
+        try {
+            return stringTable.getStrings(getSession());
+        } catch( SQLException e ) {
+            throw new RuntimeException("Error reading strings", e);
+        }
+    }
+        
     private class CacheReporter implements Reporter {
     
         @Override
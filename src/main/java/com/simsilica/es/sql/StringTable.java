@@ -58,10 +58,12 @@ public class StringTable {
 	private String insertSql;
 	private String idForString;
 	private String stringForId;
+	private String allStrings;
 
 	protected StringTable() {
 		idForString = "select id from STRINGS where val=?";
 		stringForId = "select val from STRINGS where id=?";
+		allStrings = "select id, val from STRINGS";
 		insertSql = "insert into " + tableName + " (id,val) values (default,?)";
 	}
 
@@ -208,4 +210,22 @@ public class StringTable {
 		}
 	}
 
+	/**
+	 * Returns every string in the table keyed by ID, with one query.
+	 */
+	public Map<Integer, String> getStrings(SqlSession session) throws SQLException {
+
+		Map<Integer, String> results = new HashMap<Integer, String>();
+		PreparedStatement st = session.prepareStatement(allStrings);
+		ResultSet rs = st.executeQuery();
+		try {
+			while (rs.next()) {
+				results.put(rs.getInt(1), rs.getString(2));
+			}
+			return results;
+		} finally {
+			rs.close();
+		}
+	}
+
 }
@@ -0,0 +1,96 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.system;
+
+import com.simsilica.es.EntityData;
+
+
+/**
+ *  A convenient base class for entity systems that takes care of the
+ *  read and write declarations and keeps track of the EntityData.
+ *
+ *  @author    Paul Speed
+ */
+public abstract class AbstractEntitySystem implements EntitySystem {
+
+    private final Class[] readTypes;
+    private final Class[] writeTypes;
+    private EntityData ed;
+    
+    protected AbstractEntitySystem( Class[] readTypes, Class[] writeTypes ) {
+        this.readTypes = readTypes;
+        this.writeTypes = writeTypes;
+    }
+ 
+    @Override
+    public Class[] getReadTypes() {
+        return readTypes;
+    }
+ 
+    @Override
+    public Class[] getWriteTypes() {
+        return writeTypes;
+    }
+ 
+    protected EntityData getEntityData() {
+        return ed;
+    }
+ 
+    @Override
+    public final void initialize( EntityData ed ) {
+        this.ed = ed;
+        initialize();
+    }
+ 
+    @Override
+    public final void terminate( EntityData ed ) {
+        terminate();
+        this.ed = null;
+    }
+ 
+    /**
+     *  Called after the EntityData has been set.  Subclasses
+     *  can grab their entity sets here.
+     */
+    protected abstract void initialize();
+    
+    /**
+     *  Called before the EntityData has been cleared.  Subclasses 
+     *  should release their entity sets here.
+     */
+    protected abstract void terminate();
+}
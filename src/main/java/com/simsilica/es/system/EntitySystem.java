@@ -0,0 +1,89 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.system;
+
+import com.simsilica.es.EntityData;
+
+
+/**
+ *  A unit of game logic that is updated once per tick by the
+ *  SystemScheduler.  Each system declares the component types that it 
+ *  reads and the component types that it writes so that the scheduler
+ *  can run systems that don't conflict with each other at the same time.
+ *  Two systems conflict when either one writes a type that the other
+ *  reads or writes.  Systems that conflict are always run in the order
+ *  they were added to the scheduler.
+ *
+ *  <p>A system that returns null for either its read or write types
+ *  is considered to conflict with every other system and will always 
+ *  run by itself.  Systems that remove whole entities should either 
+ *  include every type that they might remove in their write types or
+ *  return null.</p>
+ *
+ *  @author    Paul Speed
+ */
+public interface EntitySystem {
+
+    /**
+     *  Returns the component types that this system reads during
+     *  update() or null if the types are not known.
+     */
+    public Class[] getReadTypes();
+
+    /**
+     *  Returns the component types that this system writes during
+     *  update() or null if the types are not known.
+     */
+    public Class[] getWriteTypes();
+
+    /**
+     *  Called once by the scheduler before the first update. 
+     */
+    public void initialize( EntityData ed );
+
+    /**
+     *  Called once per tick, possibly from a pool thread and possibly
+     *  at the same time as other non-conflicting systems.
+     */
+    public void update( long time );
+
+    /**
+     *  Called once by the scheduler when it is terminated.  Systems
+     *  are terminated in the reverse order that they were initialized.
+     */
+    public void terminate( EntityData ed );
+}
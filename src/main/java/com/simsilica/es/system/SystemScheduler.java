@@ -0,0 +1,416 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.system;
+
+import com.simsilica.es.EntityData;
+import com.simsilica.util.ReportSystem;
+import com.simsilica.util.Reporter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ *  Runs a set of entity systems once per tick, running the systems
+ *  that don't conflict with each other at the same time on a 
+ *  work-stealing fork/join pool.
+ *
+ *  <p>The scheduler builds a conflict graph from each system's read and
+ *  write declarations.  A system waits for every conflicting system that
+ *  was added before it and then runs as soon as those are done.  So 
+ *  conflicting systems see each other's results in the same order that
+ *  a serial loop over the systems would produce while independent 
+ *  systems run concurrently.  update() returns when every system has 
+ *  been updated for the tick.</p>
+ *
+ *  <p>Per-system timings are kept for every update and, while the scheduler
+ *  is initialized, are also available through the ReportSystem under the 
+ *  "systems" report type.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class SystemScheduler {
+
+    static Logger log = Logger.getLogger(SystemScheduler.class.getName());
+
+    public static final String REPORT_SYSTEMS = "systems";
+
+    private final EntityData ed;
+    private final ForkJoinPool pool;
+    private final List<EntitySystem> systems = new ArrayList<EntitySystem>();
+    private final Map<EntitySystem, SystemTiming> timings = new ConcurrentHashMap<EntitySystem, SystemTiming>();
+    private final Object tickLock = new Object();
+    private final TimingReporter reporter = new TimingReporter();
+    private Node[] graph;
+    private boolean initialized;
+    private volatile long lastTickNanos;
+
+    public SystemScheduler( EntityData ed ) {
+        this(ed, ForkJoinPool.commonPool());
+    }
+    
+    public SystemScheduler( EntityData ed, ForkJoinPool pool ) {
+        if( pool == null ) {
+            throw new IllegalArgumentException("Pool cannot be null");
+        }
+        this.ed = ed;
+        this.pool = pool;
+    }
+ 
+    public EntityData getEntityData() {
+        return ed;
+    }
+ 
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+ 
+    /**
+     *  Adds a system to the end of the update order.  If the scheduler is
+     *  already initialized then the system is initialized right away.
+     */
+    public synchronized <T extends EntitySystem> T addSystem( T system ) {
+        systems.add(system);
+        timings.put(system, new SystemTiming(system));
+        graph = null;
+        if( initialized ) {
+            system.initialize(ed);
+        }
+        return system;
+    }
+ 
+    /**
+     *  Removes the specified system, terminating it if the scheduler
+     *  is initialized.  If a tick is running then this waits for it to
+     *  finish so that the system is never terminated in the middle of its
+     *  update.  This means it must not be called from a system's update().
+     */
+    public boolean removeSystem( EntitySystem system ) {
+        // Same lock order as update()
+        synchronized( tickLock ) {
+            synchronized( this ) {
+                if( !systems.remove(system) ) {
+                    return false;
+                }
+                timings.remove(system);
+                graph = null;
+                if( initialized ) {
+                    system.terminate(ed);
+                }
+                return true;
+            }
+        }
+    }
+ 
+    public synchronized <T extends EntitySystem> T getSystem( Class<T> type ) {
+        for( EntitySystem s : systems ) {
+            if( type.isInstance(s) ) {
+                return type.cast(s);
+            }
+        }
+        return null;
+    }
+ 
+    public synchronized List<EntitySystem> getSystems() {
+        return new ArrayList<EntitySystem>(systems);
+    }
+ 
+    public SystemTiming getTiming( EntitySystem system ) {
+        return timings.get(system);
+    }
+ 
+    /**
+     *  Returns the timings of all of the systems in update order.
+     */
+    public synchronized List<SystemTiming> getTimings() {
+        List<SystemTiming> results = new ArrayList<SystemTiming>(systems.size());
+        for( EntitySystem s : systems ) {
+            results.add(timings.get(s));
+        }
+        return results;
+    }
+ 
+    /**
+     *  Returns the wall-clock time that the last update() took 
+     *  in nanoseconds.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+ 
+    public synchronized void initialize() {
+        if( initialized ) {
+            return;
+        }
+        for( EntitySystem s : systems ) {
+            s.initialize(ed);
+        }
+        ReportSystem.registerReporter(REPORT_SYSTEMS, reporter);
+        initialized = true;
+    }
+ 
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+ 
+    /**
+     *  Terminates all of the systems in reverse order.  If a tick is running
+     *  then this waits for it to finish first.  This means it must not be 
+     *  called from a system's update().
+     */
+    public void terminate() {
+        // Same lock order as update()
+        synchronized( tickLock ) {
+            synchronized( this ) {
+                if( !initialized ) {
+                    return;
+                }
+                // The global report system would otherwise keep us alive forever
+                ReportSystem.unregisterReporter(REPORT_SYSTEMS, reporter);
+                
+                // Terminate them backwards
+                for( int i = systems.size() - 1; i >= 0; i-- ) {
+                    systems.get(i).terminate(ed);
+                }
+                initialized = false;
+            }
+        }
+    }
+ 
+    /**
+     *  Returns true if the two systems cannot be run at the same time.
+     */
+    public static boolean conflicts( EntitySystem a, EntitySystem b ) {
+        Class[] aReads = a.getReadTypes();
+        Class[] aWrites = a.getWriteTypes();
+        Class[] bReads = b.getReadTypes();
+        Class[] bWrites = b.getWriteTypes();
+        if( aReads == null || aWrites == null || bReads == null || bWrites == null ) {
+            return true;
+        }
+        return intersects(aWrites, bReads) || intersects(aWrites, bWrites) 
+                || intersects(bWrites, aReads);
+    }
+ 
+    private static boolean intersects( Class[] a, Class[] b ) {
+        for( Class x : a ) {
+            for( Class y : b ) {
+                if( x == y ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+ 
+    /**
+     *  Returns the systems that the specified system must wait for
+     *  each tick.
+     */
+    public synchronized List<EntitySystem> getDependencies( EntitySystem system ) {
+        List<EntitySystem> results = new ArrayList<EntitySystem>();
+        for( EntitySystem s : systems ) {
+            if( s == system ) {
+                return results;
+            }
+            if( conflicts(s, system) ) {
+                results.add(s);
+            }
+        }
+        throw new IllegalArgumentException("System is not managed by this scheduler:" + system);
+    }
+ 
+    protected synchronized Node[] getGraph() {
+        if( graph != null ) {
+            return graph;
+        }
+        Node[] nodes = new Node[systems.size()];
+        List<List<Node>> successors = new ArrayList<List<Node>>(nodes.length);
+        for( int i = 0; i < nodes.length; i++ ) {
+            EntitySystem s = systems.get(i);
+            nodes[i] = new Node(s, timings.get(s));
+            successors.add(new ArrayList<Node>());
+        }
+        
+        // Only the direct conflicts are kept.  Some of the edges could be 
+        // implied by others but pruning them wouldn't buy much for the
+        // handful of systems a game typically has.
+        for( int i = 0; i < nodes.length; i++ ) {
+            for( int j = i + 1; j < nodes.length; j++ ) {
+                if( conflicts(nodes[i].system, nodes[j].system) ) {
+                    successors.get(i).add(nodes[j]);
+                    nodes[j].predecessorCount++;
+                }
+            }
+        }
+        for( int i = 0; i < nodes.length; i++ ) {
+            List<Node> list = successors.get(i);
+            nodes[i].successors = list.toArray(new Node[list.size()]);
+        }
+        graph = nodes;
+        return graph;
+    }
+ 
+    /**
+     *  Runs one tick of all of the systems and returns when they are done.
+     *  If any systems throw an exception then the remaining systems are still
+     *  updated and the first exception is rethrown at the end.  Only one
+     *  tick runs at a time.  This should not be called from one of the 
+     *  scheduler pool's own threads.
+     */
+    public void update( long time ) {
+        synchronized( tickLock ) {
+            // Checked under the tick lock so that terminate() can't 
+            // slip in between the check and the tick
+            if( !isInitialized() ) {
+                throw new IllegalStateException("Scheduler is not initialized");
+            }
+            runTick(time);
+        }
+    }
+ 
+    private void runTick( long time ) {
+        Node[] nodes = getGraph();
+        if( nodes.length == 0 ) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        Tick tick = new Tick(time, nodes.length);
+        for( Node n : nodes ) {
+            n.pending.set(n.predecessorCount);
+        }
+        for( Node n : nodes ) {
+            if( n.predecessorCount == 0 ) {
+                pool.execute(new SystemTask(tick, n));
+            }
+        }
+        try {
+            tick.done.await();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for systems", e);
+        }
+        lastTickNanos = System.nanoTime() - start;
+        
+        Throwable error = tick.error;
+        if( error instanceof RuntimeException ) {
+            throw (RuntimeException)error;
+        } else if( error instanceof Error ) {
+            throw (Error)error;
+        }
+    }
+ 
+    protected static class Node {
+        final EntitySystem system;
+        final SystemTiming timing;
+        Node[] successors;
+        int predecessorCount;
+        final AtomicInteger pending = new AtomicInteger();
+        
+        public Node( EntitySystem system, SystemTiming timing ) {
+            this.system = system;
+            this.timing = timing;
+        }
+    }
+ 
+    private static class Tick {
+        final long time;
+        final CountDownLatch done;
+        volatile Throwable error;
+        
+        public Tick( long time, int count ) {
+            this.time = time;
+            this.done = new CountDownLatch(count);
+        }
+        
+        synchronized void failed( EntitySystem system, Throwable t ) {
+            if( error == null ) {
+                error = t;
+            } else {
+                log.log(Level.SEVERE, "Error updating system:" + system, t);
+            }
+        }
+    }
+ 
+    private static class SystemTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Tick tick;
+        private final Node node;
+        
+        public SystemTask( Tick tick, Node node ) {
+            this.tick = tick;
+            this.node = node;
+        }
+        
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            try {
+                node.system.update(tick.time);
+            } catch( RuntimeException | Error e ) {
+                tick.failed(node.system, e);
+            } finally {
+                node.timing.record(System.nanoTime() - start);
+                
+                // Release the systems waiting on this one.  Forking keeps
+                // them on this worker's queue for the other workers to
+                // steal.
+                for( Node n : node.successors ) {
+                    if( n.pending.decrementAndGet() == 0 ) {
+                        new SystemTask(tick, n).fork();
+                    }
+                }
+                tick.done.countDown();
+            }
+        }
+    }
+ 
+    private class TimingReporter implements Reporter {
+    
+        @Override
+        public void printReport( String type, java.io.PrintWriter out ) {
+            out.println("SystemScheduler->last tick:" + String.format("%.3f ms", lastTickNanos / 1000000.0));
+            for( SystemTiming t : getTimings() ) {
+                out.println("  " + t);
+            }
+        }
+    }
+}
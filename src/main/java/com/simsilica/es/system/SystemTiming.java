@@ -0,0 +1,117 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.es.system;
+
+
+/**
+ *  Keeps track of how long a particular system takes to update.
+ *  The times are only written by the thread running the system but
+ *  can be read at any time.
+ *
+ *  @author    Paul Speed
+ */
+public class SystemTiming {
+
+    private final EntitySystem system;
+    private volatile long lastNanos;
+    private volatile long maxNanos;
+    private volatile long totalNanos;
+    private volatile long updateCount;
+    
+    public SystemTiming( EntitySystem system ) {
+        this.system = system;
+    }
+ 
+    public EntitySystem getSystem() {
+        return system;
+    }
+ 
+    protected void record( long nanos ) {
+        lastNanos = nanos;
+        if( nanos > maxNanos ) {
+            maxNanos = nanos;
+        }
+        totalNanos += nanos;
+        updateCount++;
+    }
+ 
+    /**
+     *  Returns the time that the last update took in nanoseconds.
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+ 
+    /**
+     *  Returns the longest time that any update took in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+ 
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+ 
+    public long getUpdateCount() {
+        return updateCount;
+    }
+ 
+    public long getAverageNanos() {
+        long count = updateCount;
+        return count == 0 ? 0 : totalNanos / count;
+    }
+ 
+    /**
+     *  Clears the accumulated statistics.  This should not be called
+     *  while the scheduler is updating.
+     */
+    public void reset() {
+        lastNanos = 0;
+        maxNanos = 0;
+        totalNanos = 0;
+        updateCount = 0;
+    }
+ 
+    @Override
+    public String toString() {
+        return String.format("%s[last=%.3f ms, avg=%.3f ms, max=%.3f ms, updates=%d]", 
+                             system.getClass().getSimpleName(),
+                             lastNanos / 1000000.0, getAverageNanos() / 1000000.0,
+                             maxNanos / 1000000.0, updateCount);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2016, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ *  An open-addressing hash table that maps primitive long keys to
+ *  object values.  Reads are lock-free and may run concurrently with
+ *  a single writer at a time.  Writers are serialized internally.
+ *
+ *  <p>Keys are written exactly once per slot for the life of a given
+ *  table.  Removing a key leaves a tombstone in its slot that will be
+ *  reused if that same key is put again.  Tombstones are only reclaimed
+ *  when the table is rehashed, which happens when it fills up or when
+ *  the live entry count drops far enough below capacity that the table
+ *  can shrink.  This means a reader that finds a key can always trust
+ *  the value it reads for that slot.</p>
+ *
+ *  <p>Iteration is weakly consistent in the same way as ConcurrentHashMap:
+ *  it reflects the state of the table at some point at or since the
+ *  cursor was created and never throws ConcurrentModificationException.</p>
+ *
+ *  @author    Paul Speed
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    
+    /**
+     *  The table will shrink when the live entries make up less
+     *  than this fraction of capacity.
+     */
+    private static final float SHRINK_FACTOR = 0.125f;
+    
+    private final int initialCapacity;
+    private volatile Table table;
+    
+    // Only modified by writers holding the lock but read by
+    // anyone asking for size()
+    private volatile int size;
+    private int used; // live + tombstones
+    
+    private final Object lock = new Object(); 
+    
+    public ConcurrentLongMap() {
+        this(MIN_CAPACITY);
+    }
+    
+    public ConcurrentLongMap( int initialCapacity ) {
+        this.initialCapacity = Math.max(MIN_CAPACITY, nextPowerOfTwo(initialCapacity));
+        this.table = new Table(this.initialCapacity);
+    }
+ 
+    private static int nextPowerOfTwo( int i ) {
+        int result = Integer.highestOneBit(Math.max(1, i));
+        return result < i ? result << 1 : result;
+    }
+    
+    /**
+     *  MurmurHash3 finalizer.  Entity IDs are often sequential
+     *  and linear probing really does not like clustered keys.
+     */
+    private static int hash( long key ) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+ 
+    /**
+     *  Returns the current number of slots in the table.  Mostly useful
+     *  for debugging and reporting.
+     */   
+    public int capacity() {
+        return table.keys.length;
+    }
+
+    public V get( long key ) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        for( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+            // Read the value first.  A non-null value guarantees
+            // that the key write is visible to us.
+            Object value = t.values.get(i);
+            if( value == null ) {
+                // Never been used so the key can't be further on
+                return null;
+            }
+            if( t.keys[i] == key ) {
+                return value == TOMBSTONE ? null : (V)value;
+            }
+        }
+    }
+    
+    public boolean containsKey( long key ) {
+        return get(key) != null;
+    }
+    
+    /**
+     *  Associates the specified non-null value with the specified key
+     *  and returns the previous value or null if there was none.
+     */
+    public V put( long key, V value ) {
+        if( value == null ) {
+            throw new IllegalArgumentException("Null values are not supported.");
+        }
+        synchronized( lock ) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+            for( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+                Object existing = t.values.get(i);
+                if( existing == null ) {
+                    // A brand new slot... key first then the value
+                    // to publish it.
+                    t.keys[i] = key;
+                    t.values.set(i, value);
+                    size++;
+                    used++;
+                    if( used > t.threshold ) {
+                        rehash();
+                    }
+                    return null;
+                }
+                if( t.keys[i] == key ) {
+                    t.values.set(i, value);
+                    if( existing == TOMBSTONE ) {
+                        size++;
+                        return null;
+                    }
+                    return (V)existing;
+                }
+            }
+        }
+    }
+    
+    /**
+     *  Removes the value for the specified key and returns it or returns
+     *  null if there was no value.
+     */
+    public V remove( long key ) {
+        synchronized( lock ) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+            for( int i = hash(key) & mask; ; i = (i + 1) & mask ) {
+                Object existing = t.values.get(i);
+                if( existing == null ) {
+                    return null;
+                }
+                if( t.keys[i] == key ) {
+                    if( existing == TOMBSTONE ) {
+                        return null;
+                    }
+                    t.values.set(i, TOMBSTONE);
+                    size--;
+                    if( t.keys.length > initialCapacity && size < t.keys.length * SHRINK_FACTOR ) {
+                        rehash();
+                    }
+                    return (V)existing;
+                }
+            }
+        }
+    }
+    
+    public void clear() {
+        synchronized( lock ) {
+            table = new Table(initialCapacity);
+            size = 0;
+            used = 0;
+        }
+    }
+ 
+    /**
+     *  Rebuilds the table sized for the current live entries.  This will
+     *  grow the table if it is full of live entries, shrink it if it is mostly
+     *  empty, and in all cases it drops the tombstones.  Must be called
+     *  while holding the lock.
+     */
+    private void rehash() {
+        Table old = table;
+        int capacity = nextPowerOfTwo((int)(size / LOAD_FACTOR) + 1);
+        if( capacity <= size * 2 ) {
+            capacity <<= 1;
+        }
+        capacity = Math.max(initialCapacity, capacity);
+        
+        Table t = new Table(capacity);
+        int mask = capacity - 1;
+        for( int j = 0; j < old.keys.length; j++ ) {
+            Object value = old.values.get(j);
+            if( value == null || value == TOMBSTONE ) {
+                continue;
+            }
+            long key = old.keys[j];
+            int i = hash(key) & mask;
+            while( t.values.get(i) != null ) {
+                i = (i + 1) & mask;
+            }
+            t.keys[i] = key;
+            t.values.set(i, value);
+        }
+        used = size;
+        
+        // Publish
+        table = t;
+    }
+
+    /**
+     *  Returns a cursor over the live entries of the table as it exists
+     *  right now.
+     */
+    public Cursor<V> cursor() {
+        return new Cursor<V>(table);
+    }
+    
+    @Override
+    public String toString() {
+        return "ConcurrentLongMap[size=" + size + ", capacity=" + capacity() + "]";
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int threshold;
+        
+        public Table( int capacity ) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<Object>(capacity);
+            this.threshold = (int)(capacity * LOAD_FACTOR);
+        }
+    }
+    
+    /**
+     *  Walks the live entries of a table without allocating per-entry
+     *  objects. 
+     */
+    public static final class Cursor<V> {
+        private final Table table;
+        private int index = -1;
+        private long key;
+        private V value;
+        
+        private Cursor( Table table ) {
+            this.table = table;
+        }
+ 
+        /**
+         *  Advances to the next live entry and returns true or returns
+         *  false if there are no more entries.
+         */       
+        public boolean next() {
+            int length = table.keys.length;
+            while( ++index < length ) {
+                Object v = table.values.get(index);
+                if( v == null || v == TOMBSTONE ) {
+                    continue;
+                }
+                key = table.keys[index];
+                value = (V)v;
+                return true;
+            }
+            value = null;
+            return false;
+        }
+        
+        public long getKey() {
+            return key;
+        }
+        
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -67,6 +67,10 @@ public class ReportSystem {
         getList(type).add(r);
     }   
  
+    public static void unregisterReporter( String type, Reporter r ) {
+        getList(type).remove(r);
+    }
+ 
     public static void printReport( String type, PrintWriter out ) {
         for( Reporter r : getList(type) ) {
             r.printReport(type, out);